@@ -1,23 +1,54 @@
 package cn.zack;
 
 import cn.zack.client.RecordClientUI;
+import cn.zack.service.StartupBenchmark;
 import cn.zack.utils.SpringContextUtils;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 
 import javax.swing.*;
 import javax.swing.plaf.FontUIResource;
 import java.awt.*;
+import java.util.Arrays;
 
 @SpringBootApplication
+@EnableConfigurationProperties
 public class WindowsScreenRecordApplication {
     public static void main(String[] args) {
+        /**
+         * 编码基准测试不需要界面, 可以在没有显示器的机器上运行, 测试完成后直接退出
+         */
+        boolean benchmark = Arrays.asList(args).contains("--benchmark");
+        /**
+         * 启动耗时测试, 显示窗口后记录耗时并退出, 构建CDS归档时作为训练运行; 没有显示器时只启动spring
+         */
+        boolean startupBenchmark = Arrays.asList(args).contains("--startup-benchmark");
+        /**
+         * 无界面模式, 不显示窗口, 只通过本机控制接口录制, 供测试脚本批量录制
+         */
+        boolean headlessMode = Arrays.asList(args).contains("--headless");
+        boolean headless = benchmark || headlessMode || startupBenchmark && GraphicsEnvironment.isHeadless();
         /**
          * 初始化spring
          * 设置headless为false, 否则会报java.awt.HeadlessException
          * java.awt.headless是J2SE的一种模式, 用于在缺失显示屏、鼠标或者键盘时的系统配置, springboot默认将这个属性设置为true
          */
-        new SpringApplicationBuilder(WindowsScreenRecordApplication.class).headless(false).run(args);
+        String[] springArgs = args;
+        if (headlessMode) {
+            // 命令行参数优先于配置文件
+            springArgs = Arrays.copyOf(args, args.length + 1);
+            springArgs[args.length] = "--record.control.enabled=true";
+        }
+        new SpringApplicationBuilder(WindowsScreenRecordApplication.class).headless(headless).run(springArgs);
+        // 控制接口的线程使程序保持运行
+        if (headlessMode) {
+            return;
+        }
+        if (startupBenchmark && headless) {
+            SpringContextUtils.getBean(StartupBenchmark.class).finish(false);
+            return;
+        }
 
         /**
          * 加载UI界面
@@ -28,6 +59,9 @@ public class WindowsScreenRecordApplication {
             // 从spring容器中取出客户端界面并初始化
             RecordClientUI recordClientUI = SpringContextUtils.getBean(RecordClientUI.class);
             recordClientUI.initUI();
+            if (startupBenchmark) {
+                SpringContextUtils.getBean(StartupBenchmark.class).finish(true);
+            }
         });
     }
 }
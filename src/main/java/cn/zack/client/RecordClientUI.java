@@ -1,26 +1,39 @@
 package cn.zack.client;
 
+import cn.zack.service.CaptureGeometry;
+import cn.zack.service.DeviceRegistry;
+import cn.zack.service.FfmpegRunner;
+import cn.zack.service.PreviewReceiver;
+import cn.zack.service.RecordingSession;
 import cn.zack.service.WindowsScreenRecord;
 import com.formdev.flatlaf.FlatLightLaf;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.plaf.FontUIResource;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
-import java.util.HashMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 客户端UI界面
+ * 延迟到启动完成后才创建窗口, 无界面运行时(如编码基准测试)不会创建
  *
  * @author 张云龙
  */
+@Lazy
 @Component("RecordClientUI")
 public class RecordClientUI extends JFrame {
     private static final Logger logger = LoggerFactory.getLogger(RecordClientUI.class);
@@ -28,31 +41,33 @@ public class RecordClientUI extends JFrame {
     @Autowired
     private WindowsScreenRecord windowsScreenRecord;
 
-    private static RecordClientUI instance = null;
+    @Autowired
+    private FfmpegRunner ffmpegRunner;
 
-    /**
-     * 录制的视频文件保存位置
-     * eg: D:\init.bat.mp4
-     */
-    private static String videoSavePath = "";
+    @Autowired
+    private DeviceRegistry deviceRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     /**
-     * 录制的音频文件保存位置
-     * eg: D:\abc.wav
+     * 输出分辨率下拉框中表示保持采集分辨率的选项
      */
-    private static String audioSavePath = "";
+    private static final String ORIGINAL_SIZE = "原始";
 
     /**
-     * 开始录制视频那一刻的毫秒值
+     * 实时预览缩略图大小
      */
-    private Long startRecordVideoMills = 0L;
+    private static final int THUMBNAIL_WIDTH = 192;
+
+    private static final int THUMBNAIL_HEIGHT = 108;
+
+    private static RecordClientUI instance = null;
 
     /**
-     * 已录制的音频列表
-     * key为音频文件位置
-     * value为音频文件的开始时间比视频文件开始时间落后的时间差, 单位毫秒
+     * 当前录制会话
      */
-    private HashMap<String, Long> audioOffsetMap = new HashMap<>();
+    private volatile RecordingSession session;
 
     private RecordClientUI() {
     }
@@ -75,8 +90,9 @@ public class RecordClientUI extends JFrame {
     public void initUI() {
         // 窗口标题
         this.setTitle("录屏工具plus++");
-        // 窗口大小
-        this.setSize(600, 240);
+        // 窗口大小, 开启实时预览时留出缩略图的位置
+        int previewPort = windowsScreenRecord.getPreviewPort();
+        this.setSize(600, previewPort > 0 ? 400 : 280);
         // 不可调整窗口大小
         this.setResizable(false);
         // 窗口关闭时退出程序
@@ -131,9 +147,8 @@ public class RecordClientUI extends JFrame {
         // 默认禁用停止按钮
         stopButton.setEnabled(false);
 
-        // 从接口获取麦克风设备列表，示例中使用模拟数据
-        String[] micDevices = windowsScreenRecord.getAudioMicrophoneDevices();
-        JComboBox<String> micComboBox = new JComboBox<>(micDevices);
+        // 先显示上次缓存的麦克风设备列表, 后台列出设备后再更新, 不在EDT中等待子进程
+        JComboBox<String> micComboBox = new JComboBox<>(deviceRegistry.getDevices().toArray(new String[0]));
         micComboBox.setFont(new Font("楷体", Font.BOLD, 15));
         micComboBox.setPreferredSize(new Dimension(150, 30));
         this.add(micComboBox);
@@ -153,6 +168,41 @@ public class RecordClientUI extends JFrame {
         micCheckBox.setEnabled(false);
         this.add(micCheckBox);
 
+        // 采集区域、输出分辨率和缩放算法, 默认取配置文件, 每次开始录制时生效
+        CaptureGeometry defaultGeometry;
+        try {
+            defaultGeometry = windowsScreenRecord.getDefaultGeometry();
+        } catch (IllegalArgumentException ex) {
+            logger.info("录制区域配置错误, 使用整个屏幕, 异常信息: {}", ex.getMessage());
+            defaultGeometry = new CaptureGeometry(null, 0, 0, CaptureGeometry.SCALE_ALGORITHMS[0]);
+        }
+        JLabel regionLabel = new JLabel("区域");
+        regionLabel.setFont(new Font("楷体", Font.BOLD, 15));
+        this.add(regionLabel);
+        // x,y,宽,高, 为空时录制整个屏幕
+        JTextField regionTextField = new JTextField(12);
+        regionTextField.setFont(new Font("微软雅黑", Font.PLAIN, 13));
+        regionTextField.setToolTipText("x,y,宽,高, 为空时录制整个屏幕");
+        Rectangle region = defaultGeometry.getRegion();
+        regionTextField.setText(region == null ? "" : region.x + "," + region.y + "," + region.width + "," + region.height);
+        this.add(regionTextField);
+        JLabel outputLabel = new JLabel("输出");
+        outputLabel.setFont(new Font("楷体", Font.BOLD, 15));
+        this.add(outputLabel);
+        // 可直接输入 宽x高
+        JComboBox<String> outputComboBox = new JComboBox<>(new String[]{ORIGINAL_SIZE, "1920x1080", "1280x720"});
+        outputComboBox.setEditable(true);
+        outputComboBox.setFont(new Font("微软雅黑", Font.PLAIN, 13));
+        outputComboBox.setPreferredSize(new Dimension(110, 28));
+        outputComboBox.setSelectedItem(defaultGeometry.getOutputWidth() > 0
+                ? defaultGeometry.getOutputWidth() + "x" + defaultGeometry.getOutputHeight() : ORIGINAL_SIZE);
+        this.add(outputComboBox);
+        JComboBox<String> scaleComboBox = new JComboBox<>(CaptureGeometry.SCALE_ALGORITHMS);
+        scaleComboBox.setFont(new Font("微软雅黑", Font.PLAIN, 13));
+        scaleComboBox.setPreferredSize(new Dimension(110, 28));
+        scaleComboBox.setSelectedItem(defaultGeometry.getScaleAlgorithm());
+        this.add(scaleComboBox);
+
         // 生成按钮
         JButton finishButton = new JButton("生成视频");
         finishButton.setBorderPainted(false);
@@ -165,9 +215,21 @@ public class RecordClientUI extends JFrame {
         finishButton.setEnabled(false);
 
 
+        // 实时预览缩略图, 录制期间约每秒刷新数次
+        JLabel thumbnailLabel = new JLabel("", SwingConstants.CENTER);
+        thumbnailLabel.setPreferredSize(new Dimension(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT));
+        thumbnailLabel.setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY));
+        if (previewPort > 0) {
+            this.add(thumbnailLabel);
+        }
+
         JLabel space = new JLabel(
                 "                                                          " +
                 "                                                                                 ");
+        // 空白标签兼作录制状态栏, 固定大小避免文字变化时重新排版
+        space.setPreferredSize(space.getPreferredSize());
+        space.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+        space.setForeground(Color.GRAY);
         this.add(space);
         // 创建显示文字的标签
         JLabel footerLabel = new JLabel("Designed By zhangyl07");
@@ -176,6 +238,57 @@ public class RecordClientUI extends JFrame {
         this.add(footerLabel);
         // 展示窗口
         this.setVisible(true);
+        long timeToFirstWindow = ManagementFactory.getRuntimeMXBean().getUptime();
+        meterRegistry.timer("app.time.to.first.window").record(timeToFirstWindow, TimeUnit.MILLISECONDS);
+        logger.info("启动到显示窗口耗时{}ms, 麦克风设备{}", timeToFirstWindow, deviceRegistry.isDiscovered() ? "已列出" : "来自缓存");
+
+        // 设备列表变化时更新下拉框, 保留当前选中的设备
+        deviceRegistry.addListener(devices -> SwingUtilities.invokeLater(() -> {
+            Object selected = micComboBox.getSelectedItem();
+            micComboBox.setModel(new DefaultComboBoxModel<>(devices.toArray(new String[0])));
+            if (selected != null && devices.contains(selected)) {
+                micComboBox.setSelectedItem(selected);
+            }
+        }));
+        // 打开下拉框时刷新一次, 刚插入的设备无需等待定期刷新
+        micComboBox.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                deviceRegistry.refreshAsync();
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+
+        // 接收录屏进程发出的预览画面, 缩放后在EDT中更新缩略图
+        if (previewPort > 0) {
+            PreviewReceiver previewReceiver = new PreviewReceiver(previewPort, image -> {
+                Image thumbnail = image.getScaledInstance(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, Image.SCALE_FAST);
+                SwingUtilities.invokeLater(() -> thumbnailLabel.setIcon(new ImageIcon(thumbnail)));
+            });
+            try {
+                previewReceiver.start();
+            } catch (IOException ex) {
+                logger.info("实时预览端口{}不可用, 异常信息: {}", previewPort, ex.getMessage());
+            }
+        }
+
+        // 订阅录屏进程的编码进度, 在状态栏显示编码速度和丢帧情况
+        ffmpegRunner.addListener((name, progress) -> {
+            RecordingSession current = session;
+            if (current == null || !current.getVideoProcessName().equals(name)) {
+                return;
+            }
+            String status = progress.isEnded() ? " " : String.format("编码 %.0ffps  速度 %.2fx  丢帧 %d  重复帧 %d",
+                    progress.getFps(), progress.getSpeed(), progress.getDropFrames(), progress.getDupFrames());
+            SwingUtilities.invokeLater(() -> space.setText(status));
+        });
 
         // 监听选择目录按钮
         chooseDirButton.addActionListener(e -> {
@@ -200,93 +313,113 @@ public class RecordClientUI extends JFrame {
         });
 
         // 监听开始按钮点击事件
+        // 录制操作都在后台线程池中执行, 按钮先禁用, 操作完成后再回到EDT更新界面
         startButton.addActionListener(e -> {
             logger.info("点击开始录制按钮");
-            // 获取选择的路径
-            videoSavePath = pathTextField.getText() + System.currentTimeMillis() + ".mp4";
-            // 开启录制
-            windowsScreenRecord.startVideoRecording(videoSavePath);
-            // 记录视频文件开始录制的毫秒值
-            startRecordVideoMills = System.currentTimeMillis();
-            // 开始录制之后, 禁用开始按钮, 启用停止按钮和录音按钮
+            CaptureGeometry geometry;
+            try {
+                String outputSize = (String) outputComboBox.getSelectedItem();
+                geometry = CaptureGeometry.parse(regionTextField.getText(), ORIGINAL_SIZE.equals(outputSize) ? "" : outputSize,
+                        (String) scaleComboBox.getSelectedItem());
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(null, "录制区域或输出分辨率格式错误", "录制视频", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             startButton.setEnabled(false);
-            stopButton.setEnabled(true);
-            micCheckBox.setEnabled(true);
+            regionTextField.setEnabled(false);
+            outputComboBox.setEnabled(false);
+            scaleComboBox.setEnabled(false);
+            String videoSavePath = pathTextField.getText() + System.currentTimeMillis() + "." + windowsScreenRecord.getVideoSuffix();
+            // 实时混音模式下麦克风随录屏一起打开, 录制期间不可切换设备
+            if (windowsScreenRecord.isLiveMix()) {
+                micComboBox.setEnabled(false);
+            }
+            session = windowsScreenRecord.newSession(videoSavePath, (String) micComboBox.getSelectedItem(), geometry);
+            session.start().whenComplete((v, ex) -> SwingUtilities.invokeLater(() -> {
+                if (ex != null) {
+                    startButton.setEnabled(true);
+                    micComboBox.setEnabled(true);
+                    regionTextField.setEnabled(true);
+                    outputComboBox.setEnabled(true);
+                    scaleComboBox.setEnabled(true);
+                    JOptionPane.showMessageDialog(null, "开始录制失败", "录制视频", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // 开始录制之后, 启用停止按钮和录音按钮
+                stopButton.setEnabled(true);
+                micCheckBox.setEnabled(true);
+            }));
         });
 
         // 监听停止按钮点击事件
         stopButton.addActionListener(e -> {
             logger.info("点击停止录制按钮");
-            // 先停止录音
-            windowsScreenRecord.stopAudioRecording();
-            // 再停止录屏
-            windowsScreenRecord.stopVideoRecording();
-
-            // 停止录制之后, 关闭麦克风
+            // 先关闭麦克风, 再停止录屏
             micCheckBox.setSelected(false);
-            // 禁用停止按钮和录音按钮
             micCheckBox.setEnabled(false);
             stopButton.setEnabled(false);
-            // 启用生成按钮
-            finishButton.setEnabled(true);
-
-            // 弹窗提醒
-            JOptionPane.showMessageDialog(null, "录制结束", "录制视频", JOptionPane.INFORMATION_MESSAGE);
+            session.stop().whenComplete((videoPath, ex) -> SwingUtilities.invokeLater(() -> {
+                micComboBox.setEnabled(true);
+                regionTextField.setEnabled(true);
+                outputComboBox.setEnabled(true);
+                scaleComboBox.setEnabled(true);
+                if (ex != null) {
+                    startButton.setEnabled(true);
+                    JOptionPane.showMessageDialog(null, "录制异常结束, 下次启动时自动恢复", "录制视频", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // 启用生成按钮
+                finishButton.setEnabled(true);
+                // 弹窗提醒
+                JOptionPane.showMessageDialog(null, "录制结束", "录制视频", JOptionPane.INFORMATION_MESSAGE);
+            }));
         });
 
         // 监听录音按钮的状态变化
         micCheckBox.addItemListener(new ItemListener() {
             @Override
             public void itemStateChanged(ItemEvent e) {
-                if (e.getStateChange() == ItemEvent.SELECTED) {
-                    logger.info("启用录音");
-                    // 开始录音之后, 禁用切换麦克风的下拉选
-                    micComboBox.setEnabled(false);
-                    // 开始录音的时间
-                    long startRecordAudioTime = System.currentTimeMillis();
-                    // 本次录音文件的保存位置
-                    audioSavePath = pathTextField.getText() + startRecordAudioTime + ".wav";
-                    // 开始录音
-                    windowsScreenRecord.startAudioRecording(audioSavePath, (String) micComboBox.getSelectedItem());
-                    // 记录本次录音的落后时间差
-                    audioOffsetMap.put(pathTextField.getText() + startRecordAudioTime + ".wav", startRecordAudioTime - startRecordVideoMills);
-                } else {
-                    logger.info("禁用录音");
-                    // 停止录音之后, 启用切换麦克风的下拉选
-                    micComboBox.setEnabled(true);
-                    windowsScreenRecord.stopAudioRecording();
+                boolean enabled = e.getStateChange() == ItemEvent.SELECTED;
+                if (session == null || session.getState() != RecordingSession.State.RECORDING) {
+                    return;
+                }
+                logger.info("{}录音", enabled ? "启用" : "禁用");
+                // 单独录音期间, 禁用切换麦克风的下拉选
+                if (!session.isLiveMix()) {
+                    micComboBox.setEnabled(!enabled);
                 }
+                session.setMicrophoneEnabled(enabled).whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        logger.info("切换麦克风失败, 异常信息: {}", ex.getMessage());
+                    }
+                });
             }
         });
 
         // 监听生成按钮点击事件
         finishButton.addActionListener(e -> {
             logger.info("点击生成视频按钮");
-            String resultPath = videoSavePath;
-            // 有录音存在, 需要合并
-            if (audioOffsetMap.size() > 0) {
-                resultPath = pathTextField.getText() + System.currentTimeMillis() + ".mp4";
-                // 合成音视频
-                windowsScreenRecord.mergeVideoAndAudio(videoSavePath, resultPath, audioOffsetMap);
-            }
             // 禁用生成按钮
             finishButton.setEnabled(false);
-            // 启用开始录制按钮
-            startButton.setEnabled(true);
-            // 重置数据
-            videoSavePath = "";
-            audioSavePath = "";
-            startRecordVideoMills = 0L;
-            audioOffsetMap = new HashMap<>();
-
-            // 复制最终结果到剪切板
-            Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-            StringSelection stringSelection = new StringSelection(resultPath);
-            clipboard.setContents(stringSelection, null);
-            // 弹窗提醒
-            UIManager.put("OptionPane.buttonFont", new FontUIResource(new Font("楷体", Font.BOLD, 15)));
-            UIManager.put("OptionPane.messageFont", new FontUIResource(new Font("楷体", Font.BOLD, 15)));
-            JOptionPane.showMessageDialog(null, "生成视频成功, 视频地址已复制到剪切板", "生成视频", JOptionPane.INFORMATION_MESSAGE);
+            // 有单独的录音时合并到新的视频文件; 实时混音模式下麦克风已混入视频, 无需合并
+            String mergedPath = pathTextField.getText() + System.currentTimeMillis() + ".mp4";
+            session.finish(mergedPath).whenComplete((resultPath, ex) -> SwingUtilities.invokeLater(() -> {
+                // 启用开始录制按钮
+                startButton.setEnabled(true);
+                session = null;
+                if (ex != null) {
+                    JOptionPane.showMessageDialog(null, "生成视频失败, 下次启动时自动恢复", "生成视频", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // 复制最终结果到剪切板
+                Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+                StringSelection stringSelection = new StringSelection(resultPath);
+                clipboard.setContents(stringSelection, null);
+                // 弹窗提醒
+                UIManager.put("OptionPane.buttonFont", new FontUIResource(new Font("楷体", Font.BOLD, 15)));
+                UIManager.put("OptionPane.messageFont", new FontUIResource(new Font("楷体", Font.BOLD, 15)));
+                JOptionPane.showMessageDialog(null, "生成视频成功, 视频地址已复制到剪切板", "生成视频", JOptionPane.INFORMATION_MESSAGE);
+            }));
         });
     }
 }
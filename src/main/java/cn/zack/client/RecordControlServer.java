@@ -0,0 +1,588 @@
+package cn.zack.client;
+
+import cn.zack.config.RecordProperties;
+import cn.zack.service.CaptureGeometry;
+import cn.zack.service.DeviceRegistry;
+import cn.zack.service.EncoderScheduler;
+import cn.zack.service.FfmpegProgress;
+import cn.zack.service.FfmpegRunner;
+import cn.zack.service.PostProcessScheduler;
+import cn.zack.service.RecordingSession;
+import cn.zack.service.WindowsScreenRecord;
+import cn.zack.utils.FileNameUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 本机HTTP控制接口
+ * 与界面共用同一套录制服务, 供测试脚本批量录制; 只监听本机回环地址, 参数放在查询字符串中, 返回json:
+ * GET /status 全部会话状态、编码进程和后台任务; GET /devices 麦克风设备; POST /sessions?output=&amp;mic=&amp;region=&amp;size=&amp;scale= 开始录制;
+ * GET /sessions/{id} 会话状态和编码进度; POST /sessions/{id}/mic?enabled=true 切换麦克风; POST /sessions/{id}/stop 停止录制;
+ * POST /sessions/{id}/finish?output= 生成视频
+ * output 只接受不含路径的文件名, 录制文件保存到 output-dir, 生成的视频保存到录制文件所在目录; mic 必须是 GET /devices 中的设备
+ * 请求在接收线程中处理, 开始、停止、生成等操作完成后由完成操作的线程返回响应, 等待期间不占用任何线程
+ * 全部会话状态按 status-cache-mills 缓存, 高频轮询只返回缓存的字节
+ * 每个请求都需带上 X-Record-Token 请求头, 值为 token-file 中的令牌, 首次启动时随机生成; 浏览器跨域发送自定义请求头需先预检, 而接口不响应预检,
+ * 网页无法借用户的浏览器调用接口; Host 不是本机回环地址或带有非本机 Origin 的请求直接拒绝, 防止DNS重绑定
+ *
+ * @author 张云龙
+ */
+@Lazy(false)
+@Component
+public class RecordControlServer {
+    private static final Logger logger = LoggerFactory.getLogger(RecordControlServer.class);
+
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private static final String TOKEN_HEADER = "X-Record-Token";
+
+    /**
+     * 令牌的随机字节数
+     */
+    private static final int TOKEN_BYTES = 32;
+
+    /**
+     * 接口指定的文件名: 文字、数字、下划线、连字符、空格和点, 不能包含路径分隔符, 不能以空格或点结尾
+     */
+    private static final Pattern FILE_NAME = Pattern.compile("[\\p{L}\\p{N}_](?:[\\p{L}\\p{N}_ .-]*[\\p{L}\\p{N}_-])?");
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private WindowsScreenRecord windowsScreenRecord;
+
+    @Autowired
+    private EncoderScheduler encoderScheduler;
+
+    @Autowired
+    private PostProcessScheduler postProcessScheduler;
+
+    @Autowired
+    private FfmpegRunner ffmpegRunner;
+
+    @Autowired
+    private DeviceRegistry deviceRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private HttpServer server;
+
+    private byte[] token;
+
+    /**
+     * 通过接口创建且未结束的会话
+     */
+    private final Map<String, Tracked> active = new ConcurrentHashMap<>();
+
+    /**
+     * 已结束的会话, 超出数量时删除最早结束的
+     */
+    private Map<String, Tracked> finished;
+
+    private volatile byte[] statusCache;
+
+    private volatile long statusCacheNanos;
+
+    @PostConstruct
+    public void init() throws IOException {
+        RecordProperties.Control control = recordProperties.getControl();
+        if (!control.isEnabled()) {
+            return;
+        }
+        int history = control.getFinishedHistory();
+        finished = new LinkedHashMap<String, Tracked>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tracked> eldest) {
+                return size() > history;
+            }
+        };
+        token = loadToken(Paths.get(control.getTokenFile()));
+        // 响应头和响应体分两次写出, 保持连接的轮询会被Nagle算法和延迟确认拖慢约40ms, 关闭Nagle; 需在第一次创建前设置
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), control.getPort()), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.info("控制接口已启动: http://{}:{}/status, 令牌文件: {}", InetAddress.getLoopbackAddress().getHostAddress(),
+                control.getPort(), Paths.get(control.getTokenFile()).toAbsolutePath());
+    }
+
+    /**
+     * 读取令牌, 文件不存在时随机生成并只允许当前用户读写
+     */
+    private static byte[] loadToken(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String saved = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            if (!saved.isEmpty()) {
+                return saved.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        Files.write(temp, hex.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("已生成控制接口令牌: {}", file.toAbsolutePath());
+        return hex.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        long startNanos = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        String route = "unknown";
+        try {
+            authorize(exchange);
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (parts.length == 2 && "status".equals(parts[1])) {
+                route = "status";
+                requireMethod(method, "GET");
+                respond(exchange, 200, status());
+            } else if (parts.length == 2 && "devices".equals(parts[1])) {
+                route = "devices";
+                requireMethod(method, "GET");
+                respond(exchange, 200, devices());
+            } else if (parts.length == 2 && "sessions".equals(parts[1])) {
+                route = "start";
+                requireMethod(method, "POST");
+                respondLater(exchange, 201, start(params));
+            } else if (parts.length == 3 && "sessions".equals(parts[1])) {
+                route = "session";
+                requireMethod(method, "GET");
+                Tracked tracked = find(parts[2]);
+                respond(exchange, 200, tracked.toJson(this).getBytes(StandardCharsets.UTF_8));
+            } else if (parts.length == 4 && "sessions".equals(parts[1])) {
+                requireMethod(method, "POST");
+                CompletableFuture<String> future = operate(find(parts[2]), parts[3], params);
+                // 不存在的操作已抛出异常, 指标标签只有固定的几种
+                route = parts[3];
+                respondLater(exchange, 200, future);
+            } else {
+                throw new NotFoundException("不存在的接口: " + exchange.getRequestURI().getPath());
+            }
+        } catch (Exception e) {
+            respond(exchange, statusCode(e), error(e));
+        }
+        meterRegistry.timer("record.control.request", "route", route).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 检查请求来源和令牌
+     */
+    private void authorize(HttpExchange exchange) {
+        if (!isLoopbackHost(hostOf(exchange.getRequestHeaders().getFirst("Host")))) {
+            throw new ForbiddenException("Host不是本机地址");
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null && !isLoopbackHost(hostOf(origin.replaceFirst("^[a-zA-Z][a-zA-Z0-9+.-]*://", "")))) {
+            throw new ForbiddenException("不接受来自网页的请求: " + origin);
+        }
+        String presented = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (presented == null || !MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8))) {
+            throw new UnauthorizedException("缺少或错误的" + TOKEN_HEADER + "请求头");
+        }
+    }
+
+    /**
+     * 去掉端口和路径后的主机名, IPv6地址去掉方括号
+     */
+    private static String hostOf(String authority) {
+        if (authority == null) {
+            return "";
+        }
+        int slash = authority.indexOf('/');
+        String host = slash >= 0 ? authority.substring(0, slash) : authority;
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            return end > 0 ? host.substring(1, end) : host;
+        }
+        int colon = host.indexOf(':');
+        return colon >= 0 ? host.substring(0, colon) : host;
+    }
+
+    private static boolean isLoopbackHost(String host) {
+        return "127.0.0.1".equals(host) || "::1".equals(host) || "localhost".equalsIgnoreCase(host);
+    }
+
+    /**
+     * 开始录制, 保存到 output-dir, 未指定文件名时以时间戳命名; 未指定麦克风时使用第一个设备, mic参数为空表示不使用麦克风
+     */
+    private CompletableFuture<String> start(Map<String, String> params) throws IOException {
+        Path dir = Paths.get(recordProperties.getControl().getOutputDir()).toAbsolutePath().normalize();
+        String output = resolveOutput(dir, params.get("output"), windowsScreenRecord.getVideoSuffix());
+        String mic = params.get("mic");
+        List<String> devices = deviceRegistry.getDevices();
+        if (mic == null) {
+            mic = devices.isEmpty() ? "" : devices.get(0);
+        } else if (!mic.isEmpty() && !devices.contains(mic)) {
+            throw new IllegalArgumentException("麦克风设备不存在: " + mic);
+        }
+        CaptureGeometry geometry = CaptureGeometry.parse(params.getOrDefault("region", recordProperties.getCaptureRegion()),
+                params.getOrDefault("size", recordProperties.getOutputSize()),
+                params.getOrDefault("scale", recordProperties.getScaleAlgorithm()));
+        RecordingSession session = windowsScreenRecord.newSession(output, mic, geometry);
+        Tracked tracked = new Tracked(session);
+        active.put(session.getId(), tracked);
+        session.addStateListener(state -> {
+            if (state == RecordingSession.State.FINISHED || state == RecordingSession.State.FAILED) {
+                active.remove(session.getId());
+                synchronized (finished) {
+                    finished.put(session.getId(), tracked);
+                }
+            }
+        });
+        logger.info("控制接口开始录制: {}, 麦克风: {}", output, mic);
+        return session.start().thenApply(v -> tracked.toJson(this));
+    }
+
+    /**
+     * 会话操作
+     */
+    private CompletableFuture<String> operate(Tracked tracked, String action, Map<String, String> params) {
+        RecordingSession session = tracked.session;
+        switch (action) {
+            case "mic":
+                String enabled = params.get("enabled");
+                if (!"true".equals(enabled) && !"false".equals(enabled)) {
+                    throw new IllegalArgumentException("enabled参数应为true或false");
+                }
+                return session.setMicrophoneEnabled(Boolean.parseBoolean(enabled)).thenApply(v -> tracked.toJson(this));
+            case "stop":
+                return session.stop().handle((video, e) -> {
+                    tracked.video = video;
+                    return tracked.fail(e, this);
+                });
+            case "finish":
+                String output;
+                try {
+                    output = resolveOutput(Paths.get(session.getOutput()).toAbsolutePath().getParent(), params.get("output"), "mp4");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return session.finish(output).handle((result, e) -> {
+                    tracked.result = result;
+                    return tracked.fail(e, this);
+                });
+            default:
+                throw new NotFoundException("不存在的操作: " + action);
+        }
+    }
+
+    /**
+     * 接口指定的文件名放到目录下, 未指定时以时间戳命名
+     *
+     * @param dir    保存目录
+     * @param name   不含路径的文件名, 扩展名可省略, 其余的点作为文件名的一部分
+     * @param suffix 文件扩展名
+     * @return 绝对路径
+     * @throws IllegalArgumentException 文件名不合法
+     * @throws IOException              目录无法创建
+     */
+    private static String resolveOutput(Path dir, String name, String suffix) throws IOException {
+        String base;
+        if (name == null || name.isEmpty()) {
+            base = String.valueOf(System.currentTimeMillis());
+        } else {
+            if (!FILE_NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("文件名只能包含文字、数字、下划线、连字符、空格和点, 不能包含路径: " + name);
+            }
+            base = suffix.equalsIgnoreCase(FileNameUtils.getExtension(name)) ? FileNameUtils.removeExtension(name) : name;
+        }
+        Files.createDirectories(dir);
+        return dir.resolve(base + "." + suffix).toString();
+    }
+
+    private Tracked find(String id) {
+        Tracked tracked = active.get(id);
+        if (tracked == null && finished != null) {
+            synchronized (finished) {
+                tracked = finished.get(id);
+            }
+        }
+        if (tracked != null) {
+            return tracked;
+        }
+        // 界面创建的会话只有实时状态
+        RecordingSession session = windowsScreenRecord.getSession(id);
+        if (session == null) {
+            throw new NotFoundException("会话不存在: " + id);
+        }
+        return new Tracked(session);
+    }
+
+    /**
+     * 全部未结束会话的状态, 缓存时长内直接返回上次生成的内容
+     */
+    private byte[] status() {
+        long now = System.nanoTime();
+        byte[] cached = statusCache;
+        if (cached != null && now - statusCacheNanos < TimeUnit.MILLISECONDS.toNanos(recordProperties.getControl().getStatusCacheMills())) {
+            return cached;
+        }
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"encoders\":{\"active\":").append(encoderScheduler.getActiveEncoders())
+                .append(",\"max\":").append(encoderScheduler.getMaxEncoders())
+                .append("},\"postProcess\":{\"queued\":").append(postProcessScheduler.getQueueDepth())
+                .append(",\"running\":").append(postProcessScheduler.getRunning())
+                .append(",\"limit\":").append(postProcessScheduler.getLimit())
+                .append("},\"sessions\":[");
+        boolean first = true;
+        for (RecordingSession session : windowsScreenRecord.getSessions()) {
+            Tracked tracked = active.get(session.getId());
+            json.append(first ? "" : ",").append((tracked != null ? tracked : new Tracked(session)).toJson(this));
+            first = false;
+        }
+        json.append("]}");
+        cached = json.toString().getBytes(StandardCharsets.UTF_8);
+        statusCache = cached;
+        statusCacheNanos = now;
+        return cached;
+    }
+
+    private byte[] devices() {
+        StringBuilder json = new StringBuilder("{\"discovered\":").append(deviceRegistry.isDiscovered()).append(",\"devices\":[");
+        List<String> devices = deviceRegistry.getDevices();
+        for (int i = 0; i < devices.size(); i++) {
+            json.append(i > 0 ? "," : "").append(quote(devices.get(i)));
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 录屏进程的编码进度
+     */
+    String encoderJson(RecordingSession session) {
+        FfmpegProgress progress = ffmpegRunner.getProgress(session.getVideoProcessName());
+        if (progress == null) {
+            return "null";
+        }
+        return "{\"frame\":" + progress.getFrame() + ",\"fps\":" + format(progress.getFps()) +
+                ",\"speed\":" + format(progress.getSpeed()) + ",\"bitrate\":" + format(progress.getBitrate()) +
+                ",\"dropFrames\":" + progress.getDropFrames() + ",\"dupFrames\":" + progress.getDupFrames() +
+                ",\"outTimeSeconds\":" + format(progress.getOutTimeMicros() / 1_000_000.0) +
+                ",\"totalSize\":" + progress.getTotalSize() + "}";
+    }
+
+    private void respondLater(HttpExchange exchange, int code, CompletableFuture<String> future) {
+        future.whenComplete((body, e) -> {
+            if (e != null) {
+                respond(exchange, statusCode(e), error(e));
+            } else {
+                respond(exchange, code, body.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    private void respond(HttpExchange exchange, int code, byte[] body) {
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(code, body.length);
+            out.write(body);
+        } catch (IOException e) {
+            logger.info("控制接口返回响应异常, 异常信息: {}", e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int statusCode(Throwable e) {
+        Throwable cause = unwrap(e);
+        if (cause instanceof UnauthorizedException) {
+            return 401;
+        }
+        if (cause instanceof ForbiddenException) {
+            return 403;
+        }
+        if (cause instanceof NotFoundException) {
+            return 404;
+        }
+        if (cause instanceof MethodNotAllowedException) {
+            return 405;
+        }
+        if (cause instanceof IllegalArgumentException) {
+            return 400;
+        }
+        if (cause instanceof IllegalStateException) {
+            return 409;
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return 503;
+        }
+        return 500;
+    }
+
+    private static byte[] error(Throwable e) {
+        Throwable cause = unwrap(e);
+        String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+        return ("{\"error\":" + quote(message) + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!expected.equals(method)) {
+            throw new MethodNotAllowedException("接口只支持" + expected);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int index = pair.indexOf('=');
+            String key = index >= 0 ? pair.substring(0, index) : pair;
+            String value = index >= 0 ? pair.substring(index + 1) : "";
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * 会话以及通过接口得到的视频文件和异常
+     */
+    private static class Tracked {
+
+        private final RecordingSession session;
+
+        private volatile String video;
+
+        private volatile String result;
+
+        private volatile String error;
+
+        Tracked(RecordingSession session) {
+            this.session = session;
+        }
+
+        /**
+         * 记录操作的异常, 异常继续抛出, 由调用方返回错误响应
+         */
+        String fail(Throwable e, RecordControlServer server) {
+            if (e != null) {
+                error = unwrap(e).getMessage();
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            return toJson(server);
+        }
+
+        String toJson(RecordControlServer server) {
+            return "{\"id\":" + quote(session.getId()) + ",\"state\":\"" + session.getState() +
+                    "\",\"output\":" + quote(session.getOutput()) + ",\"liveMix\":" + session.isLiveMix() +
+                    ",\"video\":" + quote(video) + ",\"result\":" + quote(result) + ",\"error\":" + quote(error) +
+                    ",\"encoder\":" + server.encoderJson(session) + "}";
+        }
+    }
+
+    private static class NotFoundException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    private static class MethodNotAllowedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MethodNotAllowedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class UnauthorizedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnauthorizedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class ForbiddenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ForbiddenException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cn.zack.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 录制线程池
+ * 录屏、录音、停止、切换麦克风、生成视频等操作都提交到这里执行, 不再为每次操作单独创建线程
+ * 每个录制会话长期占用录屏和录音两个线程, 其余为短暂的控制任务
+ * 多个会话同时录制时长任务数随会话数增长, 任务不排队, 直接交给空闲线程或新建线程, 控制任务不会排在长任务后面
+ *
+ * @author 张云龙
+ */
+@Configuration
+public class ExecutorConfig {
+
+    /**
+     * 线程数上限, 超出后提交的操作直接失败
+     */
+    private static final int MAX_THREADS = 64;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService recordExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "record-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 分片合成线程池
+     * 生成视频时每个分片的混音和音频编码作为一个 fork-join 任务, 并行度默认等于CPU核数, 多个会话同时生成视频时共享
+     * 合成是后台任务, 线程优先级低于录制线程
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool mergePool(RecordProperties recordProperties) {
+        int parallelism = recordProperties.getMergeParallelism() > 0
+                ? recordProperties.getMergeParallelism() : Runtime.getRuntime().availableProcessors();
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("merge-" + thread.getPoolIndex());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }, null, false);
+    }
+}
@@ -0,0 +1,21 @@
+package cn.zack.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 指标注册中心
+ * 桌面程序不引入actuator, 使用内存中的注册中心保存录制过程中的各项指标
+ *
+ * @author 张云龙
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+}
@@ -0,0 +1,1165 @@
+package cn.zack.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 录制相关配置, 对应application.yml中的record节点
+ *
+ * @author 张云龙
+ */
+@Component
+@ConfigurationProperties(prefix = "record")
+public class RecordProperties {
+
+    /**
+     * 麦克风实时混音模式
+     * 开启后麦克风作为录屏进程的一路输入, 通过音量门控实时混入系统声音, 停止录制后无需再合成
+     * 关闭后每次启用麦克风单独录制音频文件, 点击生成视频时再合并到视频中
+     */
+    private boolean liveMix = true;
+
+    /**
+     * 分片增量合并
+     * 开启后录制为时间戳连续的MPEG-TS分片, 每个分片关闭后立即追加到最终文件, 停止录制后只需追加最后一个分片
+     * 关闭后录制结束时才统一合并所有分片, 耗时随录制时长增长
+     */
+    private boolean incrementalFinalize = true;
+
+    /**
+     * 自适应编码
+     * 开启后根据编码速度和丢帧情况在分片边界调整 libx264 的 preset/crf/帧率
+     * 调整时需要重启录屏进程, 重启期间的画面会丢失, 时间轴上留出相应的间隔
+     */
+    private boolean adaptiveEncoder = true;
+
+    /**
+     * 静止画面可变帧率录制
+     * 开启后丢弃与上一帧几乎相同的画面, 适合幻灯片、写代码等长时间画面不变的场景, 默认关闭
+     */
+    private boolean idleVfr = false;
+
+    /**
+     * 同时运行的录屏编码进程上限
+     * 0表示按CPU核数自动计算, 每4个核一个编码进程, 至少一个
+     */
+    private int maxEncoders = 0;
+
+    /**
+     * 合成麦克风录音时同时处理的分片数量
+     * 0表示使用全部CPU核数
+     */
+    private int mergeParallelism = 0;
+
+    /**
+     * 合成麦克风录音时 amix 是否按输入数量归一化, 即系统声音和录音各取一半音量, 与改为预先混音前的合成结果一致
+     * 关闭后直接相加, 音量不再降低, 但系统声音和录音同时很响时可能削波
+     */
+    private boolean mixNormalize = true;
+
+    /**
+     * 预热麦克风, 仅在关闭实时混音时生效
+     * 开启后麦克风设备在开始录制时打开并持续录音, 启用/停用麦克风只记录门控时间点, 切换没有延迟, 整个录制只生成一个录音文件
+     * 关闭后每次启用麦克风启动一个新的录音进程, 设备打开前的声音会丢失
+     */
+    private boolean micPrewarm = false;
+
+    /**
+     * 后台刷新麦克风设备列表的间隔, 单位秒, 用于发现插拔的设备
+     * 0表示只在启动和打开设备下拉框时刷新
+     */
+    private int deviceRefreshSeconds = 30;
+
+    /**
+     * 停止录制后等待生成视频的时长, 单位分钟, 超时未生成视频的会话进入失败状态并移出会话列表, 下次启动时由录制日志恢复
+     * 0表示一直等待
+     */
+    private int stoppedSessionMinutes = 120;
+
+    /**
+     * ffmpeg可执行文件位置, Windows下为程序目录中的ffmpeg.exe, 其他系统可配置为PATH中的ffmpeg
+     */
+    private String ffmpegPath = "./ffmpeg";
+
+    /**
+     * 采集方式
+     * dshow: Windows下通过 screen-capture-recorder 和 virtual-audio-capturer 采集屏幕和系统声音
+     * x11: Linux下通过 x11grab 采集屏幕, 通过 PulseAudio 采集系统声音和麦克风
+     * synthetic: ffmpeg 的 testsrc/sine 合成画面和声音, 结果可重复, 用于在任意机器上压测分片、合并和混音
+     * robot: 通过 java.awt.Robot 截屏并以原始画面送入ffmpeg标准输入, 声音使用 record.robot.audio-backend 指定的采集方式
+     */
+    private String captureBackend = "dshow";
+
+    /**
+     * 采集区域, 格式为 x,y,宽,高, 为空时采集整个屏幕
+     * x11 和 robot 在采集阶段只读取区域内的像素, 其他采集方式在编码前裁剪
+     */
+    private String captureRegion = "";
+
+    /**
+     * 输出分辨率上限, 格式为 宽x高, 为空时保持采集分辨率, 只缩小不放大, 保持宽高比
+     */
+    private String outputSize = "";
+
+    /**
+     * 缩小画面的算法: bicubic, bilinear, fast_bilinear, area, lanczos, neighbor
+     */
+    private String scaleAlgorithm = "bicubic";
+
+    /**
+     * x11 采集配置
+     */
+    private X11 x11 = new X11();
+
+    /**
+     * 合成采集配置
+     */
+    private Synthetic synthetic = new Synthetic();
+
+    /**
+     * Robot 采集配置
+     */
+    private Robot robot = new Robot();
+
+    /**
+     * 低码率代理文件, 与主录制共用一次采集
+     */
+    private Proxy proxy = new Proxy();
+
+    /**
+     * 实时预览, 与主录制共用一次采集
+     */
+    private Preview preview = new Preview();
+
+    /**
+     * 麦克风录音的语音检测
+     */
+    private Vad vad = new Vad();
+
+    /**
+     * 录制结束后的后台任务调度
+     */
+    private PostProcess postProcess = new PostProcess();
+
+    /**
+     * 录屏进程经管道输出, 由应用切分分片并写入磁盘
+     */
+    private PipeWriter pipeWriter = new PipeWriter();
+
+    /**
+     * 本机控制接口
+     */
+    private Control control = new Control();
+
+    /**
+     * 编码参数基准测试配置
+     */
+    private Benchmark benchmark = new Benchmark();
+
+    public boolean isLiveMix() {
+        return liveMix;
+    }
+
+    public void setLiveMix(boolean liveMix) {
+        this.liveMix = liveMix;
+    }
+
+    public boolean isIncrementalFinalize() {
+        return incrementalFinalize;
+    }
+
+    public void setIncrementalFinalize(boolean incrementalFinalize) {
+        this.incrementalFinalize = incrementalFinalize;
+    }
+
+    public boolean isAdaptiveEncoder() {
+        return adaptiveEncoder;
+    }
+
+    public void setAdaptiveEncoder(boolean adaptiveEncoder) {
+        this.adaptiveEncoder = adaptiveEncoder;
+    }
+
+    public boolean isIdleVfr() {
+        return idleVfr;
+    }
+
+    public void setIdleVfr(boolean idleVfr) {
+        this.idleVfr = idleVfr;
+    }
+
+    public int getMaxEncoders() {
+        return maxEncoders;
+    }
+
+    public void setMaxEncoders(int maxEncoders) {
+        this.maxEncoders = maxEncoders;
+    }
+
+    public int getMergeParallelism() {
+        return mergeParallelism;
+    }
+
+    public void setMergeParallelism(int mergeParallelism) {
+        this.mergeParallelism = mergeParallelism;
+    }
+
+    public boolean isMixNormalize() {
+        return mixNormalize;
+    }
+
+    public void setMixNormalize(boolean mixNormalize) {
+        this.mixNormalize = mixNormalize;
+    }
+
+    public boolean isMicPrewarm() {
+        return micPrewarm;
+    }
+
+    public void setMicPrewarm(boolean micPrewarm) {
+        this.micPrewarm = micPrewarm;
+    }
+
+    public int getDeviceRefreshSeconds() {
+        return deviceRefreshSeconds;
+    }
+
+    public void setDeviceRefreshSeconds(int deviceRefreshSeconds) {
+        this.deviceRefreshSeconds = deviceRefreshSeconds;
+    }
+
+    public int getStoppedSessionMinutes() {
+        return stoppedSessionMinutes;
+    }
+
+    public void setStoppedSessionMinutes(int stoppedSessionMinutes) {
+        this.stoppedSessionMinutes = stoppedSessionMinutes;
+    }
+
+    public String getFfmpegPath() {
+        return ffmpegPath;
+    }
+
+    public void setFfmpegPath(String ffmpegPath) {
+        this.ffmpegPath = ffmpegPath;
+    }
+
+    public String getCaptureBackend() {
+        return captureBackend;
+    }
+
+    public void setCaptureBackend(String captureBackend) {
+        this.captureBackend = captureBackend;
+    }
+
+    public X11 getX11() {
+        return x11;
+    }
+
+    public void setX11(X11 x11) {
+        this.x11 = x11;
+    }
+
+    public String getCaptureRegion() {
+        return captureRegion;
+    }
+
+    public void setCaptureRegion(String captureRegion) {
+        this.captureRegion = captureRegion;
+    }
+
+    public String getOutputSize() {
+        return outputSize;
+    }
+
+    public void setOutputSize(String outputSize) {
+        this.outputSize = outputSize;
+    }
+
+    public String getScaleAlgorithm() {
+        return scaleAlgorithm;
+    }
+
+    public void setScaleAlgorithm(String scaleAlgorithm) {
+        this.scaleAlgorithm = scaleAlgorithm;
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    public void setProxy(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public Preview getPreview() {
+        return preview;
+    }
+
+    public void setPreview(Preview preview) {
+        this.preview = preview;
+    }
+
+    public Robot getRobot() {
+        return robot;
+    }
+
+    public void setRobot(Robot robot) {
+        this.robot = robot;
+    }
+
+    public Synthetic getSynthetic() {
+        return synthetic;
+    }
+
+    public void setSynthetic(Synthetic synthetic) {
+        this.synthetic = synthetic;
+    }
+
+    public Vad getVad() {
+        return vad;
+    }
+
+    public void setVad(Vad vad) {
+        this.vad = vad;
+    }
+
+    public PostProcess getPostProcess() {
+        return postProcess;
+    }
+
+    public void setPostProcess(PostProcess postProcess) {
+        this.postProcess = postProcess;
+    }
+
+    public PipeWriter getPipeWriter() {
+        return pipeWriter;
+    }
+
+    public void setPipeWriter(PipeWriter pipeWriter) {
+        this.pipeWriter = pipeWriter;
+    }
+
+    public Control getControl() {
+        return control;
+    }
+
+    public void setControl(Control control) {
+        this.control = control;
+    }
+
+    public Benchmark getBenchmark() {
+        return benchmark;
+    }
+
+    public void setBenchmark(Benchmark benchmark) {
+        this.benchmark = benchmark;
+    }
+
+    /**
+     * x11 采集配置
+     */
+    public static class X11 {
+
+        /**
+         * X显示器, 可带偏移, 例如 :0.0+1920,0 表示从第二块屏幕开始采集
+         */
+        private String display = ":0.0";
+
+        /**
+         * 采集区域大小, 例如 1920x1080, 为空时采集整个屏幕
+         */
+        private String videoSize = "";
+
+        /**
+         * 系统声音对应的 PulseAudio 监听源, 例如 alsa_output.pci-0000_00_1f.3.analog-stereo.monitor
+         */
+        private String systemAudio = "default";
+
+        public String getDisplay() {
+            return display;
+        }
+
+        public void setDisplay(String display) {
+            this.display = display;
+        }
+
+        public String getVideoSize() {
+            return videoSize;
+        }
+
+        public void setVideoSize(String videoSize) {
+            this.videoSize = videoSize;
+        }
+
+        public String getSystemAudio() {
+            return systemAudio;
+        }
+
+        public void setSystemAudio(String systemAudio) {
+            this.systemAudio = systemAudio;
+        }
+    }
+
+    /**
+     * 合成采集配置
+     */
+    public static class Synthetic {
+
+        private int width = 1920;
+
+        private int height = 1080;
+
+        private int frameRate = 30;
+
+        /**
+         * 画面运动程度
+         * static: 静止的彩条, 对应幻灯片等几乎不变的画面
+         * low: 只有计数器在变化的测试图, 对应写代码等局部变化的画面
+         * text: 逐行滚动的类文字画面, 对应滚动网页、日志等画面
+         * high: 滚动测试图叠加逐帧变化的噪点, 对应视频播放等全屏变化的画面, 编码压力最大
+         */
+        private String motion = "low";
+
+        /**
+         * 是否按实际帧率产生画面, 关闭后ffmpeg以最快速度生成, 用于测试编码吞吐上限
+         */
+        private boolean realtime = true;
+
+        public int getWidth() {
+            return width;
+        }
+
+        public void setWidth(int width) {
+            this.width = width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public void setHeight(int height) {
+            this.height = height;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        public void setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+        }
+
+        public String getMotion() {
+            return motion;
+        }
+
+        public void setMotion(String motion) {
+            this.motion = motion;
+        }
+
+        public boolean isRealtime() {
+            return realtime;
+        }
+
+        public void setRealtime(boolean realtime) {
+            this.realtime = realtime;
+        }
+    }
+
+    /**
+     * 低码率代理文件配置, 与视频保存在同一目录, 文件名带 _proxy 后缀
+     */
+    public static class Proxy {
+
+        private boolean enabled = false;
+
+        /**
+         * 分辨率上限, 宽x高
+         */
+        private String outputSize = "854x480";
+
+        private int frameRate = 15;
+
+        private String preset = "veryfast";
+
+        /**
+         * 视频码率, 同时作为码率上限
+         */
+        private String videoBitrate = "500k";
+
+        private String audioBitrate = "64k";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getOutputSize() {
+            return outputSize;
+        }
+
+        public void setOutputSize(String outputSize) {
+            this.outputSize = outputSize;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        public void setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+        }
+
+        public String getPreset() {
+            return preset;
+        }
+
+        public void setPreset(String preset) {
+            this.preset = preset;
+        }
+
+        public String getVideoBitrate() {
+            return videoBitrate;
+        }
+
+        public void setVideoBitrate(String videoBitrate) {
+            this.videoBitrate = videoBitrate;
+        }
+
+        public String getAudioBitrate() {
+            return audioBitrate;
+        }
+
+        public void setAudioBitrate(String audioBitrate) {
+            this.audioBitrate = audioBitrate;
+        }
+    }
+
+    /**
+     * 实时预览配置, 以 MJPEG 通过本机 UDP 端口发送, 界面接收后显示缩略图
+     */
+    public static class Preview {
+
+        private boolean enabled = false;
+
+        private int port = 19530;
+
+        /**
+         * 分辨率上限, 宽x高
+         */
+        private String outputSize = "320x180";
+
+        private int frameRate = 2;
+
+        /**
+         * JPEG质量, 2-31, 越小画质越好
+         */
+        private int quality = 8;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getOutputSize() {
+            return outputSize;
+        }
+
+        public void setOutputSize(String outputSize) {
+            this.outputSize = outputSize;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        public void setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        public void setQuality(int quality) {
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * Robot 采集配置
+     */
+    public static class Robot {
+
+        private int frameRate = 30;
+
+        /**
+         * 预先分配的画面缓冲区数量, 写入ffmpeg跟不上时最多积压的帧数
+         */
+        private int bufferPoolSize = 4;
+
+        /**
+         * 画面不变时仍发送一帧的间隔, 单位毫秒
+         */
+        private long heartbeatMills = 1000;
+
+        /**
+         * 系统声音和麦克风使用的采集方式
+         */
+        private String audioBackend = "dshow";
+
+        /**
+         * 以 --capture-benchmark 参数启动时的采集时长, 单位秒
+         */
+        private int benchmarkSeconds = 10;
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        public void setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+        }
+
+        public int getBufferPoolSize() {
+            return bufferPoolSize;
+        }
+
+        public void setBufferPoolSize(int bufferPoolSize) {
+            this.bufferPoolSize = bufferPoolSize;
+        }
+
+        public long getHeartbeatMills() {
+            return heartbeatMills;
+        }
+
+        public void setHeartbeatMills(long heartbeatMills) {
+            this.heartbeatMills = heartbeatMills;
+        }
+
+        public String getAudioBackend() {
+            return audioBackend;
+        }
+
+        public void setAudioBackend(String audioBackend) {
+            this.audioBackend = audioBackend;
+        }
+
+        public int getBenchmarkSeconds() {
+            return benchmarkSeconds;
+        }
+
+        public void setBenchmarkSeconds(int benchmarkSeconds) {
+            this.benchmarkSeconds = benchmarkSeconds;
+        }
+    }
+
+    /**
+     * 麦克风录音的语音检测配置
+     * 按帧计算能量, 超过门限的帧为有声, 前后各留出一段余量, 间隔很短的有声区间合并为一段
+     */
+    public static class Vad {
+
+        private boolean enabled = true;
+
+        /**
+         * 计算能量的帧长, 单位毫秒
+         */
+        private int frameMills = 20;
+
+        /**
+         * 有声的最低能量, 单位dBFS, 安静环境下底噪低于该值
+         */
+        private double thresholdDb = -45;
+
+        /**
+         * 有声能量至少高出底噪的分贝数, 嘈杂环境下底噪高于最低能量
+         */
+        private double marginDb = 10;
+
+        /**
+         * 有声区间之前保留的时长, 单位毫秒, 避免截掉起音
+         */
+        private long preRollMills = 200;
+
+        /**
+         * 有声区间之后保留的时长, 单位毫秒, 避免截掉尾音和字间停顿
+         */
+        private long hangoverMills = 400;
+
+        /**
+         * 间隔小于该值的有声区间合并为一段, 单位毫秒
+         */
+        private long minGapMills = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getFrameMills() {
+            return frameMills;
+        }
+
+        public void setFrameMills(int frameMills) {
+            this.frameMills = frameMills;
+        }
+
+        public double getThresholdDb() {
+            return thresholdDb;
+        }
+
+        public void setThresholdDb(double thresholdDb) {
+            this.thresholdDb = thresholdDb;
+        }
+
+        public double getMarginDb() {
+            return marginDb;
+        }
+
+        public void setMarginDb(double marginDb) {
+            this.marginDb = marginDb;
+        }
+
+        public long getPreRollMills() {
+            return preRollMills;
+        }
+
+        public void setPreRollMills(long preRollMills) {
+            this.preRollMills = preRollMills;
+        }
+
+        public long getHangoverMills() {
+            return hangoverMills;
+        }
+
+        public void setHangoverMills(long hangoverMills) {
+            this.hangoverMills = hangoverMills;
+        }
+
+        public long getMinGapMills() {
+            return minGapMills;
+        }
+
+        public void setMinGapMills(long minGapMills) {
+            this.minGapMills = minGapMills;
+        }
+    }
+
+    /**
+     * 后台任务调度配置
+     * 分片合并、录音合成、代理文件拼接、异常退出后的恢复等任务按优先级排队执行, 录制期间减少同时运行的任务数
+     */
+    public static class PostProcess {
+
+        /**
+         * 没有录制时同时运行的后台任务数
+         */
+        private int parallelism = 2;
+
+        /**
+         * 录制期间同时运行的后台任务数, 至少为1, 停止录制后的分片合并不会一直等到其他会话结束
+         */
+        private int recordingParallelism = 1;
+
+        /**
+         * 排队任务数上限, 超出后提交的任务直接失败
+         */
+        private int queueCapacity = 16;
+
+        /**
+         * 后台ffmpeg进程的nice值, 0为不调整; Windows下大于0时为低于正常, 不小于15时为空闲
+         */
+        private int niceness = 10;
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public int getRecordingParallelism() {
+            return recordingParallelism;
+        }
+
+        public void setRecordingParallelism(int recordingParallelism) {
+            this.recordingParallelism = recordingParallelism;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getNiceness() {
+            return niceness;
+        }
+
+        public void setNiceness(int niceness) {
+            this.niceness = niceness;
+        }
+    }
+
+    /**
+     * 分片写入配置
+     * 开启后录屏进程把MPEG-TS写到标准输出, 应用在关键帧处切分分片, 由单独的线程以大块顺序写入磁盘, 写入跟不上时停止读取, ffmpeg随之等待
+     */
+    public static class PipeWriter {
+
+        private boolean enabled = false;
+
+        /**
+         * 每次写入磁盘的块大小, 单位KB, 按4KB对齐
+         */
+        private int bufferKb = 1024;
+
+        /**
+         * 等待写入的块数量上限, 写满后不再读取ffmpeg的输出
+         */
+        private int queueBuffers = 8;
+
+        /**
+         * 刷盘策略: none 交给操作系统, segment 每个分片关闭时, interval 按间隔并在分片关闭时
+         */
+        private String fsync = "segment";
+
+        /**
+         * interval 策略的刷盘间隔, 单位毫秒
+         */
+        private long fsyncIntervalMills = 2000;
+
+        /**
+         * 剩余空间低于该值时告警, 单位MB
+         */
+        private long warnFreeMb = 2048;
+
+        /**
+         * 剩余空间低于该值时停止录制, 留出合并分片和生成视频的空间, 单位MB
+         */
+        private long stopFreeMb = 512;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getBufferKb() {
+            return bufferKb;
+        }
+
+        public void setBufferKb(int bufferKb) {
+            this.bufferKb = bufferKb;
+        }
+
+        public int getQueueBuffers() {
+            return queueBuffers;
+        }
+
+        public void setQueueBuffers(int queueBuffers) {
+            this.queueBuffers = queueBuffers;
+        }
+
+        public String getFsync() {
+            return fsync;
+        }
+
+        public void setFsync(String fsync) {
+            this.fsync = fsync;
+        }
+
+        public long getFsyncIntervalMills() {
+            return fsyncIntervalMills;
+        }
+
+        public void setFsyncIntervalMills(long fsyncIntervalMills) {
+            this.fsyncIntervalMills = fsyncIntervalMills;
+        }
+
+        public long getWarnFreeMb() {
+            return warnFreeMb;
+        }
+
+        public void setWarnFreeMb(long warnFreeMb) {
+            this.warnFreeMb = warnFreeMb;
+        }
+
+        public long getStopFreeMb() {
+            return stopFreeMb;
+        }
+
+        public void setStopFreeMb(long stopFreeMb) {
+            this.stopFreeMb = stopFreeMb;
+        }
+    }
+
+    /**
+     * 本机控制接口配置, 只监听本机回环地址, 供脚本批量录制
+     */
+    public static class Control {
+
+        /**
+         * 是否开启, 以 --headless 参数启动时总是开启
+         */
+        private boolean enabled = false;
+
+        private int port = 19527;
+
+        /**
+         * 未指定文件名时录制文件的保存目录
+         */
+        private String outputDir = "./recordings";
+
+        /**
+         * 全部会话状态的缓存时长, 单位毫秒, 时长内的轮询直接返回上次生成的内容
+         */
+        private long statusCacheMills = 100;
+
+        /**
+         * 保留已结束会话结果的数量, 结束后仍可查询最终视频文件
+         */
+        private int finishedHistory = 100;
+
+        /**
+         * 令牌文件, 不存在时启动后随机生成, 请求需在 X-Record-Token 请求头中带上其内容
+         */
+        private String tokenFile = "./cache/control-token";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getOutputDir() {
+            return outputDir;
+        }
+
+        public void setOutputDir(String outputDir) {
+            this.outputDir = outputDir;
+        }
+
+        public long getStatusCacheMills() {
+            return statusCacheMills;
+        }
+
+        public void setStatusCacheMills(long statusCacheMills) {
+            this.statusCacheMills = statusCacheMills;
+        }
+
+        public int getFinishedHistory() {
+            return finishedHistory;
+        }
+
+        public void setFinishedHistory(int finishedHistory) {
+            this.finishedHistory = finishedHistory;
+        }
+
+        public String getTokenFile() {
+            return tokenFile;
+        }
+
+        public void setTokenFile(String tokenFile) {
+            this.tokenFile = tokenFile;
+        }
+    }
+
+    /**
+     * 编码参数基准测试配置, 以 --benchmark 参数启动时按以下参数的全部组合依次编码
+     */
+    public static class Benchmark {
+
+        private List<String> presets = Arrays.asList("ultrafast", "superfast", "veryfast", "faster", "fast");
+
+        private List<Integer> crfs = Arrays.asList(23, 28);
+
+        private List<Integer> frameRates = Arrays.asList(15, 30);
+
+        /**
+         * libx264 的 tune, none 表示不指定
+         */
+        private List<String> tunes = Arrays.asList("none", "zerolatency", "stillimage");
+
+        /**
+         * libx264 线程数, 0为ffmpeg默认
+         */
+        private List<Integer> threads = Collections.singletonList(0);
+
+        /**
+         * 输出分辨率, native 表示保持测试画面的分辨率, 其余为 宽x高, 用于比较原始分辨率和缩小后的编码速度与文件大小
+         */
+        private List<String> outputSizes = Arrays.asList("native", "1280x720");
+
+        /**
+         * 测试画面, 取值同合成采集的画面运动程度: text 滚动文字, static 静止幻灯片, high 视频播放
+         */
+        private List<String> contents = Arrays.asList("text", "static", "high");
+
+        private int width = 1920;
+
+        private int height = 1080;
+
+        /**
+         * 每个组合编码的时长, 单位秒
+         */
+        private int durationSeconds = 10;
+
+        /**
+         * 结果输出目录
+         */
+        private String outputDir = "./benchmark";
+
+        /**
+         * 是否测量代理文件和实时预览每增加一路输出的CPU时间
+         */
+        private boolean fanOut = true;
+
+        /**
+         * 是否对比静止画面可变帧率与固定帧率录制的CPU时间和文件大小
+         */
+        private boolean idleVfr = true;
+
+        public List<String> getPresets() {
+            return presets;
+        }
+
+        public void setPresets(List<String> presets) {
+            this.presets = presets;
+        }
+
+        public List<Integer> getCrfs() {
+            return crfs;
+        }
+
+        public void setCrfs(List<Integer> crfs) {
+            this.crfs = crfs;
+        }
+
+        public List<Integer> getFrameRates() {
+            return frameRates;
+        }
+
+        public void setFrameRates(List<Integer> frameRates) {
+            this.frameRates = frameRates;
+        }
+
+        public List<String> getTunes() {
+            return tunes;
+        }
+
+        public void setTunes(List<String> tunes) {
+            this.tunes = tunes;
+        }
+
+        public List<Integer> getThreads() {
+            return threads;
+        }
+
+        public void setThreads(List<Integer> threads) {
+            this.threads = threads;
+        }
+
+        public List<String> getOutputSizes() {
+            return outputSizes;
+        }
+
+        public void setOutputSizes(List<String> outputSizes) {
+            this.outputSizes = outputSizes;
+        }
+
+        public List<String> getContents() {
+            return contents;
+        }
+
+        public void setContents(List<String> contents) {
+            this.contents = contents;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public void setWidth(int width) {
+            this.width = width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public void setHeight(int height) {
+            this.height = height;
+        }
+
+        public int getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        public void setDurationSeconds(int durationSeconds) {
+            this.durationSeconds = durationSeconds;
+        }
+
+        public boolean isFanOut() {
+            return fanOut;
+        }
+
+        public void setFanOut(boolean fanOut) {
+            this.fanOut = fanOut;
+        }
+
+        public boolean isIdleVfr() {
+            return idleVfr;
+        }
+
+        public void setIdleVfr(boolean idleVfr) {
+            this.idleVfr = idleVfr;
+        }
+
+        public String getOutputDir() {
+            return outputDir;
+        }
+
+        public void setOutputDir(String outputDir) {
+            this.outputDir = outputDir;
+        }
+    }
+}
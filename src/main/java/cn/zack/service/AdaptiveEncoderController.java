@@ -0,0 +1,153 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 自适应编码控制
+ * 根据录屏进程的编码速度和丢帧数, 在分片登记表登记一个分片时评估这一分片的编码情况:
+ * 编码跟不上实时或出现丢帧时降一档, 连续多个分片都有富余时升一档
+ * ffmpeg 运行中无法修改 libx264 参数, 调整档位由回调在分片刚关闭后重启录屏进程完成,
+ * 旧进程只多写出登记延迟内的一小段分片
+ *
+ * @author 张云龙
+ */
+public class AdaptiveEncoderController implements FfmpegProgressListener {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveEncoderController.class);
+
+    /**
+     * 编码速度低于该值认为跟不上实时
+     */
+    private static final double SLOW_SPEED = 0.97;
+
+    /**
+     * 编码速度高于该值认为有富余
+     */
+    private static final double HEADROOM_SPEED = 1.3;
+
+    /**
+     * 连续多少个富余的分片后升档, 避免在两档之间来回切换
+     */
+    private static final int HEADROOM_SEGMENTS = 3;
+
+    private final String processName;
+
+    /**
+     * 调整档位的回调, 参数为新档位和调整原因
+     */
+    private final BiConsumer<EncoderSettings, String> onChange;
+
+    private volatile EncoderSettings settings;
+
+    /**
+     * 最近一次进度中的编码帧数和丢帧数
+     */
+    private long frame = 0;
+    private long dropFrames = 0;
+    private double minSpeed = Double.MAX_VALUE;
+    private long segmentStartFrame = 0;
+    private long segmentStartDrop = 0;
+    private int headroomSegments = 0;
+
+    /**
+     * 已请求调整, 等待进程重启期间不再评估
+     */
+    private volatile boolean changePending = false;
+
+    /**
+     * @param processName 监听的进程名称
+     * @param settings    初始档位
+     * @param onChange    调整档位的回调
+     */
+    public AdaptiveEncoderController(String processName, EncoderSettings settings, BiConsumer<EncoderSettings, String> onChange) {
+        this.processName = processName;
+        this.settings = settings;
+        this.onChange = onChange;
+    }
+
+    public EncoderSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * 进程按新档位重启后调用, 重新开始统计
+     */
+    public synchronized void restarted() {
+        frame = 0;
+        dropFrames = 0;
+        minSpeed = Double.MAX_VALUE;
+        segmentStartFrame = 0;
+        segmentStartDrop = 0;
+        changePending = false;
+    }
+
+    @Override
+    public synchronized void onProgress(String name, FfmpegProgress progress) {
+        if (!processName.equals(name) || progress.isEnded() || changePending) {
+            return;
+        }
+        // ffmpeg刚启动时速度还不稳定, 跳过前几秒
+        if (progress.getOutTimeMicros() > 5_000_000L && progress.getSpeed() > 0) {
+            minSpeed = Math.min(minSpeed, progress.getSpeed());
+        }
+        frame = progress.getFrame();
+        dropFrames = progress.getDropFrames();
+    }
+
+    /**
+     * 分片登记表登记了一个分片, 以最近一次进度评估这一分片
+     * 进程重启时旧进程剩余的分片在重新开始统计前登记, 等待重启期间不评估
+     */
+    public synchronized void segmentClosed() {
+        if (changePending) {
+            return;
+        }
+        long frames = frame - segmentStartFrame;
+        long drops = dropFrames - segmentStartDrop;
+        if (frames <= 0) {
+            return;
+        }
+        double speed = minSpeed;
+        segmentStartFrame = frame;
+        segmentStartDrop = dropFrames;
+        minSpeed = Double.MAX_VALUE;
+        if (speed == Double.MAX_VALUE) {
+            return;
+        }
+        evaluate(speed, frames, drops);
+    }
+
+    /**
+     * 评估刚结束的分片
+     *
+     * @param speed  分片内的最低编码速度
+     * @param frames 分片内的编码帧数
+     * @param drops  分片内的丢帧数
+     */
+    private void evaluate(double speed, long frames, long drops) {
+        EncoderSettings next = settings;
+        String reason = null;
+        if (speed < SLOW_SPEED || drops > frames / 100) {
+            headroomSegments = 0;
+            next = settings.lower();
+            reason = String.format("编码跟不上, 最低速度%.2fx, 丢帧%d/%d", speed, drops, frames);
+        } else if (speed > HEADROOM_SPEED && drops == 0) {
+            if (++headroomSegments >= HEADROOM_SEGMENTS) {
+                headroomSegments = 0;
+                next = settings.higher();
+                reason = String.format("连续%d个分片编码有富余, 最低速度%.2fx", HEADROOM_SEGMENTS, speed);
+            }
+        } else {
+            headroomSegments = 0;
+        }
+        if (next == settings) {
+            return;
+        }
+        logger.info("调整编码档位: {} -> {}, 原因: {}", settings, next, reason);
+        settings = next;
+        changePending = true;
+        onChange.accept(next, reason);
+    }
+}
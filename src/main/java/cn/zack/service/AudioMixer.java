@@ -0,0 +1,378 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 麦克风音频混音
+ * 把所有录音片段按各自的偏移量放到同一条时间线上, 分块求和后输出一条 pcm 音轨, 合成视频时只需再混入这一路输入
+ * 录音片段通过内存映射读取, 混音过程只使用预先分配好的缓冲区, 内存占用与片段数量和录音时长无关
+ * 录音带有语音检测得到的有声区间时只读取和累加有声部分, 其余部分按静音处理
+ *
+ * @author 张云龙
+ */
+public class AudioMixer {
+    private static final Logger logger = LoggerFactory.getLogger(AudioMixer.class);
+
+    /**
+     * 每次内存映射的窗口大小, 超过2GB的片段也可以分段映射
+     */
+    private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 混音方式
+     */
+    public enum MixMode {
+        /**
+         * 直接求和, 超出16位范围时截断
+         */
+        SATURATE,
+        /**
+         * 按每个采样帧上同时发声的片段数量求平均, 不会爆音但音量会随片段数量变化
+         */
+        NORMALIZE
+    }
+
+    /**
+     * 每块处理的采样帧数
+     */
+    private final int blockFrames;
+
+    private final MixMode mixMode;
+
+    /**
+     * 录音文件的有声区间, 每项为相对录音开始的开始和结束毫秒值, 没有检测结果的录音全部混入
+     */
+    private final Map<String, List<long[]>> voiceActivity;
+
+    /**
+     * 实际读取的录音字节数
+     */
+    private final AtomicLong readBytes = new AtomicLong();
+
+    /**
+     * 不按有声区间裁剪时需要读取的录音字节数
+     */
+    private final AtomicLong clipBytes = new AtomicLong();
+
+    public AudioMixer() {
+        this(Collections.emptyMap());
+    }
+
+    public AudioMixer(Map<String, List<long[]>> voiceActivity) {
+        this(4096, MixMode.SATURATE, voiceActivity);
+    }
+
+    public AudioMixer(int blockFrames, MixMode mixMode) {
+        this(blockFrames, mixMode, Collections.emptyMap());
+    }
+
+    public AudioMixer(int blockFrames, MixMode mixMode, Map<String, List<long[]>> voiceActivity) {
+        this.blockFrames = blockFrames;
+        this.mixMode = mixMode;
+        this.voiceActivity = voiceActivity;
+    }
+
+    /**
+     * 混合一批录音片段
+     *
+     * @param audioMap 录音文件以及相对视频开始的偏移, 单位毫秒
+     * @param output   混音后的WAV文件
+     * @return 混音结果相对视频开始的偏移, 单位毫秒, 即最早一个片段的偏移
+     */
+    public long mix(Map<String, Long> audioMap, Path output) throws IOException {
+        long startNanos = System.nanoTime();
+        List<Clip> clips = new ArrayList<>();
+        try {
+            WavHeader format = openClips(audioMap, clips);
+            long firstFrame = clips.get(0).startFrame;
+            long lastFrame = clips.stream().mapToLong(c -> c.endFrame).max().getAsLong();
+
+            long readBefore = readBytes.get();
+            long clipBefore = clipBytes.get();
+            mixTimeline(clips, format, firstFrame, lastFrame, output);
+            long dataSize = (lastFrame - firstFrame) * format.getBlockAlign();
+            long costMills = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+            logger.info("混音{}个录音片段, 读取录音{}字节, 录音共{}字节, 输出{}字节, 耗时{}ms, {}MB/s", clips.size(),
+                    readBytes.get() - readBefore, clipBytes.get() - clipBefore, dataSize, costMills,
+                    dataSize * 1000 / costMills / 1024 / 1024);
+            return firstFrame * 1000 / format.getSampleRate();
+        } finally {
+            for (Clip clip : clips) {
+                clip.channel.close();
+            }
+        }
+    }
+
+    /**
+     * 只混合时间线上的一段窗口, 窗口内没有录音的部分补静音
+     * 跨越窗口边界的录音片段只取落在窗口内的部分, 相邻窗口的输出首尾相接即为完整的混音结果
+     * 预热麦克风的录音覆盖整个录制, 门控关闭的部分已清零, 窗口内全部为零时同样视为没有录音
+     *
+     * @param audioMap    录音文件以及相对视频开始的偏移, 单位毫秒
+     * @param startMills  窗口相对视频开始的位置, 单位毫秒
+     * @param endMills    窗口结束位置, 单位毫秒
+     * @param output      混音后的WAV文件, 时长与窗口相同
+     * @return 窗口内是否有录音, 没有时不保留文件
+     */
+    public boolean mixWindow(Map<String, Long> audioMap, long startMills, long endMills, Path output) throws IOException {
+        List<Clip> clips = new ArrayList<>();
+        try {
+            WavHeader format = openClips(audioMap, clips);
+            long firstFrame = startMills * format.getSampleRate() / 1000;
+            long lastFrame = endMills * format.getSampleRate() / 1000;
+            if (clips.stream().noneMatch(c -> c.overlaps(firstFrame, lastFrame))) {
+                return false;
+            }
+            if (!mixTimeline(clips, format, firstFrame, lastFrame, output)) {
+                Files.deleteIfExists(output);
+                return false;
+            }
+            return true;
+        } finally {
+            for (Clip clip : clips) {
+                clip.channel.close();
+            }
+        }
+    }
+
+    /**
+     * 打开所有录音片段并按开始位置排序, 所有片段必须是相同格式的16位pcm
+     *
+     * @return 录音格式
+     */
+    private WavHeader openClips(Map<String, Long> audioMap, List<Clip> clips) throws IOException {
+        WavHeader format = null;
+        for (Map.Entry<String, Long> entry : audioMap.entrySet()) {
+            FileChannel channel = FileChannel.open(Paths.get(entry.getKey()), StandardOpenOption.READ);
+            WavHeader header = WavHeader.read(channel);
+            if (header.getBitsPerSample() != 16) {
+                channel.close();
+                throw new IOException("仅支持16位pcm录音: " + entry.getKey());
+            }
+            if (format == null) {
+                format = header;
+            } else if (!format.sameFormat(header)) {
+                channel.close();
+                throw new IOException("录音格式不一致: " + entry.getKey());
+            }
+            long startFrame = Math.max(0, entry.getValue()) * header.getSampleRate() / 1000;
+            clips.add(new Clip(channel, header, startFrame, voiceActivity.get(entry.getKey())));
+        }
+        if (format == null) {
+            throw new IOException("没有需要混音的录音");
+        }
+        clips.sort(Comparator.comparingLong(c -> c.startFrame));
+        return format;
+    }
+
+    /**
+     * 按块遍历时间线, 每块只累加与之重叠的片段
+     * 归一化时按采样帧记录发声的片段数量, 片段在块中间开始或结束时除数随之变化, 不会在块边界出现音量跳变
+     *
+     * @return 混音结果中是否有非零采样
+     */
+    private boolean mixTimeline(List<Clip> clips, WavHeader format, long firstFrame, long lastFrame, Path output) throws IOException {
+        int channels = format.getChannels();
+        int blockAlign = format.getBlockAlign();
+        int[] accumulator = new int[blockFrames * channels];
+        int[] activeCounts = mixMode == MixMode.NORMALIZE ? new int[blockFrames] : null;
+        ByteBuffer outBuffer = ByteBuffer.allocateDirect(blockFrames * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer outSamples = outBuffer.asShortBuffer();
+        // 片段已按开始位置排序, 之前的片段都已结束时跳过
+        int firstActive = 0;
+        boolean audible = false;
+
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.position(WavHeader.begin(out, format.getFmt()));
+            long dataSize = 0;
+            for (long blockStart = firstFrame; blockStart < lastFrame; blockStart += blockFrames) {
+                int frames = (int) Math.min(blockFrames, lastFrame - blockStart);
+                long blockEnd = blockStart + frames;
+                Arrays.fill(accumulator, 0, frames * channels, 0);
+                if (activeCounts != null) {
+                    Arrays.fill(activeCounts, 0, frames, 0);
+                }
+
+                while (firstActive < clips.size() && clips.get(firstActive).endFrame <= blockStart) {
+                    firstActive++;
+                }
+                for (int i = firstActive; i < clips.size(); i++) {
+                    Clip clip = clips.get(i);
+                    if (clip.startFrame >= blockEnd) {
+                        break;
+                    }
+                    if (clip.endFrame <= blockStart) {
+                        continue;
+                    }
+                    long from = Math.max(blockStart, clip.startFrame);
+                    long to = Math.min(blockEnd, clip.endFrame);
+                    clipBytes.addAndGet((to - from) * blockAlign);
+                    long added = clip.addActive(accumulator, activeCounts, blockStart, from, to);
+                    readBytes.addAndGet(added * blockAlign);
+                }
+
+                outSamples.clear();
+                for (int i = 0; i < frames * channels; i++) {
+                    int active = activeCounts != null ? activeCounts[i / channels] : 1;
+                    int sample = active > 1 ? accumulator[i] / active : accumulator[i];
+                    audible |= sample != 0;
+                    outSamples.put((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+                }
+                outBuffer.clear().limit(frames * blockAlign);
+                while (outBuffer.hasRemaining()) {
+                    out.write(outBuffer);
+                }
+                dataSize += (long) frames * blockAlign;
+            }
+            WavHeader.finish(out, format.getFmt(), dataSize);
+            return audible;
+        }
+    }
+
+    /**
+     * 实际读取的录音字节数, 从创建起累计
+     */
+    public long getReadBytes() {
+        return readBytes.get();
+    }
+
+    /**
+     * 不按有声区间裁剪时需要读取的录音字节数, 从创建起累计
+     */
+    public long getClipBytes() {
+        return clipBytes.get();
+    }
+
+    /**
+     * 时间线上的一个录音片段
+     */
+    private static class Clip {
+        private final FileChannel channel;
+        private final WavHeader header;
+        private final long startFrame;
+        private final long endFrame;
+
+        /**
+         * 时间线上的有声区间, 每项为开始和结束采样帧, null表示整个片段
+         */
+        private final long[][] regions;
+
+        /**
+         * 之前的区间都已在当前块之前结束, 块按时间顺序处理, 只需向后移动
+         */
+        private int regionCursor;
+
+        private MappedByteBuffer window;
+        private long windowStart = -1;
+
+        private Clip(FileChannel channel, WavHeader header, long startFrame, List<long[]> regionsMills) {
+            this.channel = channel;
+            this.header = header;
+            this.startFrame = startFrame;
+            this.endFrame = startFrame + header.getDataSize() / header.getBlockAlign();
+            if (regionsMills == null) {
+                this.regions = null;
+            } else {
+                this.regions = new long[regionsMills.size()][];
+                for (int i = 0; i < regions.length; i++) {
+                    long[] region = regionsMills.get(i);
+                    regions[i] = new long[]{Math.min(endFrame, startFrame + region[0] * header.getSampleRate() / 1000),
+                            Math.min(endFrame, startFrame + region[1] * header.getSampleRate() / 1000)};
+                }
+            }
+        }
+
+        /**
+         * 时间线上的一段是否有需要混入的录音
+         */
+        private boolean overlaps(long from, long to) {
+            if (startFrame >= to || endFrame <= from) {
+                return false;
+            }
+            if (regions == null) {
+                return true;
+            }
+            for (long[] region : regions) {
+                if (region[0] < to && region[1] > from) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 把片段落在时间线[from, to)内的有声部分累加到当前块
+         *
+         * @param activeCounts 当前块每个采样帧上发声的片段数量, 累加的部分加一, 不需要时为null
+         * @param blockStart   当前块在时间线上的开始采样帧
+         * @return 累加的采样帧数
+         */
+        private long addActive(int[] accumulator, int[] activeCounts, long blockStart, long from, long to) throws IOException {
+            int channels = header.getChannels();
+            if (regions == null) {
+                addTo(accumulator, (int) (from - blockStart) * channels, from - startFrame, (int) (to - from) * channels);
+                countActive(activeCounts, blockStart, from, to);
+                return to - from;
+            }
+            while (regionCursor < regions.length && regions[regionCursor][1] <= from) {
+                regionCursor++;
+            }
+            long added = 0;
+            for (int i = regionCursor; i < regions.length && regions[i][0] < to; i++) {
+                long a = Math.max(from, regions[i][0]);
+                long b = Math.min(to, regions[i][1]);
+                if (a < b) {
+                    addTo(accumulator, (int) (a - blockStart) * channels, a - startFrame, (int) (b - a) * channels);
+                    countActive(activeCounts, blockStart, a, b);
+                    added += b - a;
+                }
+            }
+            return added;
+        }
+
+        private static void countActive(int[] activeCounts, long blockStart, long from, long to) {
+            if (activeCounts == null) {
+                return;
+            }
+            for (int i = (int) (from - blockStart); i < (int) (to - blockStart); i++) {
+                activeCounts[i]++;
+            }
+        }
+
+        /**
+         * 把片段中从frameOffset开始的sampleCount个采样累加到accumulator
+         */
+        private void addTo(int[] accumulator, int accumulatorOffset, long frameOffset, int sampleCount) throws IOException {
+            long bytePosition = frameOffset * header.getBlockAlign();
+            for (int i = 0; i < sampleCount; i++, bytePosition += 2) {
+                if (window == null || bytePosition < windowStart || bytePosition + 2 > windowStart + window.capacity()) {
+                    windowStart = bytePosition;
+                    long size = Math.min(MAP_WINDOW_BYTES, header.getDataSize() - bytePosition);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, header.getDataOffset() + windowStart, size);
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                }
+                accumulator[accumulatorOffset + i] += window.getShort((int) (bytePosition - windowStart));
+            }
+        }
+    }
+}
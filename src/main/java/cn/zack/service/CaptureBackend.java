@@ -0,0 +1,69 @@
+package cn.zack.service;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * 屏幕和声音采集方式
+ * 每种实现提供ffmpeg的输入参数, 录屏命令依次使用屏幕画面、系统声音、麦克风三路输入, 编码、分片、合并与采集方式无关
+ * 输入参数按空格拆分为命令行参数, 参数内部不能包含空格
+ *
+ * @author 张云龙
+ */
+public interface CaptureBackend {
+
+    /**
+     * 采集方式名称, 对应 record.capture-backend 配置
+     */
+    String getName();
+
+    /**
+     * 屏幕画面的输入参数, 作为录屏命令的第0路输入
+     *
+     * @param region 采集区域, null为整个屏幕; 不支持按区域采集的实现忽略该参数, 由录屏命令裁剪
+     */
+    String videoInput(Rectangle region);
+
+    /**
+     * 是否在采集阶段按区域采集, 只读取区域内的像素
+     */
+    default boolean supportsRegion() {
+        return false;
+    }
+
+    /**
+     * 系统声音的输入参数, 作为录屏命令的第1路输入
+     */
+    String systemAudioInput();
+
+    /**
+     * 麦克风的输入参数
+     *
+     * @param device 麦克风设备名称
+     */
+    String microphoneInput(String device);
+
+    /**
+     * 列出可用的麦克风设备
+     */
+    List<String> listMicrophones();
+
+    /**
+     * 画面是否由Java采集并通过标准输入送入ffmpeg
+     * 此时标准输入不能再发送交互命令, 实时混音的麦克风门控不可用
+     */
+    default boolean hasFrameFeed() {
+        return false;
+    }
+
+    /**
+     * 画面由Java采集并通过标准输入送入ffmpeg时, 为每个录屏进程创建新的画面来源
+     *
+     * @param processName 录屏进程名称
+     * @param region      采集区域, null为整个屏幕
+     * @return 画面来源, ffmpeg直接从设备采集时为null
+     */
+    default FrameFeed newFrameFeed(String processName, Rectangle region) {
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Robot 采集基准测试
+ * 以 --capture-benchmark 参数启动时, 按 record.robot 配置和 record.capture-region 截屏 benchmark-seconds 秒,
+ * 画面写入空输出, 只衡量采集本身,
+ * 统计实际帧率、跳过和丢弃的帧数、平均截屏耗时、每帧分配字节数和GC次数, 结果写入benchmark目录下的json
+ * 需要显示器, 在没有显示器的Linux上可通过 xvfb-run 运行
+ *
+ * @author 张云龙
+ */
+@Component
+public class CaptureBenchmark implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(CaptureBenchmark.class);
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private RobotCaptureBackend robotCaptureBackend;
+
+    @Autowired
+    private WindowsScreenRecord windowsScreenRecord;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("capture-benchmark")) {
+            return;
+        }
+        int exitCode = 0;
+        try {
+            measure();
+        } catch (Exception e) {
+            logger.info("采集基准测试异常, 异常信息: {}", e.getMessage());
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> code));
+    }
+
+    private void measure() throws Exception {
+        RecordProperties.Robot config = recordProperties.getRobot();
+        RobotScreenGrabber grabber = robotCaptureBackend.newFrameFeed("capture-benchmark",
+                windowsScreenRecord.getDefaultGeometry().getRegion());
+        grabber.start(OutputStream.nullOutputStream());
+        TimeUnit.SECONDS.sleep(config.getBenchmarkSeconds());
+        grabber.stop();
+        grabber.getDone().get(10, TimeUnit.SECONDS);
+
+        String json = "{\n" +
+                "  \"width\": " + grabber.getArea().width + ",\n" +
+                "  \"height\": " + grabber.getArea().height + ",\n" +
+                "  \"targetFps\": " + config.getFrameRate() + ",\n" +
+                "  \"bufferPoolSize\": " + config.getBufferPoolSize() + ",\n" +
+                "  \"seconds\": " + config.getBenchmarkSeconds() + ",\n" +
+                "  \"captureFps\": " + format(grabber.getCaptureFps()) + ",\n" +
+                "  \"sentFrames\": " + grabber.getSentFrames() + ",\n" +
+                "  \"unchangedFrames\": " + grabber.getUnchangedFrames() + ",\n" +
+                "  \"droppedFrames\": " + grabber.getDroppedFrames() + ",\n" +
+                "  \"averageGrabMills\": " + format(grabber.getAverageGrabMills()) + ",\n" +
+                "  \"allocatedBytesPerFrame\": " + grabber.getAllocatedBytesPerFrame() + ",\n" +
+                "  \"writeAllocatedBytes\": " + grabber.getWriteAllocatedBytes() + ",\n" +
+                "  \"gcCount\": " + grabber.getGcCount() + ",\n" +
+                "  \"gcMillis\": " + grabber.getGcMillis() + "\n" +
+                "}\n";
+        Path dir = Paths.get(recordProperties.getBenchmark().getOutputDir());
+        Files.createDirectories(dir);
+        Path file = dir.resolve("capture-" + System.currentTimeMillis() + ".json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        logger.info("采集基准测试结果: {}", file.toAbsolutePath());
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
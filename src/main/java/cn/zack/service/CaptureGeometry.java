@@ -0,0 +1,130 @@
+package cn.zack.service;
+
+import java.awt.Rectangle;
+
+/**
+ * 录制画面的采集区域和输出分辨率
+ * 采集方式支持按区域采集时在采集阶段裁剪, 否则在录屏命令中以 crop 滤镜作为第一个滤镜裁剪; 随后按输出分辨率缩小,
+ * 之后的去重、编码都在缩小后的画面上进行, 4K或多屏时编码开销随像素数下降
+ * 输出分辨率只缩小不放大, 保持宽高比并取偶数
+ *
+ * @author 张云龙
+ */
+public class CaptureGeometry {
+
+    /**
+     * 可选的缩放算法, 对应ffmpeg scale滤镜的flags
+     */
+    public static final String[] SCALE_ALGORITHMS = {"bicubic", "bilinear", "fast_bilinear", "area", "lanczos", "neighbor"};
+
+    /**
+     * 采集区域, null为整个屏幕
+     */
+    private final Rectangle region;
+
+    /**
+     * 输出分辨率上限, 0为保持采集分辨率
+     */
+    private final int outputWidth;
+
+    private final int outputHeight;
+
+    private final String scaleAlgorithm;
+
+    public CaptureGeometry(Rectangle region, int outputWidth, int outputHeight, String scaleAlgorithm) {
+        this.region = region;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.scaleAlgorithm = scaleAlgorithm;
+    }
+
+    /**
+     * 解析配置
+     *
+     * @param region         采集区域 x,y,宽,高, 为空时采集整个屏幕
+     * @param outputSize     输出分辨率 宽x高, 为空时保持采集分辨率
+     * @param scaleAlgorithm 缩放算法
+     * @throws IllegalArgumentException 格式错误
+     */
+    public static CaptureGeometry parse(String region, String outputSize, String scaleAlgorithm) {
+        Rectangle rectangle = null;
+        if (region != null && !region.trim().isEmpty()) {
+            String[] parts = region.split(",");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("采集区域格式应为 x,y,宽,高: " + region);
+            }
+            // yuv420p要求宽高为偶数
+            rectangle = new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()) & ~1, Integer.parseInt(parts[3].trim()) & ~1);
+            if (rectangle.x < 0 || rectangle.y < 0 || rectangle.width <= 0 || rectangle.height <= 0) {
+                throw new IllegalArgumentException("采集区域无效: " + region);
+            }
+        }
+        int width = 0;
+        int height = 0;
+        if (outputSize != null && !outputSize.trim().isEmpty()) {
+            String[] parts = outputSize.trim().toLowerCase().split("x");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("输出分辨率格式应为 宽x高: " + outputSize);
+            }
+            width = Integer.parseInt(parts[0].trim());
+            height = Integer.parseInt(parts[1].trim());
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("输出分辨率无效: " + outputSize);
+            }
+        }
+        boolean known = false;
+        for (String algorithm : SCALE_ALGORITHMS) {
+            known |= algorithm.equals(scaleAlgorithm);
+        }
+        if (!known) {
+            throw new IllegalArgumentException("不支持的缩放算法: " + scaleAlgorithm);
+        }
+        return new CaptureGeometry(rectangle, width, height, scaleAlgorithm);
+    }
+
+    /**
+     * 录屏命令中位于最前面的视频滤镜
+     *
+     * @param regionCaptured 采集方式是否已按区域采集
+     * @return 逗号分隔的滤镜, 不需要裁剪和缩放时为空字符串
+     */
+    public String toFilter(boolean regionCaptured) {
+        StringBuilder filter = new StringBuilder();
+        if (region != null && !regionCaptured) {
+            filter.append("crop=").append(region.width).append(':').append(region.height).append(':')
+                    .append(region.x).append(':').append(region.y);
+        }
+        if (outputWidth > 0) {
+            if (filter.length() > 0) {
+                filter.append(',');
+            }
+            // 命令按空格拆分且不经过shell, 表达式中的逗号用反斜杠转义
+            filter.append("scale=w=min(").append(outputWidth).append("\\,iw):h=min(").append(outputHeight)
+                    .append("\\,ih):force_original_aspect_ratio=decrease:force_divisible_by=2:flags=").append(scaleAlgorithm);
+        }
+        return filter.toString();
+    }
+
+    public Rectangle getRegion() {
+        return region;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public String getScaleAlgorithm() {
+        return scaleAlgorithm;
+    }
+
+    @Override
+    public String toString() {
+        return (region == null ? "全屏" : region.width + "x" + region.height + "+" + region.x + "," + region.y) +
+                (outputWidth > 0 ? " -> " + outputWidth + "x" + outputHeight + "/" + scaleAlgorithm : "");
+    }
+}
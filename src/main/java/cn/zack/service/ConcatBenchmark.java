@@ -0,0 +1,200 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * 录音分片合并基准测试
+ * 以 --concat-benchmark 参数启动时, 生成与麦克风录音相同格式(44.1kHz双声道pcm_s16le)、每个60秒的WAV分片,
+ * 分别用 WavConcatenator 和以往的 ffmpeg concat 合并, 比较耗时和吞吐, 并校验两者的音频数据长度一致
+ * 参数值为分片总大小, 单位MB, 默认4096, 超过4GB时两者都输出RF64; 12288以上时分片超过1000个, 可检验序号超过3位时的排序
+ * 每种方式运行两轮, 轮流先后执行以减少页缓存对结果的影响, 结果写入benchmark目录下的json
+ *
+ * @author 张云龙
+ */
+@Component
+public class ConcatBenchmark implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(ConcatBenchmark.class);
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int SHARD_SECONDS = 60;
+    private static final int ROUNDS = 2;
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private FfmpegRunner ffmpegRunner;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("concat-benchmark")) {
+            return;
+        }
+        int exitCode = 0;
+        try {
+            List<String> values = args.getOptionValues("concat-benchmark");
+            long totalMb = values.isEmpty() || values.get(0).isEmpty() ? 4096 : Long.parseLong(values.get(0));
+            measure(totalMb);
+        } catch (Exception e) {
+            logger.info("分片合并基准测试异常, 异常信息: {}", e.getMessage());
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> code));
+    }
+
+    private void measure(long totalMb) throws IOException, InterruptedException {
+        Path outputDir = Paths.get(recordProperties.getBenchmark().getOutputDir());
+        Path workDir = Files.createDirectories(outputDir.resolve("concat-work"));
+        long shardBytes = (long) SHARD_SECONDS * SAMPLE_RATE * CHANNELS * 2;
+        int shardCount = (int) Math.max(1, (totalMb * 1024 * 1024 + shardBytes - 1) / shardBytes);
+        try {
+            List<Path> shards = writeShards(workDir, shardCount, shardBytes);
+            Path javaOutput = workDir.resolve("java.wav");
+            Path ffmpegOutput = workDir.resolve("ffmpeg.wav");
+            double[] javaSeconds = new double[ROUNDS];
+            double[] ffmpegSeconds = new double[ROUNDS];
+            long javaDataSize = 0;
+            long ffmpegDataSize = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                boolean javaFirst = round % 2 == 0;
+                for (int i = 0; i < 2; i++) {
+                    if (javaFirst == (i == 0)) {
+                        Files.deleteIfExists(javaOutput);
+                        long start = System.nanoTime();
+                        WavConcatenator.concat(shards, javaOutput);
+                        javaSeconds[round] = (System.nanoTime() - start) / 1e9;
+                        javaDataSize = dataSize(javaOutput);
+                    } else {
+                        Files.deleteIfExists(ffmpegOutput);
+                        long start = System.nanoTime();
+                        int exitCode = ffmpegConcat(workDir, shards, ffmpegOutput);
+                        ffmpegSeconds[round] = (System.nanoTime() - start) / 1e9;
+                        if (exitCode != 0) {
+                            throw new IOException("ffmpeg合并失败, 退出码: " + exitCode);
+                        }
+                        ffmpegDataSize = dataSize(ffmpegOutput);
+                    }
+                }
+                logger.info("第{}轮: WavConcatenator {}s, ffmpeg concat {}s", round + 1, format(javaSeconds[round]),
+                        format(ffmpegSeconds[round]));
+            }
+            long totalBytes = shardBytes * shardCount;
+            double javaBest = Arrays.stream(javaSeconds).min().getAsDouble();
+            double ffmpegBest = Arrays.stream(ffmpegSeconds).min().getAsDouble();
+            logger.info("合并{}个分片共{}MB: WavConcatenator {}s ({}MB/s), ffmpeg concat {}s ({}MB/s), 音频数据长度{}", shardCount,
+                    totalBytes / 1024 / 1024, format(javaBest), format(totalBytes / 1024.0 / 1024 / javaBest), format(ffmpegBest),
+                    format(totalBytes / 1024.0 / 1024 / ffmpegBest), javaDataSize == ffmpegDataSize ? "一致" : "不一致");
+
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"shards\": ").append(shardCount).append(",\n  \"shardBytes\": ").append(shardBytes)
+                    .append(",\n  \"totalBytes\": ").append(totalBytes)
+                    .append(",\n  \"javaSeconds\": ").append(toJson(javaSeconds))
+                    .append(",\n  \"ffmpegSeconds\": ").append(toJson(ffmpegSeconds))
+                    .append(",\n  \"javaDataSize\": ").append(javaDataSize)
+                    .append(",\n  \"ffmpegDataSize\": ").append(ffmpegDataSize).append("\n}\n");
+            Path file = outputDir.resolve("concat-" + System.currentTimeMillis() + ".json");
+            Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+            logger.info("分片合并基准测试完成, 结果: {}", file.toAbsolutePath());
+        } finally {
+            try (Stream<Path> files = Files.list(workDir)) {
+                for (Path path : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            Files.deleteIfExists(workDir);
+        }
+    }
+
+    /**
+     * 按录制时的命名生成分片, 序号超过3位时与ffmpeg的%03d一样直接变长
+     * 内容为缓慢变化的锯齿波, 两种方式读取的数据量与真实录音相同
+     */
+    private List<Path> writeShards(Path workDir, int shardCount, long shardBytes) throws IOException {
+        ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        fmt.putShort((short) 1).putShort((short) CHANNELS).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * CHANNELS * 2)
+                .putShort((short) (CHANNELS * 2)).putShort((short) 16);
+        ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; block.hasRemaining(); i++) {
+            block.putShort((short) (i % 2048 - 1024));
+        }
+        List<Path> shards = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int index = 0; index < shardCount; index++) {
+            Path shard = workDir.resolve("shard_" + String.format("%03d", index) + ".wav");
+            try (FileChannel channel = FileChannel.open(shard, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.position(WavHeader.begin(channel, fmt.array()));
+                for (long written = 0; written < shardBytes; ) {
+                    block.clear().limit((int) Math.min(block.capacity(), shardBytes - written));
+                    while (block.hasRemaining()) {
+                        written += channel.write(block);
+                    }
+                }
+                WavHeader.finish(channel, fmt.array(), shardBytes);
+            }
+            shards.add(shard);
+        }
+        logger.info("生成{}个分片, 耗时{}ms", shardCount, (System.nanoTime() - startNanos) / 1_000_000);
+        return shards;
+    }
+
+    /**
+     * 以往的合并方式: 写出分片列表后由ffmpeg流复制合并, 超过4GB时输出RF64
+     */
+    private int ffmpegConcat(Path workDir, List<Path> shards, Path output) throws IOException, InterruptedException {
+        Path list = workDir.resolve("concat.txt");
+        StringBuilder content = new StringBuilder();
+        for (Path shard : shards) {
+            content.append(FfmpegCommand.concatEntry(shard.toAbsolutePath())).append('\n');
+        }
+        Files.write(list, content.toString().getBytes(StandardCharsets.UTF_8));
+        return ffmpegRunner.run("benchmark", Arrays.asList(recordProperties.getFfmpegPath(), "-y", "-f", "concat", "-safe", "0",
+                "-i", list.toString(), "-c", "copy", "-rf64", "auto", output.toString()), null);
+    }
+
+    private static long dataSize(Path wav) throws IOException {
+        try (FileChannel channel = FileChannel.open(wav, StandardOpenOption.READ)) {
+            return WavHeader.read(channel).getDataSize();
+        }
+    }
+
+    private static String toJson(double[] values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(format(values[i]));
+        }
+        return json.append(']').toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
@@ -0,0 +1,193 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 麦克风设备登记表
+ * 列出设备需要启动 ffmpeg 或 pactl 子进程, 耗时数百毫秒, 不能放在界面线程中执行
+ * Spring 启动时先读取上次保存的设备列表, 同时在后台线程中重新列出设备, 之后定期刷新以发现插拔的设备, 列表变化时通知订阅者并写回缓存
+ * 快速启动配置下其他bean延迟创建, 这里仍在启动时创建, 保证窗口显示前已开始列出设备
+ *
+ * @author 张云龙
+ */
+@Lazy(false)
+@Component
+public class DeviceRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceRegistry.class);
+
+    /**
+     * 设备列表缓存目录, 每种采集方式一个文件, 每行一个设备名称
+     */
+    private static final Path CACHE_DIR = Paths.get("cache");
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private WindowsScreenRecord windowsScreenRecord;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final List<Consumer<List<String>>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 当前设备列表, 整体替换
+     */
+    private volatile List<String> devices = Collections.emptyList();
+
+    /**
+     * 是否已完成过一次列出设备, 完成前的列表来自缓存
+     */
+    private volatile boolean discovered;
+
+    /**
+     * 正在列出设备时不再重复启动子进程
+     */
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        devices = readCache();
+        logger.info("从缓存读取{}个麦克风设备", devices.size());
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "device-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::refresh);
+        int interval = recordProperties.getDeviceRefreshSeconds();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 订阅设备列表变化, 回调在后台线程中执行, 更新界面时需切换到EDT
+     */
+    public void addListener(Consumer<List<String>> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<List<String>> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 当前设备列表, 不会阻塞, 还未列出设备时返回缓存中的列表
+     */
+    public List<String> getDevices() {
+        return devices;
+    }
+
+    public boolean isDiscovered() {
+        return discovered;
+    }
+
+    /**
+     * 在后台重新列出设备, 例如打开设备下拉框时
+     */
+    public void refreshAsync() {
+        if (!scheduler.isShutdown()) {
+            scheduler.execute(this::refresh);
+        }
+    }
+
+    /**
+     * 列出设备, 与当前列表不同时写回缓存并通知订阅者
+     */
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long startNanos = System.nanoTime();
+            List<String> latest = Collections.unmodifiableList(windowsScreenRecord.getCaptureBackend().listMicrophones());
+            long costNanos = System.nanoTime() - startNanos;
+            meterRegistry.timer("record.devices.discovery").record(costNanos, TimeUnit.NANOSECONDS);
+            if (!discovered) {
+                discovered = true;
+                logger.info("列出{}个麦克风设备, 耗时{}ms", latest.size(), costNanos / 1_000_000);
+            }
+            if (latest.equals(devices)) {
+                return;
+            }
+            logger.info("麦克风设备变化: {} -> {}", devices, latest);
+            devices = latest;
+            writeCache(latest);
+            for (Consumer<List<String>> listener : listeners) {
+                try {
+                    listener.accept(latest);
+                } catch (Exception e) {
+                    logger.info("设备列表回调异常, 异常信息: {}", e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            logger.info("列出麦克风设备异常, 异常信息: {}", e.getMessage());
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    private Path cacheFile() {
+        return CACHE_DIR.resolve("devices-" + recordProperties.getCaptureBackend() + ".txt");
+    }
+
+    private List<String> readCache() {
+        Path file = cacheFile();
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        try {
+            return Collections.unmodifiableList(Files.readAllLines(file, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.info("读取设备缓存异常, 异常信息: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 先写临时文件再替换, 写到一半退出也不会留下不完整的缓存
+     */
+    private void writeCache(List<String> latest) {
+        Path file = cacheFile();
+        try {
+            Files.createDirectories(CACHE_DIR);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, latest, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.info("写入设备缓存异常, 异常信息: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Windows DirectShow 采集
+ * 屏幕画面来自 screen-capture-recorder, 系统声音来自 virtual-audio-capturer, 两者由 init.bat 注册
+ *
+ * @author 张云龙
+ */
+@Component
+public class DshowCaptureBackend implements CaptureBackend {
+    private static final Logger logger = LoggerFactory.getLogger(DshowCaptureBackend.class);
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Override
+    public String getName() {
+        return "dshow";
+    }
+
+    /**
+     * screen-capture-recorder 的采集区域只能在注册表中配置, 这里总是采集整个屏幕
+     */
+    @Override
+    public String videoInput(Rectangle region) {
+        return "-f dshow -i video=\"screen-capture-recorder\"";
+    }
+
+    @Override
+    public String systemAudioInput() {
+        return "-f dshow -i audio=\"virtual-audio-capturer\"";
+    }
+
+    @Override
+    public String microphoneInput(String device) {
+        return "-f dshow -i audio=\"" + device + "\"";
+    }
+
+    /**
+     * 获取系统中所有的音频设备（麦克风）名称
+     */
+    @Override
+    public List<String> listMicrophones() {
+        logger.info("尝试获取音频设备列表");
+        List<String> devices = new ArrayList<>();
+        try {
+            // 构造 ffmpeg 命令：列出所有 DirectShow 设备
+            ProcessBuilder pb = new ProcessBuilder(
+                    recordProperties.getFfmpegPath(), "-list_devices", "true", "-f", "dshow", "-i", "dummy"
+            );
+            // ffmpeg 的设备列表信息通常输出到标准错误流
+            Process process = pb.start();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8)
+            );
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // 只取音频设备, 且排除dshow虚拟驱动
+                if (line.contains("(audio)") && !line.contains("(video)") && !line.contains("virtual-audio-capturer")) {
+                    // 设备名称一般位于双引号内
+                    int firstQuote = line.indexOf("\"");
+                    int lastQuote = line.indexOf("\"", firstQuote + 1);
+                    if (firstQuote != -1 && lastQuote != -1 && lastQuote > firstQuote) {
+                        String deviceName = line.substring(firstQuote + 1, lastQuote);
+                        logger.info("获取到音频设备: {}", deviceName);
+                        devices.add(deviceName);
+                    }
+                }
+            }
+            reader.close();
+            process.waitFor();
+        } catch (Exception ex) {
+            logger.info("获取音频设备异常, 异常信息: {}", ex.getMessage());
+        }
+        return devices;
+    }
+}
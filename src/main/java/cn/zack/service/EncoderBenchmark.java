@@ -0,0 +1,458 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 编码参数基准测试
+ * 以 --benchmark 参数启动时, 用合成画面按 preset、crf、帧率、tune、线程数、输出分辨率的全部组合依次编码,
+ * 编码参数与录屏使用同一个 EncoderSettings, 统计编码帧率、CPU时间、文件大小以及相对原画面的 PSNR/SSIM,
+ * 结果写入 csv 和 json, 并为每种画面推荐满足实时编码且画质达标的码率最低的组合, 用于为不同配置的机器选择默认编码参数
+ * 编码耗时包含 lavfi 生成画面的开销, CPU时间额外扣除只生成画面不编码时的CPU时间
+ * 开启 fan-out 测试时, 另外按默认编码档位测量代理文件和实时预览每增加一路输出的CPU时间
+ * 开启 idle-vfr 测试时, 另外按默认编码档位对比静止画面可变帧率与固定帧率录制的编码帧数、CPU时间和文件大小
+ *
+ * @author 张云龙
+ */
+@Component
+public class EncoderBenchmark implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(EncoderBenchmark.class);
+
+    /**
+     * 编码速度达到该值才认为可以实时录制, 留出采集和系统负载的余量
+     */
+    private static final double REALTIME_SPEED = 1.2;
+
+    /**
+     * SSIM达到该值认为画质达标, 不同preset下相同crf的码率不同, 只比较SSIM会偏向码率最高的组合
+     */
+    private static final double ACCEPTABLE_SSIM = 0.95;
+
+    private static final Pattern BENCH = Pattern.compile("bench: utime=([\\d.]+)s stime=([\\d.]+)s rtime=([\\d.]+)s");
+    private static final Pattern PSNR = Pattern.compile("PSNR .*average:([\\d.]+|inf)");
+    private static final Pattern SSIM = Pattern.compile("SSIM .*All:([\\d.]+)");
+    private static final Pattern FRAME = Pattern.compile("frame=\\s*(\\d+)");
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private FfmpegRunner ffmpegRunner;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("benchmark")) {
+            return;
+        }
+        int exitCode = 0;
+        try {
+            runAll();
+        } catch (Exception e) {
+            logger.info("编码基准测试异常, 异常信息: {}", e.getMessage());
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> code));
+    }
+
+    /**
+     * 运行全部组合并输出结果
+     */
+    private void runAll() throws IOException, InterruptedException {
+        RecordProperties.Benchmark config = recordProperties.getBenchmark();
+        Path outputDir = Paths.get(config.getOutputDir());
+        Files.createDirectories(outputDir);
+        List<Result> results = new ArrayList<>();
+        // 只生成画面不编码的CPU时间, key为画面+帧率
+        Map<String, double[]> baselines = new HashMap<>();
+        for (String content : config.getContents()) {
+            for (int frameRate : config.getFrameRates()) {
+                baselines.put(content + "@" + frameRate, measureSource(content, frameRate));
+                for (String preset : config.getPresets()) {
+                    for (String tune : config.getTunes()) {
+                        for (int crf : config.getCrfs()) {
+                            for (int threads : config.getThreads()) {
+                                for (String outputSize : config.getOutputSizes()) {
+                                    EncoderSettings settings = new EncoderSettings(-1, preset, crf, frameRate,
+                                            "none".equals(tune) ? null : tune);
+                                    Result result = measure(outputDir, content, settings, threads, outputSize,
+                                            baselines.get(content + "@" + frameRate));
+                                    results.add(result);
+                                    logger.info("基准测试 {} {} 线程{} 输出{}: {}fps, 速度{}x, CPU{}s, {}KB, PSNR {}, SSIM {}", content,
+                                            settings, threads, outputSize, format(result.encodeFps), format(result.speed),
+                                            format(result.netCpuSeconds), result.sizeBytes / 1024, format(result.psnr),
+                                            String.format(Locale.ROOT, "%.4f", result.ssim));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        String name = "encoder-" + System.currentTimeMillis();
+        Files.write(outputDir.resolve(name + ".csv"), toCsv(results).getBytes(StandardCharsets.UTF_8));
+        Files.write(outputDir.resolve(name + ".json"), toJson(results).getBytes(StandardCharsets.UTF_8));
+        logger.info("编码基准测试完成, 共{}个组合, 结果: {}", results.size(), outputDir.resolve(name + ".csv").toAbsolutePath());
+        recommend(results);
+        if (config.isFanOut()) {
+            measureFanOut(outputDir);
+        }
+        if (config.isIdleVfr()) {
+            measureIdleVfr(outputDir);
+        }
+    }
+
+    /**
+     * 可变帧率与固定帧率录制的开销对比
+     * 按录屏的默认编码档位, 每种画面分别以固定帧率和可变帧率编码合成画面, 比较编码帧数、CPU时间和文件大小,
+     * 静止画面体现可变帧率的节省, 持续变化的画面体现去重滤镜本身的开销
+     */
+    private void measureIdleVfr(Path outputDir) throws IOException, InterruptedException {
+        RecordProperties.Benchmark config = recordProperties.getBenchmark();
+        EncoderSettings settings = EncoderSettings.defaults();
+        Path output = outputDir.resolve("idle-vfr.mp4");
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(",\n  \"settings\": \"").append(settings).append("\",\n  \"durationSeconds\": ")
+                .append(config.getDurationSeconds()).append(",\n  \"results\": [\n");
+        List<String> contents = config.getContents();
+        for (int c = 0; c < contents.size(); c++) {
+            String content = contents.get(c);
+            String source = SyntheticCaptureBackend.videoSource(content, config.getWidth(), config.getHeight(), settings.getFrameRate());
+            // 下标0为固定帧率, 1为可变帧率; 每项为编码帧数, CPU时间, 文件大小
+            double[][] measured = new double[2][];
+            for (int vfr = 0; vfr < 2; vfr++) {
+                FfmpegCommand command = new FfmpegCommand(recordProperties.getFfmpegPath()).options("-benchmark -y" +
+                        " -t " + config.getDurationSeconds() + " -f lavfi -i " + source +
+                        " -t " + config.getDurationSeconds() + " -f lavfi -i sine=frequency=440:sample_rate=44100 " +
+                        settings.toEncoderArgs(vfr == 1, config.getDurationSeconds(), 0)).arg(output.toString());
+                double[] bench = new double[3];
+                long[] frames = new long[1];
+                int exitCode = ffmpegRunner.run("benchmark", command.toList(), line -> {
+                    parseBench(line, bench);
+                    Matcher frame = FRAME.matcher(line);
+                    if (frame.find()) {
+                        frames[0] = Long.parseLong(frame.group(1));
+                    }
+                });
+                if (exitCode != 0) {
+                    throw new IOException("可变帧率测试编码失败, 退出码: " + exitCode);
+                }
+                measured[vfr] = new double[]{frames[0], bench[0] + bench[1], Files.size(output)};
+            }
+            double[] constant = measured[0];
+            double[] idle = measured[1];
+            logger.info("可变帧率测试 {}: 编码{}帧/{}帧, CPU{}s/{}s, 文件{}KB/{}KB (固定帧率/可变帧率), CPU节省{}%, 文件节省{}%", content,
+                    (long) constant[0], (long) idle[0], format(constant[1]), format(idle[1]), (long) constant[2] / 1024,
+                    (long) idle[2] / 1024, format(saving(constant[1], idle[1])), format(saving(constant[2], idle[2])));
+            json.append("    {\"content\": \"").append(content)
+                    .append("\", \"constantFrames\": ").append((long) constant[0]).append(", \"vfrFrames\": ").append((long) idle[0])
+                    .append(", \"constantCpuSeconds\": ").append(format(constant[1])).append(", \"vfrCpuSeconds\": ").append(format(idle[1]))
+                    .append(", \"constantBytes\": ").append((long) constant[2]).append(", \"vfrBytes\": ").append((long) idle[2])
+                    .append(", \"cpuSavingPercent\": ").append(format(saving(constant[1], idle[1])))
+                    .append(", \"bytesSavingPercent\": ").append(format(saving(constant[2], idle[2]))).append('}')
+                    .append(c + 1 < contents.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.deleteIfExists(output);
+        Path file = outputDir.resolve("idle-vfr-" + System.currentTimeMillis() + ".json");
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        logger.info("可变帧率测试完成, 结果: {}", file.toAbsolutePath());
+    }
+
+    private static double saving(double constant, double idle) {
+        return constant > 0 ? (constant - idle) * 100 / constant : 0;
+    }
+
+    /**
+     * 一次采集扇出到多路输出时每增加一路的CPU开销
+     * 按录屏的默认编码档位依次编码: 只有主录制、增加代理文件、再增加实时预览, 与前一次的CPU时间之差即为新增一路的开销
+     * 预览发往配置的UDP端口, 测试时没有接收方, 与录制时未打开窗口的情况相同
+     */
+    private void measureFanOut(Path outputDir) throws IOException, InterruptedException {
+        RecordProperties.Benchmark config = recordProperties.getBenchmark();
+        EncoderSettings settings = EncoderSettings.defaults();
+        String[] outputs = {"master", "proxy", "preview"};
+        Path master = outputDir.resolve("fanout.mp4");
+        Path proxyPath = outputDir.resolve("fanout_proxy.ts");
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(",\n  \"settings\": \"").append(settings).append("\",\n  \"results\": [\n");
+        List<String> contents = config.getContents();
+        for (int c = 0; c < contents.size(); c++) {
+            String content = contents.get(c);
+            String source = SyntheticCaptureBackend.videoSource(content, config.getWidth(), config.getHeight(), settings.getFrameRate());
+            double previousCpu = 0;
+            json.append("    {\"content\": \"").append(content).append("\", \"outputs\": [");
+            for (int i = 0; i < outputs.length; i++) {
+                OutputFanOut fanOut = new OutputFanOut(i >= 1 ? enabledProxy() : new RecordProperties.Proxy(),
+                        i >= 2 ? enabledPreview() : new RecordProperties.Preview(), recordProperties.getScaleAlgorithm());
+                FfmpegCommand command = new FfmpegCommand(recordProperties.getFfmpegPath()).options("-benchmark -y" +
+                        " -t " + config.getDurationSeconds() + " -f lavfi -i " + source +
+                        " -t " + config.getDurationSeconds() + " -f lavfi -i sine=frequency=440:sample_rate=44100");
+                fanOut.appendArgs(command, settings, false, config.getDurationSeconds(), 0, "", "", "",
+                        Collections.singletonList(master.toString()), proxyPath.toString());
+                double[] bench = new double[3];
+                int exitCode = ffmpegRunner.run("benchmark", command.toList(), line -> parseBench(line, bench));
+                double cpu = bench[0] + bench[1];
+                double extra = i == 0 ? cpu : cpu - previousCpu;
+                previousCpu = cpu;
+                logger.info("扇出测试 {} {}: 退出码{}, CPU{}s, 新增一路CPU{}s, 速度{}x", content, outputs[i], exitCode, format(cpu),
+                        format(extra), format(bench[2] > 0 ? config.getDurationSeconds() / bench[2] : 0));
+                json.append(i == 0 ? "\n" : ",\n").append("      {\"output\": \"").append(outputs[i])
+                        .append("\", \"exitCode\": ").append(exitCode).append(", \"cpuSeconds\": ").append(format(cpu))
+                        .append(", \"extraCpuSeconds\": ").append(format(extra))
+                        .append(", \"wallSeconds\": ").append(format(bench[2])).append('}');
+            }
+            json.append("\n    ]}").append(c + 1 < contents.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.deleteIfExists(master);
+        Files.deleteIfExists(proxyPath);
+        Path file = outputDir.resolve("fanout-" + System.currentTimeMillis() + ".json");
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        logger.info("扇出测试完成, 结果: {}", file.toAbsolutePath());
+    }
+
+    /**
+     * 按配置的代理文件参数开启代理文件
+     */
+    private RecordProperties.Proxy enabledProxy() {
+        RecordProperties.Proxy config = recordProperties.getProxy();
+        RecordProperties.Proxy proxy = new RecordProperties.Proxy();
+        proxy.setEnabled(true);
+        proxy.setOutputSize(config.getOutputSize());
+        proxy.setFrameRate(config.getFrameRate());
+        proxy.setPreset(config.getPreset());
+        proxy.setVideoBitrate(config.getVideoBitrate());
+        proxy.setAudioBitrate(config.getAudioBitrate());
+        return proxy;
+    }
+
+    /**
+     * 按配置的实时预览参数开启实时预览
+     */
+    private RecordProperties.Preview enabledPreview() {
+        RecordProperties.Preview config = recordProperties.getPreview();
+        RecordProperties.Preview preview = new RecordProperties.Preview();
+        preview.setEnabled(true);
+        preview.setPort(config.getPort());
+        preview.setOutputSize(config.getOutputSize());
+        preview.setFrameRate(config.getFrameRate());
+        preview.setQuality(config.getQuality());
+        return preview;
+    }
+
+    /**
+     * 只生成画面不编码, 得到画面生成本身的CPU时间
+     *
+     * @return 用户态CPU时间, 内核态CPU时间, 耗时, 单位秒
+     */
+    private double[] measureSource(String content, int frameRate) throws IOException, InterruptedException {
+        RecordProperties.Benchmark config = recordProperties.getBenchmark();
+        FfmpegCommand command = new FfmpegCommand(recordProperties.getFfmpegPath()).options("-benchmark -t " +
+                config.getDurationSeconds() + " -f lavfi -i " +
+                SyntheticCaptureBackend.videoSource(content, config.getWidth(), config.getHeight(), frameRate) + " -f null -");
+        double[] bench = new double[3];
+        ffmpegRunner.run("benchmark", command.toList(), line -> parseBench(line, bench));
+        return bench;
+    }
+
+    /**
+     * 编码一个组合, 再与原画面比较画质
+     * 缩小分辨率时与录屏使用同一个缩放滤镜, 画质与同样缩小后的原画面比较, 只反映编码损失
+     */
+    private Result measure(Path outputDir, String content, EncoderSettings settings, int threads, String outputSize, double[] baseline)
+            throws IOException, InterruptedException {
+        RecordProperties.Benchmark config = recordProperties.getBenchmark();
+        String scale = CaptureGeometry.parse("", "native".equals(outputSize) ? "" : outputSize,
+                recordProperties.getScaleAlgorithm()).toFilter(true);
+        String source = SyntheticCaptureBackend.videoSource(content, config.getWidth(), config.getHeight(), settings.getFrameRate());
+        Path output = outputDir.resolve("benchmark.mp4");
+        Result result = new Result(content, settings, threads, outputSize);
+
+        // 与录屏相同的编码参数, 加上合成的系统声音
+        FfmpegCommand encodeCommand = new FfmpegCommand(recordProperties.getFfmpegPath()).options("-benchmark -y" +
+                " -t " + config.getDurationSeconds() + " -f lavfi -i " + source +
+                " -t " + config.getDurationSeconds() + " -f lavfi -i sine=frequency=440:sample_rate=44100 " +
+                settings.toEncoderArgs(false, config.getDurationSeconds(), threads, scale)).arg(output.toString());
+        double[] bench = new double[3];
+        result.exitCode = ffmpegRunner.run("benchmark", encodeCommand.toList(), line -> parseBench(line, bench));
+        if (result.exitCode != 0) {
+            return result;
+        }
+        result.frames = (long) config.getDurationSeconds() * settings.getFrameRate();
+        result.wallSeconds = bench[2];
+        result.encodeFps = bench[2] > 0 ? result.frames / bench[2] : 0;
+        result.speed = bench[2] > 0 ? config.getDurationSeconds() / bench[2] : 0;
+        result.cpuSeconds = bench[0] + bench[1];
+        result.netCpuSeconds = Math.max(0, result.cpuSeconds - baseline[0] - baseline[1]);
+        result.sizeBytes = Files.size(output);
+        result.bitrateKbps = result.sizeBytes * 8 / 1000.0 / config.getDurationSeconds();
+
+        // 编码结果与重新生成的原画面逐帧比较
+        FfmpegCommand qualityCommand = new FfmpegCommand(recordProperties.getFfmpegPath()).arg("-i").arg(output.toString())
+                .options("-t " + config.getDurationSeconds() + " -f lavfi -i " + source +
+                        " -lavfi [0:v]format=yuv420p,split[e1][e2];[1:v]" + (scale.isEmpty() ? "" : scale + ",") +
+                        "format=yuv420p,split[r1][r2];[e1][r1]psnr;[e2][r2]ssim -f null -");
+        double[] quality = new double[2];
+        ffmpegRunner.run("benchmark", qualityCommand.toList(), line -> {
+            Matcher psnr = PSNR.matcher(line);
+            if (psnr.find()) {
+                quality[0] = "inf".equals(psnr.group(1)) ? Double.POSITIVE_INFINITY : Double.parseDouble(psnr.group(1));
+            }
+            Matcher ssim = SSIM.matcher(line);
+            if (ssim.find()) {
+                quality[1] = Double.parseDouble(ssim.group(1));
+            }
+        });
+        result.psnr = quality[0];
+        result.ssim = quality[1];
+        Files.deleteIfExists(output);
+        return result;
+    }
+
+    private void parseBench(String line, double[] bench) {
+        Matcher matcher = BENCH.matcher(line);
+        if (matcher.find()) {
+            bench[0] = Double.parseDouble(matcher.group(1));
+            bench[1] = Double.parseDouble(matcher.group(2));
+            bench[2] = Double.parseDouble(matcher.group(3));
+        }
+    }
+
+    /**
+     * 每种画面在满足实时编码的组合中选画质达标且码率最低的, 都不达标时选SSIM最高的
+     */
+    private void recommend(List<Result> results) {
+        for (String content : recordProperties.getBenchmark().getContents()) {
+            Result best = null;
+            for (Result result : results) {
+                if (!result.content.equals(content) || result.exitCode != 0 || result.speed < REALTIME_SPEED) {
+                    continue;
+                }
+                if (best == null || isBetter(result, best)) {
+                    best = result;
+                }
+            }
+            if (best == null) {
+                logger.info("画面{}没有可以实时编码的组合", content);
+            } else {
+                logger.info("画面{}推荐: {} 线程{} 输出{}, 速度{}x, SSIM {}, 码率{}kbps", content, best.settings, best.threads, best.outputSize,
+                        format(best.speed), String.format(Locale.ROOT, "%.4f", best.ssim), format(best.bitrateKbps));
+            }
+        }
+    }
+
+    private boolean isBetter(Result result, Result best) {
+        boolean acceptable = result.ssim >= ACCEPTABLE_SSIM;
+        boolean bestAcceptable = best.ssim >= ACCEPTABLE_SSIM;
+        if (acceptable != bestAcceptable) {
+            return acceptable;
+        }
+        return acceptable ? result.bitrateKbps < best.bitrateKbps : result.ssim > best.ssim;
+    }
+
+    private String toCsv(List<Result> results) {
+        StringBuilder csv = new StringBuilder("content,preset,tune,crf,frame_rate,threads,output_size,exit_code,frames,wall_seconds,encode_fps,speed," +
+                "cpu_seconds,net_cpu_seconds,size_bytes,bitrate_kbps,psnr,ssim\n");
+        for (Result r : results) {
+            csv.append(r.content).append(',').append(r.settings.getPreset()).append(',')
+                    .append(r.settings.getTune() == null ? "" : r.settings.getTune()).append(',')
+                    .append(r.settings.getCrf()).append(',').append(r.settings.getFrameRate()).append(',')
+                    .append(r.threads).append(',').append(r.outputSize).append(',').append(r.exitCode).append(',').append(r.frames).append(',')
+                    .append(format(r.wallSeconds)).append(',').append(format(r.encodeFps)).append(',')
+                    .append(format(r.speed)).append(',').append(format(r.cpuSeconds)).append(',')
+                    .append(format(r.netCpuSeconds)).append(',').append(r.sizeBytes).append(',')
+                    .append(format(r.bitrateKbps)).append(',').append(format(r.psnr)).append(',')
+                    .append(String.format(Locale.ROOT, "%.5f", r.ssim)).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * json中带上机器信息, 不同配置机器的结果可以放在一起比较
+     */
+    private String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"machine\": {\"cores\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(", \"os\": \"").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch"))
+                .append("\", \"width\": ").append(recordProperties.getBenchmark().getWidth())
+                .append(", \"height\": ").append(recordProperties.getBenchmark().getHeight())
+                .append(", \"durationSeconds\": ").append(recordProperties.getBenchmark().getDurationSeconds()).append("},\n");
+        json.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append("    {\"content\": \"").append(r.content).append("\", \"preset\": \"").append(r.settings.getPreset())
+                    .append("\", \"tune\": ").append(r.settings.getTune() == null ? "null" : "\"" + r.settings.getTune() + "\"")
+                    .append(", \"crf\": ").append(r.settings.getCrf()).append(", \"frameRate\": ").append(r.settings.getFrameRate())
+                    .append(", \"threads\": ").append(r.threads).append(", \"outputSize\": \"").append(r.outputSize)
+                    .append("\", \"exitCode\": ").append(r.exitCode)
+                    .append(", \"frames\": ").append(r.frames).append(", \"wallSeconds\": ").append(format(r.wallSeconds))
+                    .append(", \"encodeFps\": ").append(format(r.encodeFps)).append(", \"speed\": ").append(format(r.speed))
+                    .append(", \"cpuSeconds\": ").append(format(r.cpuSeconds)).append(", \"netCpuSeconds\": ").append(format(r.netCpuSeconds))
+                    .append(", \"sizeBytes\": ").append(r.sizeBytes).append(", \"bitrateKbps\": ").append(format(r.bitrateKbps))
+                    .append(", \"psnr\": ").append(Double.isInfinite(r.psnr) ? "null" : format(r.psnr))
+                    .append(", \"ssim\": ").append(String.format(Locale.ROOT, "%.5f", r.ssim)).append('}')
+                    .append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * 一个组合的测试结果
+     */
+    private static class Result {
+        private final String content;
+        private final EncoderSettings settings;
+        private final int threads;
+        private final String outputSize;
+        private int exitCode;
+        private long frames;
+        private double wallSeconds;
+        private double encodeFps;
+        private double speed;
+        private double cpuSeconds;
+        private double netCpuSeconds;
+        private long sizeBytes;
+        private double bitrateKbps;
+        private double psnr;
+        private double ssim;
+
+        private Result(String content, EncoderSettings settings, int threads, String outputSize) {
+            this.content = content;
+            this.settings = settings;
+            this.threads = threads;
+            this.outputSize = outputSize;
+        }
+    }
+}
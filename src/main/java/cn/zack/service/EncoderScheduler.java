@@ -0,0 +1,89 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 录屏编码进程调度
+ * 多个录制会话同时运行时, 按CPU核数限制同时运行的 libx264 编码进程数量, 并给每个编码进程分配固定的线程数,
+ * 避免多个编码进程各自按全部核数开线程互相争抢, 导致所有会话都跟不上实时
+ * 实时录屏无法排队等待, 超出上限时直接拒绝开始录制
+ *
+ * @author 张云龙
+ */
+@Component
+public class EncoderScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(EncoderScheduler.class);
+
+    /**
+     * 自动计算时每个编码进程占用的核数
+     */
+    private static final int CORES_PER_ENCODER = 4;
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Semaphore permits;
+
+    private int maxEncoders;
+
+    private int threadsPerEncoder;
+
+    @PostConstruct
+    public void init() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        maxEncoders = recordProperties.getMaxEncoders() > 0
+                ? recordProperties.getMaxEncoders()
+                : Math.max(1, cores / CORES_PER_ENCODER);
+        threadsPerEncoder = Math.max(1, cores / maxEncoders);
+        permits = new Semaphore(maxEncoders, true);
+        Gauge.builder("record.encoders.active", this, EncoderScheduler::getActiveEncoders).register(meterRegistry);
+        Gauge.builder("record.encoders.max", this, EncoderScheduler::getMaxEncoders).register(meterRegistry);
+        logger.info("CPU核数: {}, 同时录制的编码进程上限: {}, 每个编码进程{}个线程", cores, maxEncoders, threadsPerEncoder);
+    }
+
+    /**
+     * 申请一个编码进程名额
+     *
+     * @return 是否申请成功, 已达上限时返回false
+     */
+    public boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+
+    /**
+     * 编码进程退出后归还名额
+     */
+    public void release() {
+        permits.release();
+    }
+
+    public int getMaxEncoders() {
+        return maxEncoders;
+    }
+
+    /**
+     * 正在运行的编码进程数量
+     */
+    public int getActiveEncoders() {
+        return maxEncoders - permits.availablePermits();
+    }
+
+    /**
+     * 每个编码进程的 libx264 线程数
+     */
+    public int getThreadsPerEncoder() {
+        return threadsPerEncoder;
+    }
+}
@@ -0,0 +1,177 @@
+package cn.zack.service;
+
+/**
+ * libx264 编码参数档位
+ * 档位越高编码越省CPU, 画质和帧率相应降低, 0档为默认的 fast/crf23/30fps
+ *
+ * @author 张云龙
+ */
+public class EncoderSettings {
+
+    /**
+     * 从默认档位到最省CPU档位依次排列
+     */
+    private static final EncoderSettings[] LADDER = {
+            new EncoderSettings(0, "fast", 23, 30),
+            new EncoderSettings(1, "faster", 23, 30),
+            new EncoderSettings(2, "veryfast", 24, 30),
+            new EncoderSettings(3, "superfast", 26, 25),
+            new EncoderSettings(4, "ultrafast", 28, 20)
+    };
+
+    /**
+     * 音频编码参数
+     */
+    public static final String AUDIO_ARGS = "-acodec aac -b:a 128k -ar 44100 -ac 2";
+
+    private final int level;
+    private final String preset;
+    private final int crf;
+    private final int frameRate;
+
+    /**
+     * libx264 的 tune, 为空时不指定
+     */
+    private final String tune;
+
+    public EncoderSettings(int level, String preset, int crf, int frameRate) {
+        this(level, preset, crf, frameRate, null);
+    }
+
+    /**
+     * 自定义参数不在档位序列中, level传-1, 调档时回到序列中的档位
+     */
+    public EncoderSettings(int level, String preset, int crf, int frameRate, String tune) {
+        this.level = level;
+        this.preset = preset;
+        this.crf = crf;
+        this.frameRate = frameRate;
+        this.tune = tune;
+    }
+
+    /**
+     * 默认档位
+     */
+    public static EncoderSettings defaults() {
+        return LADDER[0];
+    }
+
+    /**
+     * 降一档, 已是最低档时返回自身
+     */
+    public EncoderSettings lower() {
+        return level + 1 < LADDER.length ? LADDER[level + 1] : this;
+    }
+
+    /**
+     * 升一档, 已是默认档时返回自身
+     */
+    public EncoderSettings higher() {
+        return level > 0 ? LADDER[level - 1] : this;
+    }
+
+    /**
+     * 视频编码参数
+     */
+    public String toVideoArgs() {
+        return "-vcodec libx264 -preset:v " + preset + tuneArgs() + " -crf " + crf + " -pix_fmt yuv420p -r " + frameRate;
+    }
+
+    /**
+     * 视频编码参数
+     * 可变帧率模式下先用fps滤镜限制最高帧率, 再用mpdecimate丢弃与上一帧几乎相同的帧, 画面静止时几乎不产生编码开销
+     * 静止时每2秒仍保留一帧, 并在每个分片边界强制关键帧, 保证分片能按时切分
+     *
+     * @param idleVfr        是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     */
+    public String toVideoArgs(boolean idleVfr, int segmentSeconds) {
+        return toVideoArgs(idleVfr, segmentSeconds, "");
+    }
+
+    /**
+     * 视频编码参数, 裁剪、缩放等滤镜排在最前面, 之后的去重和编码都在处理后的画面上进行
+     *
+     * @param idleVfr        是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     * @param videoFilter    最前面的视频滤镜, 为空时不添加
+     */
+    public String toVideoArgs(boolean idleVfr, int segmentSeconds, String videoFilter) {
+        String filter = videoFilter == null || videoFilter.isEmpty() ? idleFilter(idleVfr)
+                : videoFilter + (idleVfr ? "," + idleFilter(true) : "");
+        return (filter.isEmpty() ? "" : "-vf " + filter + " ") + toCodecArgs(idleVfr, segmentSeconds);
+    }
+
+    /**
+     * 可变帧率模式下的去重滤镜, 固定帧率时为空字符串
+     */
+    public String idleFilter(boolean idleVfr) {
+        return idleVfr ? "fps=" + frameRate + ",mpdecimate=max=" + (frameRate * 2 - 1) : "";
+    }
+
+    /**
+     * 不含滤镜的视频编码参数, 画面经过 filter_complex 处理时使用
+     *
+     * @param idleVfr        是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     */
+    public String toCodecArgs(boolean idleVfr, int segmentSeconds) {
+        if (!idleVfr) {
+            return toVideoArgs();
+        }
+        return "-fps_mode vfr -force_key_frames expr:gte(t,n_forced*" + segmentSeconds + ") " +
+                "-vcodec libx264 -preset:v " + preset + tuneArgs() + " -crf " + crf + " -pix_fmt yuv420p";
+    }
+
+    /**
+     * 完整的编码参数, 录屏和编码基准测试使用同一套参数
+     *
+     * @param idleVfr        是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     * @param threads        libx264 线程数, 0为ffmpeg默认
+     */
+    public String toEncoderArgs(boolean idleVfr, int segmentSeconds, int threads) {
+        return toEncoderArgs(idleVfr, segmentSeconds, threads, "");
+    }
+
+    /**
+     * 完整的编码参数, 带上最前面的视频滤镜
+     *
+     * @param idleVfr        是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     * @param threads        libx264 线程数, 0为ffmpeg默认
+     * @param videoFilter    最前面的视频滤镜, 为空时不添加
+     */
+    public String toEncoderArgs(boolean idleVfr, int segmentSeconds, int threads, String videoFilter) {
+        return toVideoArgs(idleVfr, segmentSeconds, videoFilter) + (threads > 0 ? " -threads " + threads : "") + " " + AUDIO_ARGS;
+    }
+
+    private String tuneArgs() {
+        return tune == null || tune.isEmpty() ? "" : " -tune " + tune;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public String getTune() {
+        return tune;
+    }
+
+    @Override
+    public String toString() {
+        return preset + (tune == null || tune.isEmpty() ? "" : "/" + tune) + "/crf" + crf + "/" + frameRate + "fps";
+    }
+}
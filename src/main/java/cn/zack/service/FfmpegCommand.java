@@ -0,0 +1,87 @@
+package cn.zack.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ffmpeg命令行参数
+ * 编码参数、滤镜等固定参数以空格分隔的字符串追加, 按空格拆分为多个参数;
+ * 文件路径整体作为一个参数追加, 路径中可以有空格和点, 不再经过按空格拆分
+ *
+ * @author 张云龙
+ */
+public class FfmpegCommand {
+
+    private final List<String> args = new ArrayList<>();
+
+    /**
+     * @param executable ffmpeg可执行文件, 路径中可以有空格
+     */
+    public FfmpegCommand(String executable) {
+        args.add(executable);
+    }
+
+    /**
+     * 追加以空格分隔的固定参数, 不能包含文件路径
+     */
+    public FfmpegCommand options(String options) {
+        args.addAll(split(options));
+        return this;
+    }
+
+    /**
+     * 追加一个参数, 原样传给ffmpeg
+     */
+    public FfmpegCommand arg(String value) {
+        args.add(value);
+        return this;
+    }
+
+    /**
+     * 依次追加多个参数, 原样传给ffmpeg
+     */
+    public FfmpegCommand args(List<String> values) {
+        args.addAll(values);
+        return this;
+    }
+
+    public List<String> toList() {
+        return Collections.unmodifiableList(args);
+    }
+
+    /**
+     * 把以空格分隔的固定参数拆分为参数列表, 忽略多余的空格
+     */
+    public static List<String> split(String options) {
+        List<String> result = new ArrayList<>();
+        for (String option : options.split(" ")) {
+            if (!option.isEmpty()) {
+                result.add(option);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * concat分离器列表文件中的一行, 路径中的单引号按ffmpeg的转义规则处理
+     */
+    public static String concatEntry(Object path) {
+        return "file '" + path.toString().replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * 用于日志, 含空格的参数加上引号
+     */
+    @Override
+    public String toString() {
+        StringBuilder command = new StringBuilder();
+        for (String arg : args) {
+            if (command.length() > 0) {
+                command.append(' ');
+            }
+            command.append(arg.indexOf(' ') >= 0 ? "\"" + arg + "\"" : arg);
+        }
+        return command.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package cn.zack.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ffmpeg -progress 输出的进度信息
+ * ffmpeg 按 key=value 每行一项输出, 以 progress=continue/end 结束一组
+ * 解析直接在字节上进行, 不为每行创建字符串, 对象在整个进程生命周期内复用
+ *
+ * @author 张云龙
+ */
+public class FfmpegProgress {
+
+    private static final byte[] FRAME = key("frame");
+    private static final byte[] FPS = key("fps");
+    private static final byte[] BITRATE = key("bitrate");
+    private static final byte[] TOTAL_SIZE = key("total_size");
+    private static final byte[] OUT_TIME_US = key("out_time_us");
+    private static final byte[] DUP_FRAMES = key("dup_frames");
+    private static final byte[] DROP_FRAMES = key("drop_frames");
+    private static final byte[] SPEED = key("speed");
+    private static final byte[] PROGRESS = key("progress");
+    private static final byte[] END = key("end");
+
+    /**
+     * 已编码帧数
+     */
+    private volatile long frame;
+
+    /**
+     * 编码帧率
+     */
+    private volatile double fps;
+
+    /**
+     * 输出码率, 单位kbit/s
+     */
+    private volatile double bitrate;
+
+    /**
+     * 已输出字节数
+     */
+    private volatile long totalSize;
+
+    /**
+     * 已输出的时长, 单位微秒
+     */
+    private volatile long outTimeMicros;
+
+    /**
+     * 重复帧数, 采集帧率跟不上输出帧率时增加
+     */
+    private volatile long dupFrames;
+
+    /**
+     * 丢弃帧数, 编码跟不上采集时增加
+     */
+    private volatile long dropFrames;
+
+    /**
+     * 编码速度, 小于1表示编码跟不上实时
+     */
+    private volatile double speed;
+
+    /**
+     * 进程是否已输出最后一组进度
+     */
+    private volatile boolean ended;
+
+    /**
+     * 解析一行进度
+     *
+     * @param line  行缓冲
+     * @param start 行起始位置
+     * @param end   行结束位置(不含换行符)
+     * @return 是否为一组进度的最后一行
+     */
+    boolean parseLine(byte[] line, int start, int end) {
+        int eq = -1;
+        for (int i = start; i < end; i++) {
+            if (line[i] == '=') {
+                eq = i;
+                break;
+            }
+        }
+        if (eq < 0) {
+            return false;
+        }
+        int value = eq + 1;
+        if (keyEquals(line, start, eq, FRAME)) {
+            frame = parseLong(line, value, end);
+        } else if (keyEquals(line, start, eq, FPS)) {
+            fps = parseDouble(line, value, end);
+        } else if (keyEquals(line, start, eq, BITRATE)) {
+            bitrate = parseDouble(line, value, end);
+        } else if (keyEquals(line, start, eq, TOTAL_SIZE)) {
+            totalSize = parseLong(line, value, end);
+        } else if (keyEquals(line, start, eq, OUT_TIME_US)) {
+            outTimeMicros = parseLong(line, value, end);
+        } else if (keyEquals(line, start, eq, DUP_FRAMES)) {
+            dupFrames = parseLong(line, value, end);
+        } else if (keyEquals(line, start, eq, DROP_FRAMES)) {
+            dropFrames = parseLong(line, value, end);
+        } else if (keyEquals(line, start, eq, SPEED)) {
+            speed = parseDouble(line, value, end);
+        } else if (keyEquals(line, start, eq, PROGRESS)) {
+            ended = keyEquals(line, value, end, END);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 进程重新启动时清空进度
+     */
+    void reset() {
+        frame = 0;
+        fps = 0;
+        bitrate = 0;
+        totalSize = 0;
+        outTimeMicros = 0;
+        dupFrames = 0;
+        dropFrames = 0;
+        speed = 0;
+        ended = false;
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean keyEquals(byte[] line, int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (line[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 解析整数, 值为N/A等非数字时返回0
+     */
+    private static long parseLong(byte[] line, int start, int end) {
+        long result = 0;
+        boolean negative = start < end && line[start] == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            result = result * 10 + (b - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * 解析小数, 忽略kbits/s、x等单位后缀, 值为N/A时返回0
+     */
+    private static double parseDouble(byte[] line, int start, int end) {
+        long integer = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean inFraction = false;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else if (b >= '0' && b <= '9') {
+                if (inFraction) {
+                    if (scale < 1_000_000_000L) {
+                        fraction = fraction * 10 + (b - '0');
+                        scale *= 10;
+                    }
+                } else {
+                    integer = integer * 10 + (b - '0');
+                }
+            } else if (b != ' ') {
+                break;
+            }
+        }
+        return integer + (double) fraction / scale;
+    }
+
+    public long getFrame() {
+        return frame;
+    }
+
+    public double getFps() {
+        return fps;
+    }
+
+    public double getBitrate() {
+        return bitrate;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getOutTimeMicros() {
+        return outTimeMicros;
+    }
+
+    public long getDupFrames() {
+        return dupFrames;
+    }
+
+    public long getDropFrames() {
+        return dropFrames;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+}
@@ -0,0 +1,18 @@
+package cn.zack.service;
+
+/**
+ * ffmpeg 进度监听
+ *
+ * @author 张云龙
+ */
+@FunctionalInterface
+public interface FfmpegProgressListener {
+
+    /**
+     * ffmpeg 每输出一组完整的进度信息回调一次, 在读取进度的后台线程中调用, 不要在回调里做耗时操作
+     *
+     * @param name     进程名称, 例如video、audio、merge
+     * @param progress 最新进度, 对象会被复用, 需要保留时请自行拷贝字段
+     */
+    void onProgress(String name, FfmpegProgress progress);
+}
@@ -0,0 +1,386 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * ffmpeg 子进程启动与输出采集
+ * 每个子进程都带上 -progress pipe:1 -nostats 启动, 标准输出由后台线程解析为结构化进度, 标准错误由另一个线程写入日志
+ * 两个输出流都由独立线程持续读取, 管道写满导致 ffmpeg 阻塞的情况不会发生
+ * 合并、合成等后台任务的进程按 record.post-process.niceness 降低优先级, 与实时录屏争抢CPU时让出
+ * 标准输出用于传输媒体数据的进程改为 -progress pipe:2, 进度行与日志混在标准错误中, 由日志线程区分
+ * 进程名称带有会话标识, 同名的进程全部退出后注销该名称的指标, 指标数量不随录制次数增长
+ *
+ * @author 张云龙
+ */
+@Component
+public class FfmpegRunner {
+    private static final Logger logger = LoggerFactory.getLogger(FfmpegRunner.class);
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * 不小于该nice值时Windows下使用空闲优先级
+     */
+    private static final int IDLE_NICENESS = 15;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    /**
+     * 每个进程名称对应一份进度, 指标直接读取其中的字段
+     */
+    private final Map<String, FfmpegProgress> progressMap = new ConcurrentHashMap<>();
+
+    /**
+     * 每个进程名称注册的指标, 与正在运行的同名进程数一起在同步块中维护
+     */
+    private final Map<String, List<Meter>> metersMap = new HashMap<>();
+
+    private final Map<String, Integer> runningCount = new HashMap<>();
+
+    private final List<FfmpegProgressListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 订阅ffmpeg进度
+     */
+    public void addListener(FfmpegProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FfmpegProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 获取指定进程的最新进度
+     *
+     * @param name 进程名称
+     * @return 最新进度, 没有正在运行的同名进程时返回null; 进程退出后还要读取进度的, 在进程运行期间保留返回的对象
+     */
+    public FfmpegProgress getProgress(String name) {
+        return progressMap.get(name);
+    }
+
+    /**
+     * 启动ffmpeg子进程
+     *
+     * @param name    进程名称, 同时作为指标的process标签
+     * @param command ffmpeg命令, 第一项为ffmpeg可执行文件
+     * @return 已启动的进程, 标准输入保留用于发送q等交互命令
+     */
+    public Process start(String name, List<String> command) throws IOException {
+        Process process = launch(name, command, false, false);
+        startLogPump(name, process, null, null);
+        return process;
+    }
+
+    /**
+     * 启动输出到标准输出的ffmpeg子进程, 进度从标准错误中解析
+     *
+     * @param name    进程名称, 同时作为指标的process标签
+     * @param command ffmpeg命令, 第一项为ffmpeg可执行文件, 输出为 pipe:1
+     * @return 已启动的进程, 调用方必须持续读取标准输出, 否则ffmpeg写满管道后阻塞
+     */
+    public Process startPiped(String name, List<String> command) throws IOException {
+        Process process = launch(name, command, false, true);
+        startLogPump(name, process, null, progressMap.get(name));
+        return process;
+    }
+
+    /**
+     * 以较低的优先级启动后台任务的ffmpeg子进程
+     *
+     * @param name    进程名称, 同时作为指标的process标签
+     * @param command ffmpeg命令, 第一项为ffmpeg可执行文件
+     * @return 已启动的进程
+     */
+    public Process startBackground(String name, List<String> command) throws IOException {
+        Process process = launch(name, command, true, false);
+        startLogPump(name, process, null, null);
+        return process;
+    }
+
+    /**
+     * 运行ffmpeg子进程直到结束, 日志除写入应用日志外逐行交给回调, 用于解析 -benchmark、psnr 等只输出到日志的结果
+     *
+     * @param name        进程名称, 同时作为指标的process标签
+     * @param command     ffmpeg命令, 第一项为ffmpeg可执行文件
+     * @param logListener 日志回调, 返回前已收到全部日志
+     * @return 进程退出码
+     */
+    public int run(String name, List<String> command, Consumer<String> logListener) throws IOException, InterruptedException {
+        return run(name, command, logListener, false);
+    }
+
+    /**
+     * 以较低的优先级运行后台任务的ffmpeg子进程直到结束
+     *
+     * @param name        进程名称, 同时作为指标的process标签
+     * @param command     ffmpeg命令, 第一项为ffmpeg可执行文件
+     * @param logListener 日志回调, 为null时只写入应用日志
+     * @return 进程退出码
+     */
+    public int runBackground(String name, List<String> command, Consumer<String> logListener) throws IOException, InterruptedException {
+        return run(name, command, logListener, true);
+    }
+
+    private int run(String name, List<String> command, Consumer<String> logListener, boolean background)
+            throws IOException, InterruptedException {
+        Process process = launch(name, command, background, false);
+        Thread logThread = startLogPump(name, process, logListener, null);
+        int exitCode = process.waitFor();
+        logThread.join();
+        return exitCode;
+    }
+
+    /**
+     * 启动进程并开始采集进度
+     *
+     * @param background 是否为后台任务, 后台任务的进程降低优先级
+     * @param piped      标准输出是否用于传输媒体数据, 是时进度输出到标准错误
+     */
+    private Process launch(String name, List<String> command, boolean background, boolean piped) throws IOException {
+        int niceness = background ? recordProperties.getPostProcess().getNiceness() : 0;
+        List<String> fullCommand = new ArrayList<>(command.size() + 7);
+        // 非Windows系统通过nice启动, nice直接替换为ffmpeg, 进程号不变
+        if (niceness > 0 && !WINDOWS) {
+            fullCommand.add("nice");
+            fullCommand.add("-n");
+            fullCommand.add(String.valueOf(niceness));
+        }
+        fullCommand.add(command.get(0));
+        fullCommand.add("-progress");
+        fullCommand.add(piped ? "pipe:2" : "pipe:1");
+        fullCommand.add("-nostats");
+        fullCommand.addAll(command.subList(1, command.size()));
+
+        FfmpegProgress progress = acquire(name);
+        progress.reset();
+        Process process;
+        try {
+            process = new ProcessBuilder(fullCommand).start();
+        } catch (IOException e) {
+            release(name);
+            throw e;
+        }
+        process.onExit().thenRun(() -> release(name));
+        if (niceness > 0 && WINDOWS) {
+            lowerPriority(name, process, niceness);
+        }
+
+        if (piped) {
+            return process;
+        }
+        Thread progressThread = new Thread(() -> pumpProgress(name, progress, process.getInputStream()), "ffmpeg-progress-" + name);
+        progressThread.setDaemon(true);
+        progressThread.start();
+        return process;
+    }
+
+    /**
+     * Windows没有nice, 进程启动后通过PowerShell调整优先级类别, 调整期间ffmpeg已按正常优先级开始运行
+     */
+    private void lowerPriority(String name, Process process, int niceness) {
+        String priorityClass = niceness >= IDLE_NICENESS ? "Idle" : "BelowNormal";
+        List<String> command = Arrays.asList("powershell", "-NoProfile", "-NonInteractive", "-Command",
+                "(Get-Process -Id " + process.pid() + ").PriorityClass='" + priorityClass + "'");
+        try {
+            new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        } catch (IOException e) {
+            logger.info("调整ffmpeg进程优先级异常, 进程: {}, 异常信息: {}", name, e.getMessage());
+        }
+    }
+
+    private Thread startLogPump(String name, Process process, Consumer<String> logListener, FfmpegProgress progress) {
+        Thread logThread = new Thread(() -> pumpLog(name, process.getErrorStream(), logListener, progress), "ffmpeg-log-" + name);
+        logThread.setDaemon(true);
+        logThread.start();
+        return logThread;
+    }
+
+    /**
+     * 登记一个即将启动的进程, 第一个同名进程启动时注册指标
+     */
+    private synchronized FfmpegProgress acquire(String name) {
+        runningCount.merge(name, 1, Integer::sum);
+        return progressMap.computeIfAbsent(name, this::registerMetrics);
+    }
+
+    /**
+     * 进程退出后调用, 同名进程全部退出时注销指标
+     * 自适应编码重启时新进程可能先于旧进程的退出回调登记, 按计数注销不会误删新进程的指标
+     */
+    private synchronized void release(String name) {
+        if (runningCount.merge(name, -1, Integer::sum) > 0) {
+            return;
+        }
+        runningCount.remove(name);
+        progressMap.remove(name);
+        List<Meter> meters = metersMap.remove(name);
+        if (meters != null) {
+            meters.forEach(meterRegistry::remove);
+        }
+    }
+
+    /**
+     * 为新的进程名称注册指标
+     */
+    private FfmpegProgress registerMetrics(String name) {
+        FfmpegProgress progress = new FfmpegProgress();
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge.builder("ffmpeg.frame", progress, FfmpegProgress::getFrame).tag("process", name)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.fps", progress, FfmpegProgress::getFps).tag("process", name)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.speed", progress, FfmpegProgress::getSpeed).tag("process", name)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.bitrate", progress, FfmpegProgress::getBitrate).tag("process", name)
+                .baseUnit("kbits/s").register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.dup.frames", progress, FfmpegProgress::getDupFrames).tag("process", name)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.drop.frames", progress, FfmpegProgress::getDropFrames).tag("process", name)
+                .register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.out.time", progress, p -> p.getOutTimeMicros() / 1_000_000.0).tag("process", name)
+                .baseUnit("seconds").register(meterRegistry));
+        meters.add(Gauge.builder("ffmpeg.total.size", progress, FfmpegProgress::getTotalSize).tag("process", name)
+                .baseUnit("bytes").register(meterRegistry));
+        metersMap.put(name, meters);
+        return progress;
+    }
+
+    /**
+     * 按行解析进度输出, 行缓冲复用, 超长的行直接丢弃
+     */
+    private void pumpProgress(String name, FfmpegProgress progress, InputStream inputStream) {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] == '\n') {
+                        int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                        if (progress.parseLine(buffer, lineStart, lineEnd)) {
+                            notifyListeners(name, progress);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart == 0 && length == buffer.length) {
+                    length = 0;
+                } else {
+                    System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                    length -= lineStart;
+                }
+            }
+        } catch (IOException e) {
+            logger.info("读取ffmpeg进度异常, 进程: {}, 异常信息: {}", name, e.getMessage());
+        }
+    }
+
+    private void notifyListeners(String name, FfmpegProgress progress) {
+        for (FfmpegProgressListener listener : listeners) {
+            try {
+                listener.onProgress(name, progress);
+            } catch (Exception e) {
+                logger.info("ffmpeg进度回调异常, 异常信息: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * ffmpeg的日志、警告和错误写入应用日志
+     *
+     * @param progress 进度输出到标准错误时的进度, 进度行解析后不写入日志; 为null时全部作为日志
+     */
+    private void pumpLog(String name, InputStream inputStream, Consumer<String> logListener, FfmpegProgress progress) {
+        // 与进度输出一样按字节扫描到复用的缓冲区, 进度行直接按字节解析, 只有日志行才解码为字符串
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    // ffmpeg的统计行以\r结尾, 与readLine一样把\r和\n都作为行结束
+                    if (buffer[i] == '\n' || buffer[i] == '\r') {
+                        handleLogLine(name, buffer, lineStart, i, logListener, progress);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart == 0 && length == buffer.length) {
+                    // 超长的行不可能是进度行, 先作为日志写出
+                    handleLogLine(name, buffer, 0, length, logListener, null);
+                    length = 0;
+                } else {
+                    System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                    length -= lineStart;
+                }
+            }
+            handleLogLine(name, buffer, 0, length, logListener, progress);
+        } catch (IOException e) {
+            logger.info("读取ffmpeg日志异常, 进程: {}, 异常信息: {}", name, e.getMessage());
+        }
+    }
+
+    private void handleLogLine(String name, byte[] buffer, int start, int end, Consumer<String> logListener, FfmpegProgress progress) {
+        if (start == end) {
+            return;
+        }
+        if (progress != null && isProgressLine(buffer, start, end)) {
+            if (progress.parseLine(buffer, start, end)) {
+                notifyListeners(name, progress);
+            }
+            return;
+        }
+        String line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        logger.info("[ffmpeg-{}] {}", name, line);
+        if (logListener != null) {
+            logListener.accept(line);
+        }
+    }
+
+    /**
+     * 进度行为小写字母开头、不含空格的 key=value, ffmpeg的日志行都带有空格
+     */
+    private static boolean isProgressLine(byte[] line, int start, int end) {
+        if (line[start] < 'a' || line[start] > 'z') {
+            return false;
+        }
+        boolean equals = false;
+        for (int i = start + 1; i < end; i++) {
+            if (line[i] == ' ') {
+                return false;
+            }
+            if (line[i] == '=') {
+                equals = true;
+            }
+        }
+        return equals;
+    }
+}
@@ -0,0 +1,25 @@
+package cn.zack.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 由Java采集画面并通过标准输入送入ffmpeg的画面来源
+ * 标准输入被画面数据占用, 不能再发送q结束进程; 停止时关闭标准输入, ffmpeg读到输入结束后正常收尾
+ *
+ * @author 张云龙
+ */
+public interface FrameFeed {
+
+    /**
+     * 开始采集并写入ffmpeg的标准输入, 采集和写入都在后台线程中进行
+     *
+     * @param stdin ffmpeg进程的标准输入
+     */
+    void start(OutputStream stdin) throws IOException;
+
+    /**
+     * 停止采集, 已采集的画面写完后关闭标准输入, 不等待写入完成
+     */
+    void stop();
+}
@@ -0,0 +1,87 @@
+package cn.zack.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的无锁环形队列, 元素为缓冲区序号
+ * 采集线程和写入线程之间只传递预先分配的缓冲区序号, 入队出队不加锁也不分配对象
+ * 生产者只写tail, 消费者只写head, 各自缓存对方的位置, 只有看起来满或空时才重新读取对方的位置
+ *
+ * @author 张云龙
+ */
+public class FrameRing {
+
+    private final int[] slots;
+
+    private final int mask;
+
+    /**
+     * 下一个出队位置, 只由消费者写入
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 下一个入队位置, 只由生产者写入
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 生产者缓存的head
+     */
+    private long cachedHead;
+
+    /**
+     * 消费者缓存的tail
+     */
+    private long cachedTail;
+
+    /**
+     * @param capacity 容量, 向上取为2的幂
+     */
+    public FrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * 入队, 只能由生产者线程调用
+     *
+     * @return 队列已满时返回false
+     */
+    public boolean offer(int value) {
+        long currentTail = tail.get();
+        if (currentTail - cachedHead == slots.length) {
+            cachedHead = head.get();
+            if (currentTail - cachedHead == slots.length) {
+                return false;
+            }
+        }
+        slots[(int) currentTail & mask] = value;
+        // 有序写入, 消费者读到新的tail时一定能读到槽位中的值
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * 出队, 只能由消费者线程调用
+     *
+     * @return 队列为空时返回-1
+     */
+    public int poll() {
+        long currentHead = head.get();
+        if (currentHead == cachedTail) {
+            cachedTail = tail.get();
+            if (currentHead == cachedTail) {
+                return -1;
+            }
+        }
+        int value = slots[(int) currentHead & mask];
+        head.lazySet(currentHead + 1);
+        return value;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
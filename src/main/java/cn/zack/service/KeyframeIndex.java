@@ -0,0 +1,457 @@
+package cn.zack.service;
+
+import cn.zack.utils.FileNameUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 视频的关键帧索引
+ * 最终视频生成后从 mp4 的采样表或 MPEG-TS 的随机访问标记中读出每个关键帧的显示时间和字节位置, 不解码、不解复用,
+ * 写入视频旁边的二进制索引文件, 播放器和剪辑工具读入后按时间二分查找即可定位到关键帧
+ * <p>
+ * 索引文件格式, 大端序:
+ * 魔数 "SRKF"(4字节), 版本(2字节, 当前为1), 保留(2字节), 视频文件大小(8字节, 与视频不一致时索引已失效), 关键帧数量(4字节),
+ * 之后每个关键帧16字节: 相对视频开始的显示时间(8字节, 单位微秒), 字节位置(8字节, mp4为关键帧数据的位置, ts为所在TS包的位置)
+ *
+ * @author 张云龙
+ */
+public class KeyframeIndex {
+
+    private static final int MAGIC = 0x53524B46;
+
+    private static final short VERSION = 1;
+
+    static final int TS_PACKET_SIZE = 188;
+
+    /**
+     * moov 超过该大小时认为文件损坏
+     */
+    private static final long MAX_MOOV_BYTES = 256L * 1024 * 1024;
+
+    private final long videoSize;
+
+    private final long[] timeMicros;
+
+    private final long[] offsets;
+
+    private KeyframeIndex(long videoSize, long[] timeMicros, long[] offsets) {
+        this.videoSize = videoSize;
+        this.timeMicros = timeMicros;
+        this.offsets = offsets;
+    }
+
+    /**
+     * 视频对应的索引文件
+     */
+    public static Path sidecar(String videoPath) {
+        return Paths.get(FileNameUtils.removeExtension(videoPath) + "_keyframes.idx");
+    }
+
+    /**
+     * 读取视频的关键帧, ts按MPEG-TS读取, 其他按mp4读取
+     *
+     * @throws IOException 文件无法读取或格式不支持
+     */
+    public static KeyframeIndex build(Path video) throws IOException {
+        return video.toString().endsWith(".ts") ? scanTs(video) : scanMp4(video);
+    }
+
+    /**
+     * 读取索引文件
+     */
+    public static KeyframeIndex read(Path sidecar) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("不是关键帧索引文件: " + sidecar);
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("不支持的关键帧索引版本: " + version);
+            }
+            in.readShort();
+            long videoSize = in.readLong();
+            int count = in.readInt();
+            long[] timeMicros = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                timeMicros[i] = in.readLong();
+                offsets[i] = in.readLong();
+            }
+            return new KeyframeIndex(videoSize, timeMicros, offsets);
+        }
+    }
+
+    /**
+     * 写入索引文件, 先写临时文件再替换, 读取方不会读到写了一半的索引
+     */
+    public void write(Path sidecar) throws IOException {
+        Path temp = Paths.get(sidecar + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeLong(videoSize);
+            out.writeInt(timeMicros.length);
+            for (int i = 0; i < timeMicros.length; i++) {
+                out.writeLong(timeMicros[i]);
+                out.writeLong(offsets[i]);
+            }
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 时间点之前最近的关键帧, 从该关键帧开始解码即可显示该时间点的画面
+     *
+     * @param micros 相对视频开始的时间, 单位微秒
+     * @return 关键帧序号, 没有关键帧时为-1
+     */
+    public int floor(long micros) {
+        if (timeMicros.length == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(timeMicros, micros);
+        // 未命中时返回 -(插入位置)-1, 插入位置之前的一个即为之前最近的关键帧
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    public int size() {
+        return timeMicros.length;
+    }
+
+    public long getTimeMicros(int index) {
+        return timeMicros[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    public long getVideoSize() {
+        return videoSize;
+    }
+
+    /**
+     * mp4: 只读取 moov 中视频轨的采样表
+     * 每个采样的解码时间来自 stts, 显示时间再加上 ctts 偏移并减去编辑列表的起点, 位置由 stsc、stco 和 stsz 推算, 关键帧为 stss 中的采样
+     */
+    private static KeyframeIndex scanMp4(Path video) throws IOException {
+        ByteBuffer moov;
+        long size;
+        try (FileChannel channel = FileChannel.open(video, StandardOpenOption.READ)) {
+            size = channel.size();
+            moov = readTopLevelBox(channel, "moov");
+        }
+        if (moov == null) {
+            throw new IOException("没有找到moov: " + video);
+        }
+        for (ByteBuffer trak : children(moov, "trak")) {
+            ByteBuffer mdia = child(trak, "mdia");
+            ByteBuffer hdlr = child(mdia, "hdlr");
+            if (hdlr == null || !"vide".equals(fourCc(hdlr, 8))) {
+                continue;
+            }
+            ByteBuffer mdhd = child(mdia, "mdhd");
+            long timescale = Integer.toUnsignedLong(mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12));
+            ByteBuffer stbl = child(child(mdia, "minf"), "stbl");
+            return scanSampleTable(size, stbl, timescale, mediaStart(child(trak, "edts")));
+        }
+        throw new IOException("没有视频轨: " + video);
+    }
+
+    private static KeyframeIndex scanSampleTable(long videoSize, ByteBuffer stbl, long timescale, long mediaStart) throws IOException {
+        ByteBuffer stts = child(stbl, "stts");
+        ByteBuffer ctts = child(stbl, "ctts");
+        ByteBuffer stss = child(stbl, "stss");
+        ByteBuffer stsc = child(stbl, "stsc");
+        ByteBuffer stsz = child(stbl, "stsz");
+        ByteBuffer stco = child(stbl, "stco");
+        ByteBuffer co64 = child(stbl, "co64");
+        if (stts == null || stsc == null || stsz == null || (stco == null && co64 == null) || timescale <= 0) {
+            throw new IOException("视频轨采样表不完整");
+        }
+        int sampleSize = stsz.getInt(4);
+        int sampleCount = stsz.getInt(8);
+        int chunkCount = (stco != null ? stco : co64).getInt(4);
+        int stscCount = stsc.getInt(4);
+        // 没有 stss 时每个采样都是关键帧
+        int syncCount = stss == null ? sampleCount : stss.getInt(4);
+        long[] timeMicros = new long[syncCount];
+        long[] offsets = new long[syncCount];
+        int found = 0;
+
+        int sttsEntry = 0;
+        int sttsLeft = stts.getInt(4) > 0 ? stts.getInt(8) : 0;
+        int cttsEntry = 0;
+        int cttsLeft = ctts != null && ctts.getInt(4) > 0 ? ctts.getInt(8) : 0;
+        int stscEntry = 0;
+        int sample = 0;
+        long dts = 0;
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            while (stscEntry + 1 < stscCount && Integer.toUnsignedLong(stsc.getInt(8 + (stscEntry + 1) * 12)) <= chunk) {
+                stscEntry++;
+            }
+            int samplesPerChunk = stsc.getInt(8 + stscEntry * 12 + 4);
+            long offset = stco != null ? Integer.toUnsignedLong(stco.getInt(8 + (chunk - 1) * 4)) : co64.getLong(8 + (chunk - 1) * 8);
+            for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                long composition = 0;
+                if (ctts != null) {
+                    composition = ctts.getInt(8 + cttsEntry * 8 + 4);
+                    if (--cttsLeft == 0 && cttsEntry + 1 < ctts.getInt(4)) {
+                        cttsEntry++;
+                        cttsLeft = ctts.getInt(8 + cttsEntry * 8);
+                    }
+                }
+                boolean sync = stss == null || (found < syncCount && stss.getInt(8 + found * 4) == sample + 1);
+                if (sync) {
+                    long pts = Math.max(0, dts + composition - mediaStart);
+                    timeMicros[found] = pts * 1_000_000 / timescale;
+                    offsets[found] = offset;
+                    found++;
+                }
+                offset += sampleSize != 0 ? Integer.toUnsignedLong(sampleSize) : Integer.toUnsignedLong(stsz.getInt(12 + sample * 4));
+                dts += Integer.toUnsignedLong(stts.getInt(8 + sttsEntry * 8 + 4));
+                if (--sttsLeft == 0 && sttsEntry + 1 < stts.getInt(4)) {
+                    sttsEntry++;
+                    sttsLeft = stts.getInt(8 + sttsEntry * 8);
+                }
+            }
+        }
+        return new KeyframeIndex(videoSize, Arrays.copyOf(timeMicros, found), Arrays.copyOf(offsets, found));
+    }
+
+    /**
+     * 编辑列表中第一段有效媒体的起始时间, 录制的视频在开头有B帧延迟时不为0
+     */
+    private static long mediaStart(ByteBuffer edts) {
+        ByteBuffer elst = edts == null ? null : child(edts, "elst");
+        if (elst == null) {
+            return 0;
+        }
+        boolean version1 = elst.get(0) == 1;
+        int count = elst.getInt(4);
+        int entrySize = version1 ? 20 : 12;
+        for (int i = 0; i < count; i++) {
+            int position = 8 + i * entrySize;
+            long mediaTime = version1 ? elst.getLong(position + 8) : elst.getInt(position + 4);
+            // -1 为空白段
+            if (mediaTime != -1) {
+                return mediaTime;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按顺序跳过顶层box, 只读入指定的box内容
+     */
+    private static ByteBuffer readTopLevelBox(FileChannel channel, String type) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        long end = channel.size();
+        while (position + 8 <= end) {
+            header.clear();
+            channel.read(header, position);
+            long boxSize = Integer.toUnsignedLong(header.getInt(0));
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = end - position;
+            }
+            if (boxSize < headerSize) {
+                throw new IOException("box大小错误, 位置" + position);
+            }
+            if (type.equals(fourCc(header, 4))) {
+                if (boxSize - headerSize > MAX_MOOV_BYTES) {
+                    throw new IOException(type + "过大: " + boxSize);
+                }
+                ByteBuffer body = ByteBuffer.allocate((int) (boxSize - headerSize));
+                while (body.hasRemaining() && channel.read(body, position + headerSize + body.position()) > 0) {
+                }
+                body.flip();
+                return body;
+            }
+            position += boxSize;
+        }
+        return null;
+    }
+
+    /**
+     * 容器box中第一个指定类型的子box内容, 不存在时为null
+     */
+    private static ByteBuffer child(ByteBuffer parent, String type) {
+        if (parent == null) {
+            return null;
+        }
+        List<ByteBuffer> found = children(parent, type);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private static List<ByteBuffer> children(ByteBuffer parent, String type) {
+        List<ByteBuffer> found = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= parent.limit()) {
+            long boxSize = Integer.toUnsignedLong(parent.getInt(position));
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = parent.getLong(position + 8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = parent.limit() - position;
+            }
+            if (boxSize < headerSize || position + boxSize > parent.limit()) {
+                break;
+            }
+            if (type.equals(fourCc(parent, position + 4))) {
+                ByteBuffer body = parent.duplicate();
+                body.position(position + headerSize).limit((int) (position + boxSize));
+                found.add(body.slice());
+            }
+            position += boxSize;
+        }
+        return found;
+    }
+
+    private static String fourCc(ByteBuffer buffer, int position) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (buffer.get(position + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * MPEG-TS: 按188字节的TS包顺序读取
+     * 从 PAT、PMT 找到视频流, 视频流中带随机访问标记且开始新PES的包即为关键帧, 显示时间取PES头中的PTS
+     */
+    private static KeyframeIndex scanTs(Path video) throws IOException {
+        long size = Files.size(video);
+        long[] timeMicros = new long[64];
+        long[] offsets = new long[64];
+        int found = 0;
+        int pmtPid = -1;
+        int videoPid = -1;
+        long firstPts = -1;
+        long lastPts = -1;
+        long wrap = 0;
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(video), 1 << 16)) {
+            for (long position = 0; in.readNBytes(packet, 0, TS_PACKET_SIZE) == TS_PACKET_SIZE; position += TS_PACKET_SIZE) {
+                if (packet[0] != 0x47) {
+                    throw new IOException("TS包同步字节错误, 位置" + position);
+                }
+                boolean unitStart = (packet[1] & 0x40) != 0;
+                int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+                int adaptation = (packet[3] >> 4) & 0x03;
+                int payload = 4;
+                boolean randomAccess = false;
+                if ((adaptation & 0x02) != 0) {
+                    int adaptationLength = packet[4] & 0xFF;
+                    randomAccess = adaptationLength > 0 && (packet[5] & 0x40) != 0;
+                    payload = 5 + adaptationLength;
+                }
+                if ((adaptation & 0x01) == 0 || !unitStart || payload >= TS_PACKET_SIZE) {
+                    continue;
+                }
+                if (pid == 0 && pmtPid < 0) {
+                    pmtPid = parsePat(packet, payload);
+                } else if (pid == pmtPid && videoPid < 0) {
+                    videoPid = parsePmt(packet, payload);
+                } else if (pid == videoPid) {
+                    long pts = parsePts(packet, payload);
+                    if (pts < 0) {
+                        continue;
+                    }
+                    // PTS为33位, 长录制中回绕后继续递增
+                    if (lastPts >= 0 && pts + wrap + (1L << 32) < lastPts) {
+                        wrap += 1L << 33;
+                    }
+                    pts += wrap;
+                    lastPts = pts;
+                    if (firstPts < 0) {
+                        firstPts = pts;
+                    }
+                    if (randomAccess) {
+                        if (found == timeMicros.length) {
+                            timeMicros = Arrays.copyOf(timeMicros, found * 2);
+                            offsets = Arrays.copyOf(offsets, found * 2);
+                        }
+                        // PTS单位为1/90000秒
+                        timeMicros[found] = Math.max(0, pts - firstPts) * 100 / 9;
+                        offsets[found] = position;
+                        found++;
+                    }
+                }
+            }
+        }
+        if (videoPid < 0) {
+            throw new IOException("没有视频流: " + video);
+        }
+        return new KeyframeIndex(size, Arrays.copyOf(timeMicros, found), Arrays.copyOf(offsets, found));
+    }
+
+    /**
+     * PAT中第一个节目的PMT PID
+     */
+    static int parsePat(byte[] packet, int payload) {
+        int section = payload + 1 + (packet[payload] & 0xFF);
+        int sectionLength = ((packet[section + 1] & 0x0F) << 8) | (packet[section + 2] & 0xFF);
+        int end = Math.min(TS_PACKET_SIZE, section + 3 + sectionLength - 4);
+        for (int i = section + 8; i + 4 <= end; i += 4) {
+            int program = ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+            if (program != 0) {
+                return ((packet[i + 2] & 0x1F) << 8) | (packet[i + 3] & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * PMT中第一个视频流的PID: H.264、HEVC 或 MPEG-2
+     */
+    static int parsePmt(byte[] packet, int payload) {
+        int section = payload + 1 + (packet[payload] & 0xFF);
+        int sectionLength = ((packet[section + 1] & 0x0F) << 8) | (packet[section + 2] & 0xFF);
+        int programInfoLength = ((packet[section + 10] & 0x0F) << 8) | (packet[section + 11] & 0xFF);
+        int end = Math.min(TS_PACKET_SIZE, section + 3 + sectionLength - 4);
+        for (int i = section + 12 + programInfoLength; i + 5 <= end; ) {
+            int streamType = packet[i] & 0xFF;
+            int pid = ((packet[i + 1] & 0x1F) << 8) | (packet[i + 2] & 0xFF);
+            if (streamType == 0x1B || streamType == 0x24 || streamType == 0x02) {
+                return pid;
+            }
+            i += 5 + (((packet[i + 3] & 0x0F) << 8) | (packet[i + 4] & 0xFF));
+        }
+        return -1;
+    }
+
+    /**
+     * PES头中的PTS, 没有PTS时为-1
+     */
+    static long parsePts(byte[] packet, int payload) {
+        if (payload + 14 > TS_PACKET_SIZE || packet[payload] != 0 || packet[payload + 1] != 0 || packet[payload + 2] != 1
+                || (packet[payload + 7] & 0x80) == 0) {
+            return -1;
+        }
+        int p = payload + 9;
+        return ((long) (packet[p] & 0x0E) << 29) | ((packet[p + 1] & 0xFF) << 22) | ((packet[p + 2] & 0xFE) << 14)
+                | ((packet[p + 3] & 0xFF) << 7) | ((packet[p + 4] & 0xFE) >> 1);
+    }
+}
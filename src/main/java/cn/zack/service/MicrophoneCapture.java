@@ -0,0 +1,306 @@
+package cn.zack.service;
+
+import cn.zack.utils.FileNameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * 预热的麦克风采集
+ * 每个录制会话只打开一次麦克风设备并持续录制到同一组分片, 启用/停用麦克风只记录门控时间点, 不再启动新的录音进程
+ * 门控时间点取自单调时钟 System.nanoTime, 结束后把录音合并为一个文件, 门控关闭区间的采样清零, 合成时只保留门控打开的部分
+ * 录音文件与单调时钟的对应关系由 ffmpeg 进度估算: 收到进度的时刻减去已输出的时长即为第一个采样的采集时刻, 取所有估算中的最小值
+ *
+ * @author 张云龙
+ */
+public class MicrophoneCapture implements FfmpegProgressListener {
+    private static final Logger logger = LoggerFactory.getLogger(MicrophoneCapture.class);
+
+    /**
+     * 清零时每次写入的字节数
+     */
+    private static final int ZERO_BLOCK_BYTES = 1024 * 1024;
+
+    private final String processName;
+
+    /**
+     * 合并后的录音文件
+     */
+    private final Path path;
+
+    private final FfmpegRunner ffmpegRunner;
+
+    /**
+     * 门控打开区间, 每项为开始和结束的单调时钟纳秒值
+     */
+    private final List<long[]> ranges = new ArrayList<>();
+
+    /**
+     * 门控是否打开
+     */
+    private boolean open;
+
+    /**
+     * 当前门控打开的时刻
+     */
+    private long openNanos;
+
+    /**
+     * 上一次门控时间点, 保证门控时间单调递增
+     */
+    private long lastGateNanos = Long.MIN_VALUE;
+
+    /**
+     * 第一个采样的采集时刻估算值, 未收到进度前为Long.MAX_VALUE
+     */
+    private volatile long epochNanos = Long.MAX_VALUE;
+
+    /**
+     * 设备开始采集前打开门控时, 等到开始采集再统计切换延迟
+     */
+    private final List<Long> pendingToggles = new ArrayList<>();
+
+    private LongConsumer toggleLatencyListener = latency -> {
+    };
+
+    /**
+     * 录音分片关闭时检测有声区间, 为null时不检测
+     */
+    private VoiceActivityDetector voiceActivityDetector;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private volatile Process process;
+
+    private volatile boolean stopping;
+
+    public MicrophoneCapture(String processName, Path path, FfmpegRunner ffmpegRunner) {
+        this.processName = processName;
+        this.path = path;
+        this.ffmpegRunner = ffmpegRunner;
+    }
+
+    /**
+     * 订阅麦克风切换延迟, 即从切换麦克风到录音中开始保留采样的耗时, 单位纳秒
+     */
+    public void setToggleLatencyListener(LongConsumer toggleLatencyListener) {
+        this.toggleLatencyListener = toggleLatencyListener;
+    }
+
+    /**
+     * 设置录音的语音检测, 需在开始采集前设置
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector voiceActivityDetector) {
+        this.voiceActivityDetector = voiceActivityDetector;
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceActivityDetector;
+    }
+
+    /**
+     * 采集线程, 录音进程结束、分片合并、门控清零完成后返回
+     *
+     * @param ffmpegPath     ffmpeg可执行文件
+     * @param micInput       麦克风的输入参数
+     * @param segmentSeconds 录音分片时长, 单位秒
+     */
+    public void run(String ffmpegPath, String micInput, int segmentSeconds) {
+        String shardPrefix = FileNameUtils.removeExtension(path.toString());
+        FfmpegCommand command = new FfmpegCommand(ffmpegPath).options(micInput + " -acodec pcm_s16le -ar 44100 -ac 2 -y -segment_time " +
+                segmentSeconds + " -f segment -reset_timestamps 1 -segment_list_type csv -segment_list")
+                .arg(shardPrefix + "_segments.csv").arg(shardPrefix + "_%03d.wav");
+        logger.info("预热麦克风命令: {}", command);
+        ffmpegRunner.addListener(this);
+        try {
+            SegmentRegistry segmentRegistry = new SegmentRegistry(Paths.get(shardPrefix + "_manifest.tsv"));
+            VoiceActivityDetector detector = voiceActivityDetector;
+            if (detector != null) {
+                segmentRegistry.addListener(segment -> detector.feed(segment.getPath()));
+            }
+            segmentRegistry.start(Paths.get(shardPrefix + "_segments.csv"));
+            process = ffmpegRunner.start(processName, command.toList());
+            logger.info("麦克风设备已打开, 持续录音直到停止录制");
+            if (stopping) {
+                quit();
+            }
+            int exitCode = process.waitFor();
+            logger.info("完成预热麦克风录音: {}", exitCode);
+            segmentRegistry.close();
+            if (segmentRegistry.size() == 0) {
+                throw new IOException("预热麦克风录音进程退出码" + exitCode + ", 没有录音分片");
+            }
+            WavConcatenator.concat(segmentRegistry.getSegments().stream().map(Segment::getPath).collect(Collectors.toList()), path);
+            segmentRegistry.deleteAll();
+            if (epochNanos == Long.MAX_VALUE) {
+                throw new IOException("没有收到预热麦克风的进度, 无法对齐门控时间");
+            }
+            List<long[]> kept = getRanges();
+            keep(path, kept.stream()
+                    .map(range -> new long[]{(range[0] - epochNanos) / 1_000_000, (range[1] - epochNanos) / 1_000_000})
+                    .collect(Collectors.toList()));
+            logger.info("预热麦克风录音保存为: {}, 保留{}段", path, kept.size());
+            done.complete(null);
+        } catch (Exception e) {
+            logger.info("预热麦克风录音异常, 异常信息: {}", e.getMessage());
+            done.completeExceptionally(e);
+        } finally {
+            ffmpegRunner.removeListener(this);
+        }
+    }
+
+    @Override
+    public void onProgress(String name, FfmpegProgress progress) {
+        if (!processName.equals(name) || progress.getOutTimeMicros() <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long estimate = now - progress.getOutTimeMicros() * 1000;
+        List<Long> toggles;
+        synchronized (this) {
+            if (estimate < epochNanos) {
+                epochNanos = estimate;
+            }
+            toggles = new ArrayList<>(pendingToggles);
+            pendingToggles.clear();
+        }
+        for (Long toggleNanos : toggles) {
+            toggleLatencyListener.accept(now - toggleNanos);
+        }
+    }
+
+    /**
+     * 切换门控, 只记录时间点, 不涉及任何进程和文件操作
+     *
+     * @param enabled 是否保留此后的录音
+     * @return 门控时间点, 单调时钟纳秒值
+     */
+    public long gate(boolean enabled) {
+        long requestNanos = System.nanoTime();
+        long gateNanos;
+        boolean capturing;
+        synchronized (this) {
+            gateNanos = Math.max(requestNanos, lastGateNanos);
+            lastGateNanos = gateNanos;
+            if (enabled && !open) {
+                open = true;
+                openNanos = gateNanos;
+            } else if (!enabled && open) {
+                ranges.add(new long[]{openNanos, gateNanos});
+                open = false;
+            }
+            capturing = epochNanos != Long.MAX_VALUE;
+            if (enabled && !capturing) {
+                pendingToggles.add(requestNanos);
+            }
+        }
+        if (enabled && capturing) {
+            toggleLatencyListener.accept(System.nanoTime() - requestNanos);
+        }
+        return gateNanos;
+    }
+
+    /**
+     * 关闭门控并结束录音进程
+     *
+     * @return 录音文件合并、清零完成后完成
+     */
+    public CompletableFuture<Void> stop() {
+        gate(false);
+        stopping = true;
+        quit();
+        return done;
+    }
+
+    private void quit() {
+        Process current = process;
+        if (current == null || !current.isAlive()) {
+            return;
+        }
+        try {
+            OutputStream os = current.getOutputStream();
+            os.write("q".getBytes());
+            os.flush();
+        } catch (IOException e) {
+            logger.info("通知预热麦克风进程退出异常, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 门控打开区间的快照, 正在打开的区间不包含在内
+     */
+    public synchronized List<long[]> getRanges() {
+        return new ArrayList<>(ranges);
+    }
+
+    /**
+     * 是否打开过门控
+     */
+    public synchronized boolean hasRanges() {
+        return !ranges.isEmpty() || open;
+    }
+
+    /**
+     * 第一个采样的采集时刻, 单调时钟纳秒值, 还未开始采集时为Long.MAX_VALUE
+     */
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public CompletableFuture<Void> getDone() {
+        return done;
+    }
+
+    /**
+     * 只保留录音中指定的区间, 其余采样原地清零
+     *
+     * @param wav       16位pcm录音
+     * @param keptMills 保留的区间, 每项为相对录音开始的开始和结束毫秒值, 按时间排列
+     */
+    public static void keep(Path wav, List<long[]> keptMills) throws IOException {
+        long startNanos = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(wav, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            WavHeader header = WavHeader.read(channel);
+            long blockAlign = header.getBlockAlign();
+            long totalBytes = header.getDataSize() / blockAlign * blockAlign;
+            ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_BLOCK_BYTES);
+            long zeroedBytes = 0;
+            long position = 0;
+            for (long[] range : keptMills) {
+                long from = Math.max(position, Math.min(totalBytes, range[0] * header.getSampleRate() / 1000 * blockAlign));
+                long to = Math.max(from, Math.min(totalBytes, range[1] * header.getSampleRate() / 1000 * blockAlign));
+                zeroedBytes += zero(channel, zeros, header.getDataOffset() + position, from - position);
+                position = to;
+            }
+            zeroedBytes += zero(channel, zeros, header.getDataOffset() + position, totalBytes - position);
+            channel.force(false);
+            logger.info("录音门控关闭区间清零{}字节, 耗时{}ms", zeroedBytes, (System.nanoTime() - startNanos) / 1_000_000);
+        }
+    }
+
+    private static long zero(FileChannel channel, ByteBuffer zeros, long position, long length) throws IOException {
+        long written = 0;
+        while (written < length) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), length - written));
+            written += channel.write(zeros, position + written);
+        }
+        return written;
+    }
+
+}
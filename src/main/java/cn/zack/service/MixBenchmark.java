@@ -0,0 +1,169 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 语音检测对混音的效果
+ * 以 --mix-benchmark=录音1.wav,录音2.wav 参数启动时, 把录音依次放到时间线上(每段之间间隔5秒), 分别按完整录音和只取有声区间混音,
+ * 统计读取的录音字节数和混音耗时; 再按60秒的录制分片划分窗口, 统计需要混入录音的窗口数量和耗时,
+ * 没有录音的窗口在合成时直接复制视频分片, 窗口数量的减少即为合成视频时少处理的分片
+ * 使用实际录制的录音才能反映真实的静音比例, 结果写入benchmark目录下的json
+ *
+ * @author 张云龙
+ */
+@Component
+public class MixBenchmark implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(MixBenchmark.class);
+
+    /**
+     * 录音在时间线上的间隔, 单位毫秒
+     */
+    private static final long CLIP_GAP_MILLS = 5000;
+
+    /**
+     * 与录制分片相同的窗口时长, 单位毫秒
+     */
+    private static final long WINDOW_MILLS = 60_000;
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("mix-benchmark")) {
+            return;
+        }
+        int exitCode = 0;
+        try {
+            List<String> values = args.getOptionValues("mix-benchmark");
+            if (values.isEmpty() || values.get(0).isEmpty()) {
+                throw new IllegalArgumentException("需要指定录音文件, 例如 --mix-benchmark=a.wav,b.wav");
+            }
+            measure(values.get(0).split(","));
+        } catch (Exception e) {
+            logger.info("混音基准测试异常, 异常信息: {}", e.getMessage());
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> code));
+    }
+
+    private void measure(String[] files) throws IOException {
+        Map<String, Long> audioMap = new LinkedHashMap<>();
+        long offset = 0;
+        long timelineMills = 0;
+        for (String file : files) {
+            if (audioMap.put(file, offset) != null) {
+                throw new IllegalArgumentException("录音文件重复: " + file);
+            }
+            timelineMills = offset + durationMills(Paths.get(file));
+            offset = timelineMills + CLIP_GAP_MILLS;
+        }
+
+        long detectStartNanos = System.nanoTime();
+        Map<String, List<long[]>> voiceActivity = new HashMap<>();
+        for (String file : files) {
+            List<long[]> regions = VoiceActivityDetector.scan(Paths.get(file), recordProperties.getVad());
+            if (regions == null) {
+                throw new IOException("语音检测失败: " + file);
+            }
+            voiceActivity.put(file, regions);
+        }
+        long detectNanos = System.nanoTime() - detectStartNanos;
+
+        Path dir = Paths.get(recordProperties.getBenchmark().getOutputDir());
+        Files.createDirectories(dir);
+        Path output = dir.resolve("mix-benchmark.wav");
+        // 先各混一次预热页缓存, 两种方式读取同样的文件
+        new AudioMixer().mix(audioMap, output);
+        long[] full = mixAll(audioMap, Collections.emptyMap(), output);
+        long[] vad = mixAll(audioMap, voiceActivity, output);
+        long[] fullWindows = mixWindows(audioMap, Collections.emptyMap(), timelineMills, output);
+        long[] vadWindows = mixWindows(audioMap, voiceActivity, timelineMills, output);
+        Files.deleteIfExists(output);
+
+        String json = "{\n" +
+                "  \"clips\": " + files.length + ",\n" +
+                "  \"timelineMills\": " + timelineMills + ",\n" +
+                "  \"detectMills\": " + format(detectNanos / 1e6) + ",\n" +
+                "  \"full\": {\"readBytes\": " + full[0] + ", \"mixMills\": " + format(full[1] / 1e6) +
+                ", \"mixedWindows\": " + fullWindows[0] + ", \"windowMills\": " + format(fullWindows[1] / 1e6) + "},\n" +
+                "  \"vad\": {\"readBytes\": " + vad[0] + ", \"mixMills\": " + format(vad[1] / 1e6) +
+                ", \"mixedWindows\": " + vadWindows[0] + ", \"windowMills\": " + format(vadWindows[1] / 1e6) + "},\n" +
+                "  \"readReduction\": " + format(full[0] > 0 ? 1 - (double) vad[0] / full[0] : 0) + ",\n" +
+                "  \"mixTimeReduction\": " + format(full[1] > 0 ? 1 - (double) vad[1] / full[1] : 0) + ",\n" +
+                "  \"windowTimeReduction\": " + format(fullWindows[1] > 0 ? 1 - (double) vadWindows[1] / fullWindows[1] : 0) + "\n" +
+                "}\n";
+        Path file = dir.resolve("mix-" + System.currentTimeMillis() + ".json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        logger.info("混音基准测试: 完整录音读取{}KB 耗时{}ms 混入{}个窗口, 只取有声区间读取{}KB 耗时{}ms 混入{}个窗口, 语音检测耗时{}ms, 结果: {}",
+                full[0] / 1024, full[1] / 1_000_000, fullWindows[0], vad[0] / 1024, vad[1] / 1_000_000, vadWindows[0],
+                detectNanos / 1_000_000, file.toAbsolutePath());
+    }
+
+    /**
+     * 整段混音
+     *
+     * @return 读取的录音字节数, 耗时纳秒
+     */
+    private long[] mixAll(Map<String, Long> audioMap, Map<String, List<long[]>> voiceActivity, Path output) throws IOException {
+        AudioMixer mixer = new AudioMixer(voiceActivity);
+        long startNanos = System.nanoTime();
+        mixer.mix(audioMap, output);
+        return new long[]{mixer.getReadBytes(), System.nanoTime() - startNanos};
+    }
+
+    /**
+     * 按录制分片的窗口混音, 与合成视频时相同
+     *
+     * @return 混入录音的窗口数量, 耗时纳秒
+     */
+    private long[] mixWindows(Map<String, Long> audioMap, Map<String, List<long[]>> voiceActivity, long timelineMills, Path output)
+            throws IOException {
+        AudioMixer mixer = new AudioMixer(voiceActivity);
+        long mixed = 0;
+        long startNanos = System.nanoTime();
+        for (long start = 0; start < timelineMills; start += WINDOW_MILLS) {
+            if (mixer.mixWindow(audioMap, start, Math.min(timelineMills, start + WINDOW_MILLS), output)) {
+                mixed++;
+            }
+        }
+        return new long[]{mixed, System.nanoTime() - startNanos};
+    }
+
+    private static long durationMills(Path wav) throws IOException {
+        try (FileChannel channel = FileChannel.open(wav, StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(channel);
+            return header.getDataSize() / header.getBlockAlign() * 1000 / header.getSampleRate();
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
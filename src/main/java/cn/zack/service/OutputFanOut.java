@@ -0,0 +1,128 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+
+import java.util.List;
+
+/**
+ * 一次采集扇出到多个输出
+ * 采集到的画面裁剪缩放后用 split 滤镜复制为多路, 在同一个录屏进程中分别编码为:
+ * 分片的主录制、低分辨率低码率的代理文件、以 MJPEG 发送到本机 UDP 端口的实时预览, 各路使用各自的编码参数
+ * 预览通过 UDP 发送, 没有接收方或接收方太慢时数据包直接丢弃, 发送不会阻塞, 不会拖慢主录制
+ * 代理文件为 MPEG-TS, 录屏进程异常退出时已写入的部分仍可播放, 停止录制后再封装为 mp4
+ *
+ * @author 张云龙
+ */
+public class OutputFanOut {
+
+    /**
+     * UDP 数据包大小, 小于以太网 MTU
+     */
+    private static final int PACKET_SIZE = 1400;
+
+    private final RecordProperties.Proxy proxy;
+
+    private final RecordProperties.Preview preview;
+
+    private final String scaleAlgorithm;
+
+    public OutputFanOut(RecordProperties.Proxy proxy, RecordProperties.Preview preview, String scaleAlgorithm) {
+        this.proxy = proxy;
+        this.preview = preview;
+        this.scaleAlgorithm = scaleAlgorithm;
+    }
+
+    /**
+     * 是否有主录制以外的输出
+     */
+    public boolean isEnabled() {
+        return proxy.isEnabled() || preview.isEnabled();
+    }
+
+    public boolean isProxyEnabled() {
+        return proxy.isEnabled();
+    }
+
+    public boolean isPreviewEnabled() {
+        return preview.isEnabled();
+    }
+
+    /**
+     * 追加录屏命令中输入之后的全部参数
+     *
+     * @param command        录屏命令, 已包含全部输入
+     * @param settings       主录制的编码档位
+     * @param idleVfr        主录制是否为可变帧率模式
+     * @param segmentSeconds 分片时长, 单位秒
+     * @param threads        主录制的 libx264 线程数, 0为ffmpeg默认
+     * @param videoFilter    裁剪缩放滤镜, 在复制之前执行, 为空时不添加
+     * @param audioFilter    声音滤镜, 输出标签为[mixed_audio], 为空时声音取第1路输入
+     * @param outputOption   每一路输出都带上的参数, 例如 -shortest, 为空字符串或以空格结尾
+     * @param masterOutput   主录制的输出参数, 包含分片参数和文件名, 每项为一个参数
+     * @param proxyPath      代理文件
+     */
+    public void appendArgs(FfmpegCommand command, EncoderSettings settings, boolean idleVfr, int segmentSeconds, int threads,
+                           String videoFilter, String audioFilter, String outputOption, List<String> masterOutput, String proxyPath) {
+        int outputs = 1 + (proxy.isEnabled() ? 1 : 0) + (preview.isEnabled() ? 1 : 0);
+        StringBuilder graph = new StringBuilder("[0:v]");
+        if (videoFilter != null && !videoFilter.isEmpty()) {
+            graph.append(videoFilter).append(',');
+        }
+        graph.append("split=").append(outputs).append("[vm]");
+        if (proxy.isEnabled()) {
+            graph.append("[vp]");
+        }
+        if (preview.isEnabled()) {
+            graph.append("[vv]");
+        }
+        String idleFilter = settings.idleFilter(idleVfr);
+        graph.append(";[vm]").append(idleFilter.isEmpty() ? "null" : idleFilter).append("[master]");
+        if (proxy.isEnabled()) {
+            graph.append(";[vp]").append(scale(proxy.getOutputSize())).append(",fps=").append(proxy.getFrameRate()).append("[proxy]");
+        }
+        if (preview.isEnabled()) {
+            graph.append(";[vv]").append(scale(preview.getOutputSize())).append(",fps=").append(preview.getFrameRate()).append("[preview]");
+        }
+        String masterAudio = "1:a";
+        String proxyAudio = "1:a";
+        if (audioFilter != null && !audioFilter.isEmpty()) {
+            graph.append(';').append(audioFilter);
+            // 滤镜的输出只能使用一次, 代理文件需要另一份
+            if (proxy.isEnabled()) {
+                graph.append(";[mixed_audio]asplit=2[master_audio][proxy_audio]");
+                masterAudio = "[master_audio]";
+                proxyAudio = "[proxy_audio]";
+            } else {
+                masterAudio = "[mixed_audio]";
+            }
+        }
+
+        StringBuilder args = new StringBuilder("-filter_complex ").append(graph)
+                .append(" -map [master] -map ").append(masterAudio).append(' ').append(outputOption)
+                .append(settings.toCodecArgs(idleVfr, segmentSeconds)).append(threads > 0 ? " -threads " + threads : "")
+                .append(' ').append(EncoderSettings.AUDIO_ARGS);
+        command.options(args.toString()).args(masterOutput);
+        if (proxy.isEnabled()) {
+            args.setLength(0);
+            // 固定码率上限, 关键帧间隔2秒, 便于分享后拖动播放
+            args.append(" -map [proxy] -map ").append(proxyAudio).append(' ').append(outputOption)
+                    .append("-vcodec libx264 -preset:v ").append(proxy.getPreset())
+                    .append(" -b:v ").append(proxy.getVideoBitrate()).append(" -maxrate ").append(proxy.getVideoBitrate())
+                    .append(" -bufsize ").append(proxy.getVideoBitrate()).append(" -g ").append(proxy.getFrameRate() * 2)
+                    .append(" -pix_fmt yuv420p -threads 1 -acodec aac -b:a ").append(proxy.getAudioBitrate())
+                    .append(" -ar 44100 -ac 2 -f mpegts");
+            command.options(args.toString()).arg(proxyPath);
+        }
+        if (preview.isEnabled()) {
+            args.setLength(0);
+            args.append(" -map [preview] ").append(outputOption).append("-an -vcodec mjpeg -q:v ").append(preview.getQuality())
+                    .append(" -pix_fmt yuvj420p -f mjpeg udp://127.0.0.1:").append(preview.getPort())
+                    .append("?pkt_size=").append(PACKET_SIZE);
+            command.options(args.toString());
+        }
+    }
+
+    private String scale(String outputSize) {
+        return CaptureGeometry.parse("", outputSize, scaleAlgorithm).toFilter(true);
+    }
+}
@@ -0,0 +1,253 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 录制结束后的后台任务调度
+ * 实时录屏和录音进程不经过这里, 始终最先运行; 停止录制后的分片合并、生成视频时的录音合成、代理文件拼接、异常退出后的恢复
+ * 都作为后台任务提交到有界的优先级队列, 由固定数量的工作线程按优先级和提交顺序执行, 任务中启动的ffmpeg进程降低优先级运行
+ * 有会话正在录制时同时运行的任务数降为 recording-parallelism, 录制全部结束后恢复, 正在运行的任务不会被打断
+ * 正在运行的任务无法让出, HIGH 任务在上限之外额外保留一个名额和工作线程, 不会排在耗时的恢复等低优先级任务之后
+ * 任务中不能再提交任务并等待其完成, 并行度为1时会互相等待
+ *
+ * @author 张云龙
+ */
+@Component
+public class PostProcessScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessScheduler.class);
+
+    /**
+     * 任务优先级, 同一优先级按提交顺序执行
+     */
+    public enum Priority {
+        /**
+         * 停止录制后合并分片, 决定视频多久可以播放
+         */
+        HIGH,
+        /**
+         * 生成视频时合成录音
+         */
+        NORMAL,
+        /**
+         * 代理文件拼接、异常退出后的恢复
+         */
+        LOW
+    }
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final PriorityQueue<Job<?>> queue = new PriorityQueue<>();
+
+    private int parallelism;
+
+    private int recordingParallelism;
+
+    private int queueCapacity;
+
+    /**
+     * 正在运行的任务数
+     */
+    private int running;
+
+    /**
+     * 正在录制的会话数
+     */
+    private int capturing;
+
+    private long sequence;
+
+    @PostConstruct
+    public void init() {
+        RecordProperties.PostProcess config = recordProperties.getPostProcess();
+        parallelism = Math.max(1, config.getParallelism());
+        recordingParallelism = Math.max(1, Math.min(parallelism, config.getRecordingParallelism()));
+        queueCapacity = Math.max(1, config.getQueueCapacity());
+        // 多出的一个工作线程只在HIGH任务使用保留名额时运行
+        for (int i = 1; i <= parallelism + 1; i++) {
+            Thread worker = new Thread(this::work, "post-process-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.NORM_PRIORITY - 1);
+            worker.start();
+        }
+        Gauge.builder("record.postprocess.queue.depth", this, PostProcessScheduler::getQueueDepth).register(meterRegistry);
+        Gauge.builder("record.postprocess.running", this, PostProcessScheduler::getRunning).register(meterRegistry);
+        Gauge.builder("record.postprocess.limit", this, PostProcessScheduler::getLimit).register(meterRegistry);
+        logger.info("后台任务并行度: {}, 录制期间: {}, 排队上限: {}, ffmpeg进程nice值: {}", parallelism, recordingParallelism,
+                queueCapacity, config.getNiceness());
+    }
+
+    /**
+     * 提交后台任务
+     *
+     * @param name     任务名称, 用于日志
+     * @param priority 优先级
+     * @param task     任务
+     * @return 任务完成后完成, 队列已满时直接失败
+     */
+    public <T> CompletableFuture<T> submit(String name, Priority priority, Callable<T> task) {
+        Job<T> job;
+        synchronized (this) {
+            if (queue.size() >= queueCapacity) {
+                meterRegistry.counter("record.postprocess.rejected", "priority", tag(priority)).increment();
+                logger.info("后台任务队列已满, 拒绝任务: {}", name);
+                return CompletableFuture.failedFuture(new RejectedExecutionException("后台任务队列已满" + queueCapacity + ", 任务: " + name));
+            }
+            job = new Job<>(name, priority, sequence++, task);
+            queue.add(job);
+            notifyAll();
+            logger.info("后台任务排队: {}, 优先级{}, 排队{}个, 运行{}个", name, priority, queue.size(), running);
+        }
+        return job.future;
+    }
+
+    /**
+     * 提交后台任务并等待完成, 只能在工作线程以外调用
+     *
+     * @return 任务的结果
+     * @throws Exception 任务抛出的异常, 或队列已满
+     */
+    public <T> T call(String name, Priority priority, Callable<T> task) throws Exception {
+        try {
+            return submit(name, priority, task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * 会话开始录制, 之后同时运行的任务数降为录制期间的并行度
+     */
+    public synchronized void captureStarted() {
+        capturing++;
+    }
+
+    /**
+     * 会话的录屏进程已退出
+     */
+    public synchronized void captureFinished() {
+        capturing--;
+        notifyAll();
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * 当前同时运行的任务数上限
+     */
+    public synchronized int getLimit() {
+        return capturing > 0 ? recordingParallelism : parallelism;
+    }
+
+    /**
+     * 指定优先级的任务可以开始时, 正在运行的任务数上限, HIGH 任务多一个保留名额
+     */
+    private int getLimit(Priority priority) {
+        return priority == Priority.HIGH ? getLimit() + 1 : getLimit();
+    }
+
+    /**
+     * 工作线程: 未超过当前上限时取出优先级最高的任务执行
+     */
+    private void work() {
+        while (true) {
+            Job<?> job;
+            boolean backedOff;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() || running >= getLimit(queue.peek().priority)) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                job = queue.poll();
+                running++;
+                backedOff = capturing > 0;
+            }
+            long waitNanos = System.nanoTime() - job.submitNanos;
+            meterRegistry.timer("record.postprocess.wait", "priority", tag(job.priority)).record(waitNanos, TimeUnit.NANOSECONDS);
+            logger.info("开始后台任务: {}, 排队{}ms{}", job.name, waitNanos / 1_000_000, backedOff ? ", 录制期间降低并行度" : "");
+            long startNanos = System.nanoTime();
+            try {
+                job.run();
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+            long runNanos = System.nanoTime() - startNanos;
+            meterRegistry.timer("record.postprocess.run", "priority", tag(job.priority)).record(runNanos, TimeUnit.NANOSECONDS);
+            logger.info("完成后台任务: {}, 耗时{}ms", job.name, runNanos / 1_000_000);
+        }
+    }
+
+    private static String tag(Priority priority) {
+        return priority.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 排队中的任务, 先按优先级再按提交顺序排列
+     */
+    private static class Job<T> implements Comparable<Job<?>> {
+
+        private final String name;
+
+        private final Priority priority;
+
+        private final long sequence;
+
+        private final Callable<T> task;
+
+        private final long submitNanos = System.nanoTime();
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Job(String name, Priority priority, long sequence, Callable<T> task) {
+            this.name = name;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        void run() {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int order = priority.compareTo(other.priority);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+}
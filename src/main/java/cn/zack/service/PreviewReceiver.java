@@ -0,0 +1,123 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+
+/**
+ * 实时预览接收
+ * 录屏进程把预览画面以 MJPEG 发送到本机 UDP 端口, 一帧 JPEG 拆成多个数据包, 这里按 JPEG 的起止标记重新拼出每一帧并解码
+ * 丢包导致的残帧解码失败时直接丢弃, 等待下一帧
+ *
+ * @author 张云龙
+ */
+public class PreviewReceiver implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PreviewReceiver.class);
+
+    /**
+     * 单帧上限, 超过时认为数据错乱, 重新寻找帧起始
+     */
+    private static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+
+    private final int port;
+
+    private final Consumer<BufferedImage> listener;
+
+    private DatagramSocket socket;
+
+    private byte[] frame = new byte[256 * 1024];
+
+    private int length;
+
+    public PreviewReceiver(int port, Consumer<BufferedImage> listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /**
+     * 绑定本机端口并在后台线程中接收
+     */
+    public void start() throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread thread = new Thread(this::receive, "preview-receiver");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("开始接收实时预览, 端口{}", port);
+    }
+
+    private void receive() {
+        byte[] data = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        int previous = -1;
+        try {
+            while (!socket.isClosed()) {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                for (int i = 0; i < packet.getLength(); i++) {
+                    int b = data[i] & 0xFF;
+                    if (length == 0) {
+                        // 寻找帧起始标记 FF D8
+                        if (previous == 0xFF && b == 0xD8) {
+                            frame[0] = (byte) 0xFF;
+                            frame[1] = (byte) 0xD8;
+                            length = 2;
+                        }
+                    } else {
+                        append(b);
+                        // 帧结束标记 FF D9, 压缩数据中的 FF 后总是跟着 00, 不会误判
+                        if (previous == 0xFF && b == 0xD9) {
+                            decode();
+                            length = 0;
+                        }
+                    }
+                    previous = b;
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                logger.info("接收实时预览异常, 异常信息: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void append(int b) {
+        if (length == frame.length) {
+            if (length >= MAX_FRAME_BYTES) {
+                length = 0;
+                return;
+            }
+            byte[] larger = new byte[Math.min(MAX_FRAME_BYTES, frame.length * 2)];
+            System.arraycopy(frame, 0, larger, 0, length);
+            frame = larger;
+        }
+        frame[length++] = (byte) b;
+    }
+
+    private void decode() {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(frame, 0, length));
+            if (image != null) {
+                listener.accept(image);
+            }
+        } catch (Exception e) {
+            // 丢包造成的残帧, 等待下一帧
+        }
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package cn.zack.service;
+
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 录制预写日志
+ * 每次录制在 journal 目录下对应一个日志文件, 以分片前缀的绝对路径区分, 按行追加记录录制参数、分片边界、增量合并进度和麦克风录音的偏移,
+ * 分片关闭等关键节点写入后立即落盘, 程序或 ffmpeg 异常退出后, 下次启动时据此继续完成未完成的合并
+ * 录制正常完成后删除日志文件, journal 目录中只保留未完成的录制
+ *
+ * @author 张云龙
+ */
+public class RecordingJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RecordingJournal.class);
+
+    /**
+     * 日志目录, 位于程序工作目录下
+     */
+    public static final Path JOURNAL_DIR = Paths.get("journal");
+
+    /**
+     * 录制开始: 最终文件 分片前缀 分片后缀 是否增量合并 是否实时混音 麦克风设备 开始时间
+     */
+    public static final String SESSION = "SESSION";
+
+    /**
+     * 分片关闭: 序号 分片文件 开始时间 结束时间 字节数
+     */
+    public static final String SEGMENT = "SEGMENT";
+
+    /**
+     * 分片已追加到最终文件: 序号 追加后最终文件的字节数
+     */
+    public static final String APPENDED = "APPENDED";
+
+    /**
+     * 视频分片已全部合并
+     */
+    public static final String VIDEO_DONE = "VIDEO_DONE";
+
+    /**
+     * 开始一段麦克风录音: 录音文件 相对视频开始的偏移(毫秒), 同一录音文件以最后一条记录的偏移为准
+     */
+    public static final String MIC = "MIC";
+
+    /**
+     * 一段麦克风录音的分片已合并: 录音文件
+     */
+    public static final String MIC_DONE = "MIC_DONE";
+
+    /**
+     * 切换麦克风门控: on/off 相对视频开始的偏移(毫秒)
+     * 实时混音模式下仅作记录, 预热麦克风模式下异常退出后据此只保留门控打开的录音
+     */
+    public static final String GATE = "GATE";
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * 写入日志的耗时, 用于衡量日志对录制过程的影响
+     */
+    private final Timer syncTimer;
+
+    private RecordingJournal(Path path, Timer syncTimer, StandardOpenOption mode) throws IOException {
+        this.path = path;
+        this.syncTimer = syncTimer;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+    }
+
+    /**
+     * 为一次录制创建日志
+     * 文件名为分片文件名加上分片前缀绝对路径的摘要, 不同目录下同名的录制不会写入同一个日志;
+     * 同一前缀的新录制会覆盖旧录制的分片, 日志也随之重新开始
+     *
+     * @param prefix    分片前缀
+     * @param syncTimer 写入耗时统计
+     */
+    public static RecordingJournal create(Path prefix, Timer syncTimer) throws IOException {
+        Files.createDirectories(JOURNAL_DIR);
+        String key = UUID.nameUUIDFromBytes(prefix.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8)).toString();
+        return new RecordingJournal(JOURNAL_DIR.resolve(prefix.getFileName() + "-" + key + ".journal"), syncTimer,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * 打开已有的日志继续追加, 用于恢复未完成的录制
+     *
+     * @param path      日志文件
+     * @param syncTimer 写入耗时统计
+     */
+    public static RecordingJournal open(Path path, Timer syncTimer) throws IOException {
+        return new RecordingJournal(path, syncTimer, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param sync   是否立即落盘, 分片边界等恢复时必需的记录需要落盘
+     * @param type   记录类型
+     * @param fields 记录内容, 以制表符分隔
+     */
+    public synchronized void append(boolean sync, String type, Object... fields) {
+        long startNanos = System.nanoTime();
+        StringBuilder line = new StringBuilder(type);
+        for (Object field : fields) {
+            line.append('\t').append(field);
+        }
+        line.append('\n');
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            logger.info("写入录制日志异常, 异常信息: {}", e.getMessage());
+        }
+        syncTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 录制及合并全部完成后删除日志
+     */
+    public void complete() {
+        try {
+            close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.info("删除录制日志异常, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * 读取日志中的全部记录, 异常退出时最后一行可能不完整, 直接忽略
+     *
+     * @return 每条记录按制表符拆分后的字段, 第一个字段为记录类型
+     */
+    public static List<String[]> read(Path path) throws IOException {
+        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        List<String[]> records = new ArrayList<>();
+        for (String line : content.substring(0, content.lastIndexOf('\n') + 1).split("\n")) {
+            if (!line.isEmpty()) {
+                records.add(line.split("\t", -1));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 列出所有未完成录制的日志
+     */
+    public static List<Path> listUnfinished() throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(JOURNAL_DIR)) {
+            return result;
+        }
+        try (Stream<Path> stream = Files.list(JOURNAL_DIR)) {
+            stream.filter(p -> p.getFileName().toString().endsWith(".journal")).forEach(result::add);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,254 @@
+package cn.zack.service;
+
+import cn.zack.utils.FileNameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 异常退出的录制恢复
+ * 程序启动后读取 journal 目录中未完成的录制日志, 每个日志作为一个低优先级的后台任务, 从日志中最后完成的位置继续:
+ * 增量合并模式下只追加还未追加的分片, 分片模式下合并已登记的分片, 再合并麦克风录音分片并按日志中的偏移合成到视频中
+ * 恢复耗时只与剩余的工作量有关, 与录制总时长无关
+ *
+ * @author 张云龙
+ */
+@Component
+public class RecordingRecovery implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(RecordingRecovery.class);
+
+    @Autowired
+    private WindowsScreenRecord windowsScreenRecord;
+
+    @Autowired
+    private PostProcessScheduler postProcessScheduler;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        List<Path> journals = RecordingJournal.listUnfinished();
+        if (journals.isEmpty()) {
+            return;
+        }
+        // 队列已满的日志留到下次启动时恢复
+        for (Path journal : journals) {
+            postProcessScheduler.submit("recovery-" + journal.getFileName(), PostProcessScheduler.Priority.LOW, () -> {
+                recover(journal);
+                return null;
+            }).whenComplete((v, e) -> {
+                if (e != null) {
+                    logger.info("恢复录制异常, 日志: {}, 异常信息: {}", journal, e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * 恢复一次未完成的录制
+     *
+     * @param journalPath 录制日志
+     */
+    private void recover(Path journalPath) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        String[] session = null;
+        List<String[]> segments = new ArrayList<>();
+        long appendedSize = 0;
+        int appendedCount = 0;
+        boolean videoDone = false;
+        Map<String, Long> micClips = new LinkedHashMap<>();
+        Set<String> micDone = new HashSet<>();
+        List<String[]> gates = new ArrayList<>();
+        for (String[] record : RecordingJournal.read(journalPath)) {
+            switch (record[0]) {
+                case RecordingJournal.SESSION:
+                    session = record;
+                    break;
+                case RecordingJournal.SEGMENT:
+                    segments.add(record);
+                    break;
+                case RecordingJournal.APPENDED:
+                    appendedCount = Integer.parseInt(record[1]) + 1;
+                    appendedSize = Long.parseLong(record[2]);
+                    break;
+                case RecordingJournal.VIDEO_DONE:
+                    videoDone = true;
+                    break;
+                case RecordingJournal.MIC:
+                    micClips.put(record[1], Long.parseLong(record[2]));
+                    break;
+                case RecordingJournal.MIC_DONE:
+                    micDone.add(record[1]);
+                    break;
+                case RecordingJournal.GATE:
+                    gates.add(record);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (session == null) {
+            logger.info("录制日志不完整, 删除: {}", journalPath);
+            Files.deleteIfExists(journalPath);
+            return;
+        }
+        String output = session[1];
+        String prefix = session[2];
+        boolean incremental = Boolean.parseBoolean(session[4]);
+        boolean liveMix = Boolean.parseBoolean(session[5]);
+        logger.info("发现未完成的录制: {}, 已登记{}个分片, 已追加{}个分片", output, segments.size(), appendedCount);
+
+        RecordingJournal journal = RecordingJournal.open(journalPath, windowsScreenRecord.journalTimer());
+        if (!videoDone) {
+            if (incremental) {
+                recoverIncremental(journal, output, prefix, segments, appendedSize, appendedCount);
+            } else if (!recoverSegments(output, segments)) {
+                journal.close();
+                return;
+            }
+            journal.append(true, RecordingJournal.VIDEO_DONE);
+        }
+
+        // 合并异常退出时还未合并的录音分片, 录音分片被中断时文件头长度可能未回填, 以文件实际长度为准
+        for (String clip : micClips.keySet()) {
+            if (micDone.contains(clip)) {
+                continue;
+            }
+            List<Path> shards = probeShards(FileNameUtils.removeExtension(clip), FileNameUtils.getExtension(clip), 0);
+            if (!shards.isEmpty()) {
+                WavConcatenator.concat(shards, Paths.get(clip));
+                for (Path shard : shards) {
+                    Files.deleteIfExists(shard);
+                }
+                // 非实时混音模式下的门控来自预热麦克风, 只保留门控打开的部分
+                if (!liveMix && !gates.isEmpty()) {
+                    MicrophoneCapture.keep(Paths.get(clip), toKeptRanges(gates, micClips.get(clip)));
+                }
+            }
+            journal.append(true, RecordingJournal.MIC_DONE, clip);
+        }
+        micClips.keySet().removeIf(clip -> !Files.exists(Paths.get(clip)));
+        if (!liveMix && !micClips.isEmpty()) {
+            String resultPath = prefix + "_recovered.mp4";
+            // 录制时的检测结果只在内存中, 恢复时重新检测整段录音
+            Map<String, List<long[]>> voiceActivity = new HashMap<>();
+            for (String clip : micClips.keySet()) {
+                List<long[]> regions = windowsScreenRecord.scanVoiceActivity(Paths.get(clip));
+                if (regions != null) {
+                    voiceActivity.put(clip, regions);
+                }
+            }
+            List<Segment> recorded = new ArrayList<>();
+            for (String[] record : segments) {
+                recorded.add(new Segment(Integer.parseInt(record[1]), Paths.get(record[2]), Double.parseDouble(record[3]),
+                        Double.parseDouble(record[4]), Long.parseLong(record[5]), 0));
+            }
+            if (!windowsScreenRecord.mergeSegmentsAndAudio("recovery-merge", recorded, incremental, output, resultPath, micClips,
+                    voiceActivity, journal)) {
+                journal.close();
+                return;
+            }
+            output = resultPath;
+        }
+        // 分片模式下为合成录音保留的分片, 合成成功或无需合成后才删除; 合成失败时保留, 下次启动仍可并行合成
+        for (String[] segment : segments) {
+            Files.deleteIfExists(Paths.get(segment[2]));
+        }
+        journal.complete();
+        logger.info("录制恢复完成: {}, 耗时{}ms", output, (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * 把门控记录转换为录音中保留的区间, 异常退出时仍打开的门控保留到录音末尾
+     *
+     * @param gates     门控记录, 时间相对视频开始
+     * @param micOffset 录音相对视频开始的偏移, 单位毫秒
+     * @return 相对录音开始的保留区间, 单位毫秒
+     */
+    private List<long[]> toKeptRanges(List<String[]> gates, long micOffset) {
+        List<long[]> ranges = new ArrayList<>();
+        long openMills = -1;
+        for (String[] gate : gates) {
+            long mills = Long.parseLong(gate[2]) - micOffset;
+            if ("on".equals(gate[1]) && openMills < 0) {
+                openMills = Math.max(0, mills);
+            } else if ("off".equals(gate[1]) && openMills >= 0) {
+                ranges.add(new long[]{openMills, mills});
+                openMills = -1;
+            }
+        }
+        if (openMills >= 0) {
+            ranges.add(new long[]{openMills, Long.MAX_VALUE / 1_000_000});
+        }
+        return ranges;
+    }
+
+    /**
+     * 增量合并模式: 截断到最后一次记录的长度, 从下一个分片继续追加
+     * 已登记的分片按日志中的路径, 未来得及登记的分片按序号推算文件名, 被中断的最后一个ts分片也可以直接追加
+     */
+    private void recoverIncremental(RecordingJournal journal, String output, String prefix, List<String[]> segments,
+                                    long appendedSize, int appendedCount) throws IOException {
+        SegmentFinalizer finalizer = new SegmentFinalizer(Paths.get(output), journal);
+        finalizer.resume(appendedSize, appendedCount);
+        for (int index = appendedCount; ; index++) {
+            Path shard = index < segments.size() ? Paths.get(segments.get(index)[2]) : shardPath(prefix, "ts", index);
+            if (!Files.exists(shard)) {
+                break;
+            }
+            finalizer.append(index, shard);
+        }
+        finalizer.finish();
+        windowsScreenRecord.writeKeyframeIndex(output);
+    }
+
+    /**
+     * 分片模式: 合并日志中已登记的分片, 被中断的mp4分片缺少索引无法读取, 不参与合并
+     * 合并后分片仍保留, 由调用方在合成录音后删除
+     */
+    private boolean recoverSegments(String output, List<String[]> segments) throws IOException, InterruptedException {
+        List<String> concatList = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            double start = Double.parseDouble(segments.get(i)[3]);
+            double end = i + 1 < segments.size() ? Double.parseDouble(segments.get(i + 1)[3]) : Double.parseDouble(segments.get(i)[4]);
+            concatList.add(FfmpegCommand.concatEntry(segments.get(i)[2]));
+            concatList.add("duration " + String.format("%.6f", end - start));
+        }
+        if (concatList.isEmpty()) {
+            return true;
+        }
+        // 分片留到合成录音之后再删除, 合成时按分片并行处理
+        return windowsScreenRecord.concatVideoSegments("recovery-concat", concatList, output);
+    }
+
+    /**
+     * 按序号依次探测分片文件, 直到某个序号的分片不存在
+     */
+    private List<Path> probeShards(String prefix, String suffix, int from) {
+        List<Path> shards = new ArrayList<>();
+        for (int index = from; ; index++) {
+            Path shard = shardPath(prefix, suffix, index);
+            if (!Files.exists(shard)) {
+                return shards;
+            }
+            shards.add(shard);
+        }
+    }
+
+    private Path shardPath(String prefix, String suffix, int index) {
+        return Paths.get(prefix + "_" + String.format("%03d", index) + "." + suffix);
+    }
+}
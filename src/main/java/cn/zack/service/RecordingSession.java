@@ -0,0 +1,1142 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import cn.zack.utils.FileNameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 一次录制会话
+ * 状态按 IDLE → STARTING → RECORDING → STOPPING → STOPPED → FINALIZING → FINISHED 单向流转, 任一步失败进入 FAILED
+ * 开始、停止、切换麦克风、生成视频都提交到录制线程池执行并立即返回 CompletableFuture, 调用方(包括 EDT)不会被阻塞
+ * 状态在会话锁内检查和切换, 不符合当前状态的操作直接以 IllegalStateException 失败, 重复点击不会启动多个进程
+ *
+ * @author 张云龙
+ */
+public class RecordingSession {
+    private static final Logger logger = LoggerFactory.getLogger(RecordingSession.class);
+
+    /**
+     * 实时混音模式下麦克风音量门控滤镜的实例名, 通过ffmpeg的c命令实时修改其音量
+     */
+    private static final String MIC_GATE_FILTER = "volume@micgate";
+
+    /**
+     * 分片时长, 单位秒
+     */
+    private static final int SEGMENT_SECONDS = 60;
+
+    /**
+     * 录制会话状态
+     */
+    public enum State {
+        /**
+         * 已创建, 还未开始录制
+         */
+        IDLE,
+        /**
+         * 正在启动录屏进程
+         */
+        STARTING,
+        /**
+         * 录制中, 可以切换麦克风
+         */
+        RECORDING,
+        /**
+         * 已点击停止, 正在等待录屏进程退出并合并分片
+         */
+        STOPPING,
+        /**
+         * 视频已可播放, 等待生成视频
+         */
+        STOPPED,
+        /**
+         * 正在把麦克风录音合并到视频中
+         */
+        FINALIZING,
+        /**
+         * 已生成最终视频
+         */
+        FINISHED,
+        /**
+         * 录制或合并失败, 录制日志保留, 下次启动时恢复
+         */
+        FAILED
+    }
+
+    /**
+     * 会话标识, 同时作为ffmpeg进程名称的后缀
+     */
+    private final String id;
+
+    private final WindowsScreenRecord recorder;
+    private final FfmpegRunner ffmpegRunner;
+    private final EncoderScheduler encoderScheduler;
+    private final PostProcessScheduler postProcessScheduler;
+    private final CaptureBackend captureBackend;
+    private final ExecutorService executor;
+
+    /**
+     * ffmpeg可执行文件
+     */
+    private final String ffmpegPath;
+
+    /**
+     * 视频文件保存位置
+     */
+    private final String output;
+    private final String prefix;
+    private final String suffix;
+
+    /**
+     * 麦克风设备名称
+     */
+    private final String microphoneDeviceName;
+
+    /**
+     * 采集区域和输出分辨率
+     */
+    private final CaptureGeometry geometry;
+
+    /**
+     * 主录制以外的代理文件和实时预览
+     */
+    private final OutputFanOut fanOut;
+
+    private final boolean liveMix;
+
+    /**
+     * 是否预热麦克风, 仅在非实时混音模式下生效
+     */
+    private final boolean micPrewarm;
+    private final boolean incremental;
+    private final boolean idleVfr;
+    private final boolean adaptiveEncoder;
+
+    /**
+     * 录屏进程是否经管道输出, 由应用切分分片并写入磁盘
+     */
+    private final boolean pipeWriter;
+
+    private final List<Consumer<State>> stateListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 当前状态, 只在会话锁内读写
+     */
+    private State state = State.IDLE;
+
+    /**
+     * 第一个录屏进程启动后完成
+     */
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+    /**
+     * 视频分片全部合并、视频可播放后完成, 结果为视频文件
+     */
+    private final CompletableFuture<String> videoDone = new CompletableFuture<>();
+
+    /**
+     * 麦克风操作按调用顺序串行执行, 快速连续切换也不会乱序
+     */
+    private CompletableFuture<Void> micChain = CompletableFuture.completedFuture(null);
+
+    /**
+     * 非实时混音模式下正在录制的麦克风音频, 只在麦克风操作链中读写
+     */
+    private MicClip activeClip;
+
+    /**
+     * 本次录制中单独录制的麦克风音频, key为音频文件, value为相对视频开始的偏移(毫秒)
+     */
+    private final Map<String, Long> micClips = new LinkedHashMap<>();
+
+    /**
+     * 录音文件的有声区间, 录音分片关闭时检测, 合成时只混入有声部分; 没有检测结果的录音全部混入
+     */
+    private final Map<String, List<long[]>> voiceActivity = new HashMap<>();
+
+    /**
+     * 正在录制的麦克风音频, 只在录音线程中写入
+     */
+    private volatile MicClip recordingClip;
+
+    private final FfmpegProgressListener micClipListener = this::onMicClipProgress;
+
+    /**
+     * 预热模式下持续录音的麦克风, 其他模式为null
+     */
+    private volatile MicrophoneCapture microphoneCapture;
+
+    /**
+     * 每段麦克风音频分片合并完成的future
+     */
+    private final List<CompletableFuture<Void>> micClipDone = new CopyOnWriteArrayList<>();
+
+    private volatile Process videoProcess;
+
+    /**
+     * 当前录屏进程的画面来源, 画面由ffmpeg直接采集时为null
+     */
+    private volatile FrameFeed videoFeed;
+
+    /**
+     * 是否已点击停止录制, 用于区分停止录制和自适应编码重启进程
+     */
+    private volatile boolean videoStopping;
+
+    /**
+     * 实时混音模式下麦克风门控是否打开
+     */
+    private volatile boolean microphoneEnabled;
+
+    private volatile RecordingJournal journal;
+
+    /**
+     * 录制结束时登记的全部分片, 生成视频时按分片并行合成录音
+     */
+    private volatile List<Segment> recordedSegments = Collections.emptyList();
+
+    /**
+     * 分片模式下有单独录音时保留的分片, 生成视频后删除
+     */
+    private volatile SegmentRegistry retainedSegments;
+
+    /**
+     * 开始录制视频那一刻的毫秒值, 用于计算麦克风录音的偏移
+     */
+    private volatile long videoStartMills;
+
+    /**
+     * 开始录制视频那一刻的单调时钟纳秒值, 预热麦克风的门控时间和录音开始时间都以此为基准
+     */
+    private volatile long videoStartNanos;
+
+    /**
+     * 点击停止录制那一刻的纳秒值, 用于统计停止到视频可播放的耗时
+     */
+    private volatile long stopRequestedNanos;
+
+    /**
+     * 录屏进程是否还在运行, 运行期间占用一个编码进程名额, 后台任务降低并行度
+     */
+    private final AtomicBoolean capturing = new AtomicBoolean();
+
+    RecordingSession(String id, WindowsScreenRecord recorder, FfmpegRunner ffmpegRunner, EncoderScheduler encoderScheduler,
+                     PostProcessScheduler postProcessScheduler, CaptureBackend captureBackend, ExecutorService executor, RecordProperties properties,
+                     String output, String microphoneDeviceName, CaptureGeometry geometry) {
+        this.id = id;
+        this.recorder = recorder;
+        this.ffmpegRunner = ffmpegRunner;
+        this.encoderScheduler = encoderScheduler;
+        this.postProcessScheduler = postProcessScheduler;
+        this.captureBackend = captureBackend;
+        this.executor = executor;
+        this.ffmpegPath = properties.getFfmpegPath();
+        this.output = output;
+        this.prefix = FileNameUtils.removeExtension(output);
+        this.suffix = FileNameUtils.getExtension(output);
+        this.microphoneDeviceName = microphoneDeviceName;
+        this.geometry = geometry;
+        this.fanOut = new OutputFanOut(properties.getProxy(), properties.getPreview(), geometry.getScaleAlgorithm());
+        // 画面通过标准输入送入时无法向录屏进程发送门控命令
+        this.liveMix = properties.isLiveMix() && !captureBackend.hasFrameFeed()
+                && microphoneDeviceName != null && !microphoneDeviceName.isEmpty();
+        this.micPrewarm = !liveMix && properties.isMicPrewarm() && microphoneDeviceName != null && !microphoneDeviceName.isEmpty();
+        this.incremental = properties.isIncrementalFinalize();
+        this.idleVfr = properties.isIdleVfr();
+        this.adaptiveEncoder = properties.isAdaptiveEncoder();
+        this.pipeWriter = properties.getPipeWriter().isEnabled();
+    }
+
+    /**
+     * 非增量合并模式下录制分片的后缀
+     * 自适应编码切换档位后参数集(SPS/PPS)会变化, mp4分片的参数集只在文件头的avcC中, 流复制拼接时沿用第一个分片的avcC,
+     * 切换后的画面无法正确解码; 开启自适应编码时改为每个关键帧都带参数集的MPEG-TS分片, 拼接后的mp4仍可正常解码
+     */
+    private String shardSuffix() {
+        return adaptiveEncoder ? "ts" : suffix;
+    }
+
+    private String shardFormat() {
+        return adaptiveEncoder ? "-segment_format mpegts " : "";
+    }
+
+    /**
+     * 订阅状态变化, 回调在切换状态的线程中执行
+     */
+    public void addStateListener(Consumer<State> listener) {
+        stateListeners.add(listener);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * 录屏进程名称, 用于订阅该会话的编码进度
+     */
+    public String getVideoProcessName() {
+        return "video-" + id;
+    }
+
+    /**
+     * 是否为麦克风实时混音
+     */
+    public boolean isLiveMix() {
+        return liveMix;
+    }
+
+    /**
+     * 开始录制桌面屏幕和系统声音
+     * 实时混音模式下, 麦克风作为第三路输入, 经过音量门控后与系统声音实时混合, 初始为静音
+     *
+     * @return 录屏进程启动后完成
+     */
+    public CompletableFuture<Void> start() {
+        try {
+            transition(State.STARTING, State.IDLE);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!encoderScheduler.tryAcquire()) {
+            IllegalStateException e = new IllegalStateException("同时录制的编码进程已达上限" + encoderScheduler.getMaxEncoders());
+            logger.info("开始录制异常, 异常信息: {}", e.getMessage());
+            fail(e);
+            return started;
+        }
+        try {
+            videoStartMills = System.currentTimeMillis();
+            videoStartNanos = System.nanoTime();
+            capturing.set(true);
+            postProcessScheduler.captureStarted();
+            executor.execute(() -> {
+                try {
+                    recordVideo();
+                } finally {
+                    captureFinished();
+                }
+            });
+            if (micPrewarm) {
+                startMicrophoneCapture();
+            }
+        } catch (RejectedExecutionException e) {
+            logger.info("开始录制异常, 异常信息: {}", e.getMessage());
+            captureFinished();
+            fail(e);
+        }
+        return started;
+    }
+
+    /**
+     * 录屏线程
+     */
+    private void recordVideo() {
+        long recordStartNanos = System.nanoTime();
+        int run = 0;
+        // 本次进程启动时距第一个进程启动的时长, 分片时间轴和增量合并的时间戳都以此为准
+        long runStartMicros = 0;
+        int segmentStartNumber = 0;
+        FfmpegProgress videoProgress = null;
+        // 可变帧率统计: 所有录屏进程实际编码的帧数、时长, 以及按各自档位帧率固定帧率录制时的帧数
+        long encodedFrames = 0;
+        double encodedSeconds = 0;
+        double constantFrames = 0;
+        int concurrency = encoderScheduler.getActiveEncoders();
+        EncoderSettings settings = EncoderSettings.defaults();
+        AdaptiveEncoderController encoderController = adaptiveEncoder
+                ? new AdaptiveEncoderController(getVideoProcessName(), settings, this::restartVideoRecording)
+                : null;
+        try {
+            // 录制日志先于一切文件操作落盘, 异常退出后下次启动据此恢复
+            journal = RecordingJournal.create(Paths.get(prefix), recorder.journalTimer());
+            journal.append(true, RecordingJournal.SESSION, output, prefix, suffix, incremental, liveMix,
+                    liveMix ? microphoneDeviceName : "", videoStartMills);
+            // 分片登记表记录ffmpeg按顺序关闭的分片, 合并分片时不再扫描目录
+            SegmentRegistry segmentRegistry = new SegmentRegistry(Paths.get(prefix + "_manifest.tsv"));
+            // 分片边界先写入日志再交给增量合并, 保证追加前已落盘
+            segmentRegistry.addListener(segment -> journal.append(true, RecordingJournal.SEGMENT, segment.getIndex(),
+                    segment.getPath(), segment.getStartSeconds(), segment.getEndSeconds(), segment.getSize()));
+            segmentRegistry.start(Paths.get(prefix + "_segments_0.csv"));
+            SegmentFinalizer segmentFinalizer = null;
+            if (incremental) {
+                segmentFinalizer = new SegmentFinalizer(Paths.get(output), journal);
+                segmentFinalizer.start(segmentRegistry);
+            }
+            if (encoderController != null) {
+                // 分片关闭后才评估, 只在真实的分片边界重启录屏进程
+                segmentRegistry.addListener(segment -> encoderController.segmentClosed());
+                ffmpegRunner.addListener(encoderController);
+            }
+            int exitCode;
+            // 自适应编码调整档位时会结束当前进程, 以新的档位从下一个分片序号继续录制
+            while (true) {
+                FrameFeed frameFeed = captureBackend.newFrameFeed(getVideoProcessName(), geometry.getRegion());
+                FfmpegCommand command = new FfmpegCommand(ffmpegPath)
+                        .options(captureBackend.videoInput(geometry.getRegion()) + " " + captureBackend.systemAudioInput());
+                String audioFilter = "";
+                if (liveMix) {
+                    command.options(captureBackend.microphoneInput(microphoneDeviceName));
+                    audioFilter = "[2:a]" + MIC_GATE_FILTER + "=volume=" + (microphoneEnabled ? 1 : 0) +
+                            "[mic];[1:a][mic]amix=inputs=2:duration=first:dropout_transition=0:normalize=0[mixed_audio]";
+                }
+                // 每关闭一个分片就写入分片列表
+                // 增量合并模式下分片为MPEG-TS, 重启后的进程从启动时刻继续计时, 与分片时间轴一致
+                String segmentList = prefix + "_segments_" + run + ".csv";
+                String tsOffset = "-output_ts_offset " + runStartMicros + "us ";
+                List<String> segments;
+                if (pipeWriter) {
+                    // 经管道输出MPEG-TS, 由分片写入器按相同的分片时长切分, 分片均为ts
+                    segments = FfmpegCommand.split("-f mpegts " + (incremental ? tsOffset : "") + "pipe:1");
+                } else {
+                    segments = FfmpegCommand.split("-segment_time " + SEGMENT_SECONDS + " -f segment -segment_start_number " +
+                            segmentStartNumber + " -segment_list_type csv " +
+                            (incremental ? "-segment_format mpegts " + tsOffset : "-reset_timestamps 1 " + shardFormat()));
+                    // 文件路径各自作为一个参数, 可以包含空格
+                    segments.add("-segment_list");
+                    segments.add(segmentList);
+                    segments.add(prefix + "_%03d." + (incremental ? "ts" : shardSuffix()));
+                }
+                // 画面输入结束时随之结束, 不等待仍在采集的声音
+                String shortest = frameFeed != null ? "-shortest " : "";
+                // 裁剪和缩放是画面的第一个滤镜, 去重和编码都在缩小后的画面上进行
+                String videoFilter = geometry.toFilter(captureBackend.supportsRegion());
+                if (fanOut.isEnabled()) {
+                    // 代理文件每个录屏进程一段, 停止后拼接
+                    fanOut.appendArgs(command, settings, idleVfr, SEGMENT_SECONDS, encoderScheduler.getThreadsPerEncoder(),
+                            videoFilter, audioFilter, shortest, segments, prefix + "_proxy_" + run + ".ts");
+                } else {
+                    command.options((liveMix ? "-filter_complex " + audioFilter + " -map 0:v -map [mixed_audio] " : "") +
+                            shortest + settings.toEncoderArgs(idleVfr, SEGMENT_SECONDS, encoderScheduler.getThreadsPerEncoder(),
+                            videoFilter)).args(segments);
+                }
+                logger.info("录制视频命令: {}", command);
+
+                // 进度和日志由FfmpegRunner在后台线程采集
+                SegmentPipeWriter segmentWriter = null;
+                if (pipeWriter) {
+                    segmentWriter = recorder.newSegmentWriter(getVideoProcessName(), prefix, segmentStartNumber, SEGMENT_SECONDS,
+                            Paths.get(segmentList), this::diskLow);
+                    videoProcess = ffmpegRunner.startPiped(getVideoProcessName(), command.toList());
+                    segmentWriter.start(videoProcess.getInputStream());
+                } else {
+                    videoProcess = ffmpegRunner.start(getVideoProcessName(), command.toList());
+                }
+                // 进程退出后进度随指标注销, 统计编码吞吐用的进度在运行期间取出
+                videoProgress = ffmpegRunner.getProgress(getVideoProcessName());
+                videoFeed = frameFeed;
+                if (frameFeed != null) {
+                    try {
+                        frameFeed.start(videoProcess.getOutputStream());
+                    } catch (IOException e) {
+                        videoProcess.destroy();
+                        throw e;
+                    }
+                }
+                logger.info("开始录制视频...");
+                // 启动期间已点击停止时状态保持STOPPING
+                transitionIf(State.STARTING, State.RECORDING);
+                started.complete(null);
+                // 启动进程期间点击了停止, 新进程启动后立即结束
+                if (videoStopping) {
+                    quitVideo();
+                }
+                exitCode = videoProcess.waitFor();
+                if (frameFeed != null) {
+                    frameFeed.stop();
+                }
+                // 最后一个分片写入并登记到分片列表后才切换列表或结束登记
+                if (segmentWriter != null) {
+                    segmentWriter.finish();
+                }
+                logger.info("完成录制视频: " + exitCode);
+                if (videoProgress != null) {
+                    double runSeconds = videoProgress.getOutTimeMicros() / 1_000_000.0;
+                    encodedFrames += videoProgress.getFrame();
+                    encodedSeconds += runSeconds;
+                    constantFrames += runSeconds * settings.getFrameRate();
+                }
+                if (videoStopping || encoderController == null || encoderController.getSettings() == settings) {
+                    break;
+                }
+                // 按新档位重启, 分片序号接着上一个进程
+                settings = encoderController.getSettings();
+                run++;
+                runStartMicros = (System.nanoTime() - recordStartNanos) / 1000;
+                double gapSeconds = segmentRegistry.switchList(Paths.get(prefix + "_segments_" + run + ".csv"),
+                        runStartMicros / 1_000_000.0);
+                recorder.recordRestartGap(Math.round(gapSeconds * 1_000_000_000L));
+                segmentStartNumber = segmentRegistry.size();
+                encoderController.restarted();
+                logger.info("以新的编码档位继续录制: {}, 重启期间丢失画面{}ms", settings, String.format("%.0f", gapSeconds * 1000));
+            }
+            segmentRegistry.close();
+            captureFinished();
+            recorder.releaseSegmentWriterStats(getVideoProcessName());
+            recordedSegments = segmentRegistry.getSegments();
+            if (fanOut.isProxyEnabled()) {
+                finishProxy(run + 1);
+            }
+            if (encoderController != null) {
+                ffmpegRunner.removeListener(encoderController);
+            }
+            recorder.recordSessionThroughput(getVideoProcessName(), videoProgress, concurrency);
+            if (idleVfr) {
+                recorder.logIdleSavings(encodedFrames, encodedSeconds, constantFrames);
+            }
+            // 增量合并模式下已关闭的分片早已追加到最终文件, 这里只需追加最后一个分片
+            if (segmentFinalizer != null) {
+                segmentFinalizer.finish();
+                Files.deleteIfExists(segmentRegistry.getManifest());
+                recorder.recordStopToPlayable(System.nanoTime() - stopRequestedNanos);
+                recorder.writeKeyframeIndex(output);
+            } else {
+                if (exitCode != 0 || segmentRegistry.size() == 0) {
+                    throw new IOException("录屏进程退出码" + exitCode + ", 分片数量" + segmentRegistry.size());
+                }
+                logger.info("录制视频成功, 存在{}个视频分片", segmentRegistry.size());
+                // 每个分片带上时间轴上的时长, 可变帧率时分片末尾的静止画面不会丢失
+                List<String> concatList = segmentRegistry.toConcatList();
+                if (!postProcessScheduler.call("concat-" + id, PostProcessScheduler.Priority.HIGH,
+                        () -> recorder.concatVideoSegments("concat-" + id, concatList, output))) {
+                    throw new IOException("合并视频分片失败");
+                }
+                if (hasMicClips()) {
+                    // 合并后的mp4无法按分片切开, 保留分片供生成视频时并行合成录音
+                    logger.info("存在单独录制的麦克风音频, 保留分片文件直到生成视频");
+                    retainedSegments = segmentRegistry;
+                } else {
+                    logger.info("删除分片文件...");
+                    segmentRegistry.deleteAll();
+                }
+            }
+            videoFinished();
+        } catch (Exception e) {
+            logger.info("录制视频异常, 异常信息: {}", e.getMessage());
+            if (encoderController != null) {
+                ffmpegRunner.removeListener(encoderController);
+            }
+            recorder.releaseSegmentWriterStats(getVideoProcessName());
+            fail(e);
+        }
+    }
+
+    /**
+     * 录屏进程已退出, 归还编码进程名额, 后台任务不再为本会话降低并行度, 多次调用只生效一次
+     * 名额在分片合并之前归还, 合并期间其他会话即可开始录制
+     */
+    private void captureFinished() {
+        if (capturing.compareAndSet(true, false)) {
+            encoderScheduler.release();
+            postProcessScheduler.captureFinished();
+        }
+    }
+
+    /**
+     * 把各录屏进程的代理文件拼接为mp4, 代理文件只是附带的输出, 失败时保留ts文件, 不影响主录制
+     * 拼接作为低优先级的后台任务执行, 不推迟主录制可播放的时间
+     *
+     * @param runs 录屏进程数量
+     */
+    private void finishProxy(int runs) {
+        List<String> concatList = new ArrayList<>();
+        List<Path> parts = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            Path part = Paths.get(prefix + "_proxy_" + i + ".ts");
+            if (Files.exists(part)) {
+                parts.add(part);
+                concatList.add(FfmpegCommand.concatEntry(part.toAbsolutePath()));
+            }
+        }
+        if (parts.isEmpty()) {
+            logger.info("没有代理文件");
+            return;
+        }
+        String proxyPath = prefix + "_proxy.mp4";
+        postProcessScheduler.submit("proxy-" + id, PostProcessScheduler.Priority.LOW, () -> {
+            if (recorder.concatVideoSegments("proxy-" + id, concatList, proxyPath)) {
+                for (Path part : parts) {
+                    Files.deleteIfExists(part);
+                }
+                logger.info("代理文件保存为: {}", proxyPath);
+            } else {
+                logger.info("拼接代理文件失败, 保留: {}", parts);
+            }
+            return null;
+        }).whenComplete((v, e) -> {
+            if (e != null) {
+                logger.info("拼接代理文件异常, 保留: {}, 异常信息: {}", parts, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 视频分片合并完成, 没有单独录制的麦克风音频时整个录制已完成, 删除录制日志
+     * 否则保留日志, 直到生成视频时把录音合并进视频
+     */
+    private void videoFinished() {
+        journal.append(true, RecordingJournal.VIDEO_DONE);
+        if (!hasMicClips()) {
+            journal.complete();
+        }
+        if (transitionIf(State.STOPPING, State.STOPPED) || transitionIf(State.RECORDING, State.STOPPED)) {
+            videoDone.complete(output);
+        }
+    }
+
+    private synchronized boolean hasMicClips() {
+        return !micClips.isEmpty();
+    }
+
+    /**
+     * 分片写入器发现磁盘剩余空间不足或写入失败, 与点击停止相同, 已写入的分片照常合并
+     */
+    private void diskLow() {
+        logger.info("磁盘空间不足或写入失败, 停止录制");
+        stop();
+    }
+
+    /**
+     * 自适应编码调整档位时结束当前录屏进程, 录屏线程随后以新档位重启进程
+     *
+     * @param settings 新的编码档位
+     * @param reason   调整原因
+     */
+    private void restartVideoRecording(EncoderSettings settings, String reason) {
+        logger.info("分片边界切换编码档位为{}, 重启录屏进程, 原因: {}", settings, reason);
+        submit(this::quitVideo);
+    }
+
+    /**
+     * 停止录制视频和系统声音, 正在单独录制的麦克风音频随之停止
+     *
+     * @return 视频可播放后完成, 结果为视频文件
+     */
+    public CompletableFuture<String> stop() {
+        try {
+            transition(State.STOPPING, State.STARTING, State.RECORDING);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        logger.info("准备停止录制视频");
+        stopRequestedNanos = System.nanoTime();
+        videoStopping = true;
+        // 排在已提交的麦克风操作之后, 先停止录音, 再停止录屏
+        enqueueMic(() -> {
+            stopMicClip();
+            MicrophoneCapture capture = microphoneCapture;
+            if (capture != null) {
+                capture.stop();
+            }
+            quitVideo();
+            return CompletableFuture.completedFuture(null);
+        });
+        return videoDone;
+    }
+
+    /**
+     * 启用/停用麦克风
+     * 实时混音模式下通过ffmpeg标准输入的c命令修改音量门控, 无需启动新的录音进程
+     * 否则启用时单独录制一段音频, 停用时结束录制并合并音频分片
+     *
+     * @param enabled true为启用麦克风, false为静音
+     * @return 实时混音模式下门控切换后完成; 否则启用时录音进程启动后完成, 停用时音频分片合并后完成
+     */
+    public CompletableFuture<Void> setMicrophoneEnabled(boolean enabled) {
+        long requestNanos = System.nanoTime();
+        if (getState() != State.RECORDING) {
+            return CompletableFuture.failedFuture(new IllegalStateException("录制状态为" + getState() + ", 无法切换麦克风"));
+        }
+        // 预热模式下直接记录门控时间点, 不排队等待之前的麦克风操作
+        if (micPrewarm) {
+            gateMicrophoneCapture(enabled);
+            return CompletableFuture.completedFuture(null);
+        }
+        return enqueueMic(() -> {
+            if (liveMix) {
+                switchMicGate(enabled);
+                return CompletableFuture.completedFuture(null);
+            }
+            return enabled ? startMicClip(requestNanos) : stopMicClip();
+        });
+    }
+
+    /**
+     * 实时混音模式下切换麦克风门控
+     */
+    private void switchMicGate(boolean enabled) throws IOException {
+        logger.info("实时混音{}麦克风", enabled ? "启用" : "停用");
+        // 记录门控状态, 录屏进程重启后按此状态初始化
+        microphoneEnabled = enabled;
+        journal.append(false, RecordingJournal.GATE, enabled ? "on" : "off", System.currentTimeMillis() - videoStartMills);
+        Process process = videoProcess;
+        if (process != null && process.isAlive()) {
+            OutputStream os = process.getOutputStream();
+            os.write(("c" + MIC_GATE_FILTER + " -1 volume " + (enabled ? "1" : "0") + "\n").getBytes());
+            os.flush();
+        }
+    }
+
+    /**
+     * 预热模式下打开麦克风设备, 持续录音直到停止录制
+     */
+    private void startMicrophoneCapture() {
+        MicrophoneCapture capture = new MicrophoneCapture("audio-" + id, Paths.get(prefix + "_microphone.wav"), ffmpegRunner);
+        capture.setToggleLatencyListener(latency -> recorder.recordMicToggleLatency("prewarm", latency));
+        capture.setVoiceActivityDetector(recorder.newVoiceActivityDetector());
+        microphoneCapture = capture;
+        micClipDone.add(capture.getDone().handle((v, e) -> {
+            microphoneCaptureDone(capture, e);
+            return null;
+        }));
+        executor.execute(() -> capture.run(ffmpegPath, captureBackend.microphoneInput(microphoneDeviceName), SEGMENT_SECONDS));
+    }
+
+    /**
+     * 预热模式下切换麦克风门控, 门控时间点写入录制日志, 异常退出后据此截取录音
+     */
+    private void gateMicrophoneCapture(boolean enabled) {
+        MicrophoneCapture capture = microphoneCapture;
+        long gateNanos = capture.gate(enabled);
+        long gateMills = (gateNanos - videoStartNanos) / 1_000_000;
+        logger.info("预热麦克风{}, 相对视频开始{}ms", enabled ? "启用" : "停用", gateMills);
+        boolean first = false;
+        if (enabled) {
+            synchronized (this) {
+                first = micClips.putIfAbsent(capture.getPath().toString(), microphoneOffset(capture)) == null;
+            }
+        }
+        boolean journalMic = first;
+        submit(() -> {
+            if (journalMic) {
+                journal.append(true, RecordingJournal.MIC, capture.getPath(), microphoneOffset(capture));
+            }
+            journal.append(false, RecordingJournal.GATE, enabled ? "on" : "off", gateMills);
+        });
+    }
+
+    /**
+     * 预热麦克风的录音结束, 没有打开过门控时删除录音文件
+     */
+    private void microphoneCaptureDone(MicrophoneCapture capture, Throwable e) {
+        String path = capture.getPath().toString();
+        if (e != null || !capture.hasRanges()) {
+            synchronized (this) {
+                micClips.remove(path);
+            }
+            try {
+                Files.deleteIfExists(capture.getPath());
+            } catch (IOException ex) {
+                logger.info("删除录音文件异常, 异常信息: {}", ex.getMessage());
+            }
+            return;
+        }
+        long offset = microphoneOffset(capture);
+        synchronized (this) {
+            micClips.put(path, offset);
+        }
+        voiceActivityDone(path, capture.getVoiceActivityDetector());
+        // 同一录音文件的偏移以最后一条记录为准
+        journal.append(true, RecordingJournal.MIC, path, offset);
+        journal.append(true, RecordingJournal.MIC_DONE, path);
+    }
+
+    /**
+     * 预热麦克风的第一个采样相对视频开始的偏移, 单位毫秒, 还未开始采集时为0
+     */
+    private long microphoneOffset(MicrophoneCapture capture) {
+        long epochNanos = capture.getEpochNanos();
+        return epochNanos == Long.MAX_VALUE ? 0 : (epochNanos - videoStartNanos) / 1_000_000;
+    }
+
+    /**
+     * 单独录制一段麦克风音频, 文件与视频保存在同一目录, 以视频文件名加开始时间命名, 同时录制的多个会话互不覆盖
+     *
+     * @param requestNanos 点击启用麦克风时的单调时钟纳秒值, 用于统计切换延迟
+     * @return 录音进程启动后完成
+     */
+    private CompletableFuture<Void> startMicClip(long requestNanos) {
+        if (activeClip != null || getState() != State.RECORDING) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long startRecordAudioTime = System.currentTimeMillis();
+        MicClip clip = new MicClip(prefix + "_mic_" + startRecordAudioTime + ".wav",
+                startRecordAudioTime - videoStartMills, requestNanos);
+        synchronized (this) {
+            micClips.put(clip.path, clip.offset);
+        }
+        activeClip = clip;
+        micClipDone.add(clip.done);
+        // 记录录音相对视频的偏移, 异常退出后仍能按偏移把录音合并进视频
+        journal.append(true, RecordingJournal.MIC, clip.path, clip.offset);
+        executor.execute(() -> recordMicClip(clip));
+        return clip.started;
+    }
+
+    /**
+     * 停止正在录制的麦克风音频
+     *
+     * @return 音频分片合并后完成
+     */
+    private CompletableFuture<Void> stopMicClip() {
+        MicClip clip = activeClip;
+        if (clip == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        activeClip = null;
+        logger.info("准备停止录音");
+        // 录音进程还在启动时, 启动后立即结束
+        clip.stopping = true;
+        quitProcess(clip.process);
+        return clip.done;
+    }
+
+    /**
+     * 录音线程
+     */
+    private void recordMicClip(MicClip clip) {
+        String clipPrefix = FileNameUtils.removeExtension(clip.path);
+        String clipSuffix = FileNameUtils.getExtension(clip.path);
+        FfmpegCommand command = new FfmpegCommand(ffmpegPath).options(captureBackend.microphoneInput(microphoneDeviceName) +
+                " -acodec pcm_s16le -ar 44100 -ac 2 -y -segment_time " + SEGMENT_SECONDS + " -f segment -reset_timestamps 1" +
+                " -segment_list_type csv -segment_list").arg(clipPrefix + "_segments.csv").arg(clipPrefix + "_%03d." + clipSuffix);
+        logger.info("录音命令: {}", command);
+        recordingClip = clip;
+        ffmpegRunner.addListener(micClipListener);
+        try {
+            SegmentRegistry segmentRegistry = new SegmentRegistry(Paths.get(clipPrefix + "_manifest.tsv"));
+            // 录音分片关闭时检测有声区间, 录音结束时检测也随之完成
+            VoiceActivityDetector detector = recorder.newVoiceActivityDetector();
+            if (detector != null) {
+                segmentRegistry.addListener(segment -> detector.feed(segment.getPath()));
+            }
+            segmentRegistry.start(Paths.get(clipPrefix + "_segments.csv"));
+            clip.process = ffmpegRunner.start("audio-" + id, command.toList());
+            logger.info("开始录音...");
+            clip.started.complete(null);
+            if (clip.stopping) {
+                quitProcess(clip.process);
+            }
+            int exitCode = clip.process.waitFor();
+            logger.info("完成录音: {}", exitCode);
+            segmentRegistry.close();
+
+            // 有分片, 需要合并
+            if (exitCode == 0 && segmentRegistry.size() > 0) {
+                logger.info("录音成功, 存在{}个音频分片, 开始合并音频分片...", segmentRegistry.size());
+                // pcm分片直接拼接音频数据并回填文件头, 无需启动ffmpeg
+                WavConcatenator.concat(segmentRegistry.getSegments().stream().map(Segment::getPath).collect(Collectors.toList()),
+                        Paths.get(clip.path));
+                // 删除分片文件
+                logger.info("合并成功, 音频保存为: {}, 删除分片文件...", clip.path);
+                segmentRegistry.deleteAll();
+                voiceActivityDone(clip.path, detector);
+                // 录音进程启动需要时间, 按实际开始采集的时刻修正偏移
+                if (clip.epochNanos != Long.MAX_VALUE) {
+                    long offset = (clip.epochNanos - videoStartNanos) / 1_000_000;
+                    logger.info("录音偏移修正为{}ms, 点击时为{}ms", offset, clip.offset);
+                    synchronized (this) {
+                        micClips.put(clip.path, offset);
+                    }
+                    journal.append(true, RecordingJournal.MIC, clip.path, offset);
+                }
+                journal.append(true, RecordingJournal.MIC_DONE, clip.path);
+            } else {
+                synchronized (this) {
+                    micClips.remove(clip.path);
+                }
+            }
+            clip.done.complete(null);
+        } catch (Exception e) {
+            logger.info("录音异常, 异常信息: {}", e.getMessage());
+            synchronized (this) {
+                micClips.remove(clip.path);
+            }
+            clip.started.completeExceptionally(e);
+            clip.done.completeExceptionally(e);
+        } finally {
+            ffmpegRunner.removeListener(micClipListener);
+        }
+    }
+
+    /**
+     * 记录一段录音的有声区间, 未开启检测或检测失败时不记录, 合成时混入完整录音
+     */
+    private void voiceActivityDone(String path, VoiceActivityDetector detector) {
+        if (detector == null) {
+            return;
+        }
+        List<long[]> regions = detector.finish(Paths.get(path));
+        if (regions == null) {
+            return;
+        }
+        recorder.recordVoiceActivity(detector.getActiveRatio());
+        synchronized (this) {
+            voiceActivity.put(path, regions);
+        }
+    }
+
+    /**
+     * 录音进程的进度: 收到进度的时刻减去已输出的时长估算第一个采样的采集时刻, 第一次收到进度时统计切换延迟
+     */
+    private void onMicClipProgress(String name, FfmpegProgress progress) {
+        MicClip clip = recordingClip;
+        if (clip == null || !name.equals("audio-" + id) || progress.getOutTimeMicros() <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (clip.epochNanos == Long.MAX_VALUE) {
+            recorder.recordMicToggleLatency("clip", now - clip.requestNanos);
+        }
+        clip.epochNanos = Math.min(clip.epochNanos, now - progress.getOutTimeMicros() * 1000);
+    }
+
+    /**
+     * 生成最终视频, 把单独录制的麦克风音频合并到视频中
+     * 实时混音模式或没有单独录音时, 最终视频就是录制的视频
+     *
+     * @param resultPath 合并录音后的视频文件
+     * @return 生成后完成, 结果为最终视频文件
+     */
+    public CompletableFuture<String> finish(String resultPath) {
+        try {
+            transition(State.FINALIZING, State.STOPPED);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // 录音分片合并失败的音频不参与合成, 合成作为后台任务排队执行
+        return CompletableFuture.allOf(micClipDone.stream().map(f -> f.exceptionally(e -> null)).toArray(CompletableFuture[]::new))
+                .thenCompose(v -> postProcessScheduler.submit("merge-" + id, PostProcessScheduler.Priority.NORMAL, () -> {
+                    Map<String, Long> audioMap;
+                    Map<String, List<long[]>> activity;
+                    synchronized (this) {
+                        audioMap = new LinkedHashMap<>(micClips);
+                        activity = new HashMap<>(voiceActivity);
+                    }
+                    String result = output;
+                    if (!liveMix && !audioMap.isEmpty()) {
+                        if (!recorder.mergeSegmentsAndAudio("merge-" + id, recordedSegments, incremental, output, resultPath, audioMap, activity, journal)) {
+                            throw new IllegalStateException("合成音视频失败");
+                        }
+                        result = resultPath;
+                    }
+                    deleteRetainedSegments();
+                    journal.complete();
+                    transitionIf(State.FINALIZING, State.FINISHED);
+                    return result;
+                }))
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        logger.info("生成视频异常, 异常信息: {}", e.getMessage());
+                        fail(e);
+                    }
+                });
+    }
+
+    /**
+     * 放弃停止后一直没有生成视频的会话, 进入失败状态后从会话列表中移出, 录制日志保留, 下次启动时恢复
+     *
+     * @return 会话仍处于STOPPED状态并已放弃时返回true
+     */
+    public boolean expire() {
+        if (!transitionIf(State.STOPPED, State.FAILED)) {
+            return false;
+        }
+        fail(new IllegalStateException("停止后超时未生成视频"));
+        return true;
+    }
+
+    /**
+     * 删除分片模式下为合成录音保留的分片
+     */
+    private void deleteRetainedSegments() {
+        SegmentRegistry registry = retainedSegments;
+        if (registry == null) {
+            return;
+        }
+        retainedSegments = null;
+        try {
+            registry.deleteAll();
+        } catch (IOException e) {
+            logger.info("删除分片文件异常, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 追加一个麦克风操作, 上一个操作失败不影响后续操作
+     */
+    private synchronized CompletableFuture<Void> enqueueMic(MicAction action) {
+        micChain = micChain.handle((v, e) -> null).thenComposeAsync(v -> {
+            try {
+                return action.run();
+            } catch (Exception e) {
+                logger.info("切换麦克风异常, 异常信息: {}", e.getMessage());
+                return CompletableFuture.failedFuture(e);
+            }
+        }, executor);
+        return micChain;
+    }
+
+    /**
+     * 结束录屏进程, 画面来自标准输入时停止采集并关闭标准输入, 否则发送q
+     */
+    private void quitVideo() {
+        FrameFeed feed = videoFeed;
+        if (feed != null) {
+            feed.stop();
+        } else {
+            quitProcess(videoProcess);
+        }
+    }
+
+    /**
+     * 通知ffmpeg进程正常退出
+     */
+    private void quitProcess(Process process) {
+        if (process == null || !process.isAlive()) {
+            return;
+        }
+        try {
+            OutputStream os = process.getOutputStream();
+            os.write("q".getBytes());
+            os.flush();
+            logger.info("已通知ffmpeg进程退出");
+        } catch (Exception e) {
+            logger.info("通知ffmpeg进程退出异常, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.info("录制线程池已满, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 从指定状态切换到新状态, 当前状态不在其中时抛出IllegalStateException
+     */
+    private void transition(State next, State... expected) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            if (!Arrays.asList(expected).contains(previous)) {
+                throw new IllegalStateException("录制状态为" + previous + ", 无法切换到" + next);
+            }
+            state = next;
+        }
+        stateChanged(previous, next);
+    }
+
+    /**
+     * 当前状态为expected时切换到新状态
+     *
+     * @return 是否切换成功
+     */
+    private boolean transitionIf(State expected, State next) {
+        synchronized (this) {
+            if (state != expected) {
+                return false;
+            }
+            state = next;
+        }
+        stateChanged(expected, next);
+        return true;
+    }
+
+    /**
+     * 进入失败状态, 录制日志保留, 下次启动时恢复
+     */
+    private void fail(Throwable cause) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            state = State.FAILED;
+        }
+        if (previous != State.FAILED) {
+            stateChanged(previous, State.FAILED);
+        }
+        started.completeExceptionally(cause);
+        videoDone.completeExceptionally(cause);
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.info("关闭录制日志异常, 异常信息: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void stateChanged(State previous, State next) {
+        logger.info("录制会话{}状态: {} -> {}, 视频: {}", id, previous, next, output);
+        for (Consumer<State> listener : stateListeners) {
+            listener.accept(next);
+        }
+    }
+
+    @FunctionalInterface
+    private interface MicAction {
+        CompletableFuture<Void> run() throws Exception;
+    }
+
+    /**
+     * 一段单独录制的麦克风音频
+     */
+    private static class MicClip {
+        private final String path;
+
+        /**
+         * 相对视频开始的偏移, 单位毫秒
+         */
+        private final long offset;
+
+        /**
+         * 点击启用麦克风时的单调时钟纳秒值
+         */
+        private final long requestNanos;
+
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile Process process;
+        private volatile boolean stopping;
+
+        /**
+         * 第一个采样的采集时刻估算值, 单调时钟纳秒值, 未收到进度前为Long.MAX_VALUE
+         */
+        private volatile long epochNanos = Long.MAX_VALUE;
+
+        private MicClip(String path, long offset, long requestNanos) {
+            this.path = path;
+            this.offset = offset;
+            this.requestNanos = requestNanos;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Robot 采集
+ * 屏幕画面由 RobotScreenGrabber 截取后以 rawvideo 写入录屏进程的标准输入, 编码、分片与其他采集方式相同
+ * 系统声音和麦克风交给 record.robot.audio-backend 指定的采集方式
+ *
+ * @author 张云龙
+ */
+@Component
+public class RobotCaptureBackend implements CaptureBackend {
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private List<CaptureBackend> captureBackends;
+
+    @Override
+    public String getName() {
+        return "robot";
+    }
+
+    /**
+     * 按读到画面的时刻打时间戳, 跳过的不变画面不会压缩时间轴
+     */
+    @Override
+    public String videoInput(Rectangle region) {
+        Rectangle area = getArea(region);
+        return "-f rawvideo -pixel_format bgr0 -video_size " + area.width + "x" + area.height +
+                " -framerate " + recordProperties.getRobot().getFrameRate() + " -use_wallclock_as_timestamps 1 -i pipe:0";
+    }
+
+    @Override
+    public String systemAudioInput() {
+        return audioBackend().systemAudioInput();
+    }
+
+    @Override
+    public String microphoneInput(String device) {
+        return audioBackend().microphoneInput(device);
+    }
+
+    @Override
+    public List<String> listMicrophones() {
+        return audioBackend().listMicrophones();
+    }
+
+    @Override
+    public boolean supportsRegion() {
+        return true;
+    }
+
+    @Override
+    public boolean hasFrameFeed() {
+        return true;
+    }
+
+    @Override
+    public RobotScreenGrabber newFrameFeed(String processName, Rectangle region) {
+        RecordProperties.Robot robot = recordProperties.getRobot();
+        return new RobotScreenGrabber(processName, getArea(region), robot.getFrameRate(), robot.getBufferPoolSize(),
+                robot.getHeartbeatMills(), meterRegistry);
+    }
+
+    /**
+     * 截屏区域, 未指定时为主屏幕, 宽高向下取偶数, 满足yuv420p编码的要求
+     *
+     * @param region 采集区域, null为主屏幕
+     */
+    public Rectangle getArea(Rectangle region) {
+        Rectangle bounds = region != null ? region
+                : GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().getBounds();
+        return new Rectangle(bounds.x, bounds.y, bounds.width & ~1, bounds.height & ~1);
+    }
+
+    private CaptureBackend audioBackend() {
+        String name = recordProperties.getRobot().getAudioBackend();
+        for (CaptureBackend backend : captureBackends) {
+            if (backend != this && backend.getName().equals(name)) {
+                return backend;
+            }
+        }
+        throw new IllegalStateException("不支持的声音采集方式: " + name);
+    }
+}
@@ -0,0 +1,422 @@
+package cn.zack.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.AWTException;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 通过 java.awt.Robot 采集屏幕, 以 bgr0 格式的原始画面写入ffmpeg标准输入, 用于无法安装dshow采集插件的环境
+ * 采集线程按帧率截屏, 与上一次发送的画面逐行比较出变化区域, 画面没有变化时跳过, 但每隔心跳间隔仍发送一帧保证分片能按时切分
+ * 需要发送的画面复制到预先分配的直接内存缓冲区, 缓冲区序号通过两个单生产者单消费者队列在采集线程和写入线程之间流转:
+ * 空闲队列由写入线程归还, 待写队列由采集线程提交, 两边都不加锁也不分配对象; 写入跟不上时直接丢弃当前帧, 不阻塞采集
+ * ffmpeg按读到画面的时刻打时间戳, 跳过和丢弃的帧由编码端按帧率补齐
+ * Robot每次截屏都会新建一个像素数组, 这部分分配无法避免, 结束时统计每帧分配字节数和GC次数以评估GC压力
+ *
+ * @author 张云龙
+ */
+public class RobotScreenGrabber implements FrameFeed {
+    private static final Logger logger = LoggerFactory.getLogger(RobotScreenGrabber.class);
+
+    private final String name;
+
+    private final Rectangle area;
+
+    private final long frameNanos;
+
+    private final long heartbeatNanos;
+
+    private final ByteBuffer[] buffers;
+
+    /**
+     * 每个缓冲区的int视图, 预先创建, 复制像素时不再创建视图对象
+     */
+    private final IntBuffer[] views;
+
+    /**
+     * 写入线程归还的空闲缓冲区
+     */
+    private final FrameRing free;
+
+    /**
+     * 采集线程提交的待写缓冲区
+     */
+    private final FrameRing filled;
+
+    private final Counter sentCounter;
+    private final Counter unchangedCounter;
+    private final Counter droppedCounter;
+    private final Timer grabTimer;
+
+    /**
+     * 变化区域占整个画面的比例
+     */
+    private final DistributionSummary dirtySummary;
+
+    /**
+     * 变化区域: 左、上、宽、高
+     */
+    private final int[] dirty = new int[4];
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private volatile boolean stopping;
+
+    /**
+     * 采集线程是否还在运行, 写入线程据此判断待写队列是否已经不会再增加
+     */
+    private volatile boolean grabbing;
+
+    private Robot robot;
+
+    private OutputStream stdin;
+
+    private WritableByteChannel channel;
+
+    private Thread grabThread;
+
+    private Thread writeThread;
+
+    private long sentFrames;
+    private long unchangedFrames;
+    private long droppedFrames;
+    private long grabNanos;
+    private long writtenBytes;
+    private long grabAllocatedBytes;
+    private long writeAllocatedBytes;
+    private long startNanos;
+    private long elapsedNanos;
+    private long gcCount;
+    private long gcMillis;
+
+    /**
+     * @param name           名称, 用于线程名称和日志
+     * @param area           采集区域, 宽高需为偶数
+     * @param frameRate      采集帧率
+     * @param poolSize       缓冲区数量
+     * @param heartbeatMills 画面不变时发送一帧的间隔, 单位毫秒
+     * @param meterRegistry  指标
+     */
+    public RobotScreenGrabber(String name, Rectangle area, int frameRate, int poolSize, long heartbeatMills, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.area = area;
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMills);
+        int frameBytes = area.width * area.height * 4;
+        buffers = new ByteBuffer[poolSize];
+        views = new IntBuffer[poolSize];
+        free = new FrameRing(poolSize);
+        filled = new FrameRing(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            // 小端序下int像素0x00RRGGBB的字节顺序为 B G R 0, 即ffmpeg的bgr0
+            buffers[i] = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+            views[i] = buffers[i].asIntBuffer();
+            free.offer(i);
+        }
+        sentCounter = meterRegistry.counter("record.capture.frames", "result", "sent");
+        unchangedCounter = meterRegistry.counter("record.capture.frames", "result", "unchanged");
+        droppedCounter = meterRegistry.counter("record.capture.frames", "result", "dropped");
+        grabTimer = meterRegistry.timer("record.capture.grab");
+        dirtySummary = meterRegistry.summary("record.capture.dirty.ratio");
+    }
+
+    @Override
+    public void start(OutputStream stdin) throws IOException {
+        open();
+        this.stdin = stdin;
+        this.channel = Channels.newChannel(stdin);
+        startNanos = System.nanoTime();
+        long[] gc = gcTotals();
+        gcCount = gc[0];
+        gcMillis = gc[1];
+        grabbing = true;
+        grabThread = new Thread(this::grabLoop, "grab-" + name);
+        writeThread = new Thread(this::writeLoop, "write-" + name);
+        grabThread.setDaemon(true);
+        writeThread.setDaemon(true);
+        writeThread.start();
+        grabThread.start();
+        logger.info("开始Robot采集屏幕, 区域{}x{}+{},{}, 缓冲区{}个", area.width, area.height, area.x, area.y, buffers.length);
+    }
+
+    @Override
+    public void stop() {
+        stopping = true;
+        Thread thread = grabThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 采集和写入都结束、标准输入已关闭后完成
+     */
+    public CompletableFuture<Void> getDone() {
+        return done;
+    }
+
+    /**
+     * 创建截屏工具, 没有显示器时失败
+     */
+    protected void open() throws IOException {
+        try {
+            robot = new Robot();
+        } catch (AWTException | HeadlessException e) {
+            throw new IOException("无法通过Robot采集屏幕: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 截取一帧, 返回每个像素为0x00RRGGBB的数组, 长度为宽乘高
+     */
+    protected int[] capture() {
+        BufferedImage image = robot.createScreenCapture(area);
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private void grabLoop() {
+        long allocatedStart = allocatedBytes();
+        int frameInts = area.width * area.height;
+        // 上一次发送的画面, 丢弃的帧不算发送, 下一帧仍与上一次发送的画面比较
+        int[] previous = null;
+        long lastSentNanos = 0;
+        long deadline = System.nanoTime();
+        try {
+            while (!stopping) {
+                long begin = System.nanoTime();
+                int[] pixels = capture();
+                long grabbed = System.nanoTime();
+                grabNanos += grabbed - begin;
+                grabTimer.record(grabbed - begin, TimeUnit.NANOSECONDS);
+                boolean changed = previous == null || findDirty(previous, pixels, area.width, area.height, dirty);
+                if (!changed && grabbed - lastSentNanos < heartbeatNanos) {
+                    unchangedFrames++;
+                    unchangedCounter.increment();
+                } else {
+                    int index = free.poll();
+                    if (index < 0) {
+                        droppedFrames++;
+                        droppedCounter.increment();
+                    } else {
+                        IntBuffer view = views[index];
+                        view.clear();
+                        view.put(pixels, 0, frameInts);
+                        filled.offer(index);
+                        LockSupport.unpark(writeThread);
+                        if (previous != null && changed) {
+                            dirtySummary.record((double) dirty[2] * dirty[3] / frameInts);
+                        }
+                        previous = pixels;
+                        lastSentNanos = grabbed;
+                        sentFrames++;
+                        sentCounter.increment();
+                    }
+                }
+                deadline += frameNanos;
+                long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (wait < -frameNanos) {
+                    // 截屏慢于帧率时不追赶, 从当前时刻重新计时
+                    deadline = System.nanoTime();
+                }
+            }
+        } catch (Exception e) {
+            logger.info("Robot采集屏幕异常, 异常信息: {}", e.getMessage());
+        } finally {
+            grabAllocatedBytes = allocatedBytes() - allocatedStart;
+            grabbing = false;
+            LockSupport.unpark(writeThread);
+        }
+    }
+
+    private void writeLoop() {
+        long allocatedStart = allocatedBytes();
+        try {
+            while (true) {
+                // 先读取采集状态再出队, 采集已结束且队列为空时才能确定全部写完
+                boolean finished = !grabbing;
+                int index = filled.poll();
+                if (index < 0) {
+                    if (finished) {
+                        break;
+                    }
+                    LockSupport.parkNanos(frameNanos);
+                    continue;
+                }
+                ByteBuffer buffer = buffers[index];
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    writtenBytes += channel.write(buffer);
+                }
+                free.offer(index);
+            }
+        } catch (IOException e) {
+            // ffmpeg已退出, 停止采集
+            logger.info("写入画面异常, 异常信息: {}", e.getMessage());
+            stopping = true;
+            while (grabbing) {
+                LockSupport.parkNanos(frameNanos);
+            }
+        } finally {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                logger.info("关闭ffmpeg标准输入异常, 异常信息: {}", e.getMessage());
+            }
+            writeAllocatedBytes = allocatedBytes() - allocatedStart;
+            elapsedNanos = System.nanoTime() - startNanos;
+            long[] gc = gcTotals();
+            gcCount = gc[0] - gcCount;
+            gcMillis = gc[1] - gcMillis;
+            logger.info("Robot采集结束: 发送{}帧, 画面不变跳过{}帧, 写入不及丢弃{}帧, 采集{}fps, 平均截屏{}ms, " +
+                            "采集线程每帧分配{}KB, 写入线程共分配{}KB, GC{}次共{}ms",
+                    sentFrames, unchangedFrames, droppedFrames, String.format("%.1f", getCaptureFps()),
+                    String.format("%.2f", getAverageGrabMills()), getAllocatedBytesPerFrame() / 1024,
+                    writeAllocatedBytes / 1024, gcCount, gcMillis);
+            done.complete(null);
+        }
+    }
+
+    /**
+     * 逐行比较两帧画面, 找出变化区域
+     *
+     * @param rect 输出变化区域: 左、上、宽、高
+     * @return 画面是否有变化
+     */
+    static boolean findDirty(int[] previous, int[] current, int width, int height, int[] rect) {
+        int top = -1;
+        int bottom = -1;
+        int left = width;
+        int right = -1;
+        for (int y = 0; y < height; y++) {
+            int from = y * width;
+            int first = Arrays.mismatch(previous, from, from + width, current, from, from + width);
+            if (first < 0) {
+                continue;
+            }
+            if (top < 0) {
+                top = y;
+            }
+            bottom = y;
+            left = Math.min(left, first);
+            // 从右往左找到第一个不同的像素, 已在变化区域内的部分不再比较
+            int x = width - 1;
+            while (x > right && previous[from + x] == current[from + x]) {
+                x--;
+            }
+            right = Math.max(right, x);
+        }
+        if (top < 0) {
+            return false;
+        }
+        rect[0] = left;
+        rect[1] = top;
+        rect[2] = right + 1 - left;
+        rect[3] = bottom + 1 - top;
+        return true;
+    }
+
+    /**
+     * 当前线程已分配的字节数, JVM不支持时为0
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 所有垃圾收集器的累计次数和耗时
+     */
+    private static long[] gcTotals() {
+        long count = 0;
+        long mills = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+            mills += Math.max(0, bean.getCollectionTime());
+        }
+        return new long[]{count, mills};
+    }
+
+    public Rectangle getArea() {
+        return area;
+    }
+
+    public long getSentFrames() {
+        return sentFrames;
+    }
+
+    public long getUnchangedFrames() {
+        return unchangedFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public long getWriteAllocatedBytes() {
+        return writeAllocatedBytes;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    /**
+     * 实际截屏帧率, 包括跳过和丢弃的帧
+     */
+    public double getCaptureFps() {
+        long frames = sentFrames + unchangedFrames + droppedFrames;
+        return elapsedNanos > 0 ? frames * 1e9 / elapsedNanos : 0;
+    }
+
+    public double getAverageGrabMills() {
+        long frames = sentFrames + unchangedFrames + droppedFrames;
+        return frames > 0 ? grabNanos / 1e6 / frames : 0;
+    }
+
+    /**
+     * 采集线程每帧分配的字节数, 主要是Robot截屏时新建的像素数组
+     */
+    public long getAllocatedBytesPerFrame() {
+        long frames = sentFrames + unchangedFrames + droppedFrames;
+        return frames > 0 ? grabAllocatedBytes / frames : 0;
+    }
+}
@@ -0,0 +1,75 @@
+package cn.zack.service;
+
+import java.nio.file.Path;
+
+/**
+ * 一个已关闭的录制分片
+ *
+ * @author 张云龙
+ */
+public class Segment {
+
+    /**
+     * 在本次录制中的序号, 从0开始连续递增
+     */
+    private final int index;
+
+    private final Path path;
+
+    /**
+     * 分片在录制时间轴上的开始时间, 单位秒
+     */
+    private final double startSeconds;
+
+    /**
+     * 分片在录制时间轴上的结束时间, 单位秒
+     */
+    private final double endSeconds;
+
+    /**
+     * 分片文件字节数
+     */
+    private final long size;
+
+    /**
+     * 分片关闭时的毫秒值
+     */
+    private final long closedMills;
+
+    public Segment(int index, Path path, double startSeconds, double endSeconds, long size, long closedMills) {
+        this.index = index;
+        this.path = path;
+        this.startSeconds = startSeconds;
+        this.endSeconds = endSeconds;
+        this.size = size;
+        this.closedMills = closedMills;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public double getStartSeconds() {
+        return startSeconds;
+    }
+
+    public double getEndSeconds() {
+        return endSeconds;
+    }
+
+    public double getDurationSeconds() {
+        return endSeconds - startSeconds;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getClosedMills() {
+        return closedMills;
+    }
+}
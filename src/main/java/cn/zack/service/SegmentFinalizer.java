@@ -0,0 +1,106 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 分片增量合并
+ * 订阅分片登记表, ffmpeg 每关闭一个 MPEG-TS 分片就把它直接追加到最终文件末尾
+ * MPEG-TS 可以按字节直接拼接, 停止录制时只需要再追加最后一个分片, 停止到可播放的耗时与录制时长无关
+ *
+ * @author 张云龙
+ */
+public class SegmentFinalizer {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentFinalizer.class);
+
+    /**
+     * 最终输出文件
+     */
+    private final Path output;
+
+    /**
+     * 录制日志, 每追加一个分片记录一次追加后的文件长度, 异常退出后据此继续追加
+     */
+    private final RecordingJournal journal;
+
+    /**
+     * 已追加到最终文件的分片数量
+     */
+    private int appendedCount = 0;
+
+    public SegmentFinalizer(Path output, RecordingJournal journal) {
+        this.output = output;
+        this.journal = journal;
+    }
+
+    /**
+     * 创建空的最终文件, 并订阅分片登记表
+     *
+     * @param registry 本次录制的分片登记表
+     */
+    public void start(SegmentRegistry registry) throws IOException {
+        Files.write(output, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        registry.addListener(segment -> {
+            try {
+                append(segment.getIndex(), segment.getPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 录制进程退出且分片登记表关闭后调用
+     *
+     * @return 追加到最终文件的分片总数
+     */
+    public synchronized int finish() {
+        logger.info("分片追加完成, 共{}个分片, 视频保存为: {}", appendedCount, output);
+        return appendedCount;
+    }
+
+    /**
+     * 异常退出后继续追加: 把最终文件截断到日志中最后一次记录的长度, 丢弃可能只追加了一半的分片
+     *
+     * @param appendedSize  日志中最后一次记录的最终文件长度
+     * @param appendedCount 已追加的分片数量
+     */
+    public synchronized void resume(long appendedSize, int appendedCount) throws IOException {
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(appendedSize);
+        }
+        this.appendedCount = appendedCount;
+    }
+
+    /**
+     * 零拷贝追加一个分片到最终文件末尾
+     * 追加的数据落盘并写入日志之后才删除分片, 任何时刻异常退出都不会丢失分片
+     *
+     * @param index 分片序号
+     * @param shard 分片文件
+     */
+    public synchronized void append(int index, Path shard) throws IOException {
+        long outputSize;
+        try (FileChannel in = FileChannel.open(shard, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(false);
+            outputSize = out.size();
+        }
+        journal.append(true, RecordingJournal.APPENDED, index, outputSize);
+        Files.deleteIfExists(shard);
+        appendedCount++;
+        logger.info("已追加视频分片: {}", shard);
+    }
+}
@@ -0,0 +1,352 @@
+package cn.zack.service;
+
+import cn.zack.utils.FileNameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分片级并行合成
+ * 以录制时的分片为单位, 在 fork-join 线程池中并行地为每个分片混入对应时间窗口内的麦克风录音, 最后用 concat 流复制拼接
+ * 每个分片只重新编码音频, 画面直接复制; 窗口内没有录音的分片原样参与拼接, 不启动ffmpeg
+ * 录音片段跨越分片边界时, 前后两个窗口各自混入落在窗口内的部分, 混音的采样与整段混音相同;
+ * 但混入录音的分片各自重新编码AAC, 每段开头的编码器预热和结尾的补齐在拼接处留下约一帧(1024个采样)的不连续,
+ * 结果与整段混音并非逐采样一致, 对逐采样一致有要求时使用整段合成
+ * 增量合并模式下分片已经追加进最终文件并删除, 按分片字节数推算出每个分片在最终文件中的位置, 通过 subfile 协议直接读取
+ *
+ * @author 张云龙
+ */
+public class SegmentMergePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMergePipeline.class);
+
+    private final FfmpegRunner ffmpegRunner;
+
+    /**
+     * ffmpeg可执行文件
+     */
+    private final String ffmpegPath;
+
+    private final ForkJoinPool pool;
+
+    private final AudioMixer audioMixer;
+
+    /**
+     * amix 的 normalize 参数, 与整段合成一致
+     */
+    private final int mixNormalize;
+
+    /**
+     * @param voiceActivity 录音文件的有声区间, 窗口内没有有声部分时与没有录音一样直接复制分片
+     * @param mixNormalize  amix 的 normalize 参数, 1为按输入数量归一化, 0为直接相加
+     */
+    public SegmentMergePipeline(FfmpegRunner ffmpegRunner, String ffmpegPath, ForkJoinPool pool, Map<String, List<long[]>> voiceActivity,
+                                int mixNormalize) {
+        this.ffmpegRunner = ffmpegRunner;
+        this.ffmpegPath = ffmpegPath;
+        this.pool = pool;
+        this.audioMixer = new AudioMixer(voiceActivity);
+        this.mixNormalize = mixNormalize;
+    }
+
+    /**
+     * 并行合成
+     *
+     * @param processName ffmpeg进程名称前缀, 每个工作线程的进程名称带上线程序号
+     * @param segments    录制时登记的分片, 按录制顺序排列
+     * @param incremental 分片是否已增量追加到视频文件中
+     * @param videoPath   录制的视频文件
+     * @param audioMap    录音文件以及相对视频开始的偏移, 单位毫秒
+     * @param outPutPath  新生成的视频文件
+     * @return 合成结果, 包含拼接列表和各分片的耗时
+     * @throws IOException 分片不可用或任一分片合成失败
+     */
+    public Result merge(String processName, List<Segment> segments, boolean incremental, String videoPath,
+                        Map<String, Long> audioMap, String outPutPath) throws IOException {
+        long startNanos = System.nanoTime();
+        String workPrefix = FileNameUtils.removeExtension(outPutPath) + "_part";
+        List<Window> windows = toWindows(segments, incremental, videoPath, workPrefix);
+        AtomicLong taskNanos = new AtomicLong();
+        try {
+            pool.invoke(new MergeTask(processName, windows, 0, windows.size(), audioMap, taskNanos));
+        } catch (RuntimeException e) {
+            cleanup(windows);
+            if (e instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e).getCause();
+            }
+            throw e;
+        }
+        List<String> concatList = new ArrayList<>();
+        int mixedCount = 0;
+        for (Window window : windows) {
+            concatList.add(FfmpegCommand.concatEntry(window.mixed ? window.piece : window.input));
+            concatList.add("duration " + String.format("%.6f", window.durationMills / 1000.0));
+            if (window.mixed) {
+                mixedCount++;
+            }
+        }
+        return new Result(windows, concatList, mixedCount, System.nanoTime() - startNanos, taskNanos.get(), pool.getParallelism(),
+                audioMixer.getReadBytes(), audioMixer.getClipBytes());
+    }
+
+    /**
+     * 按分片划分时间窗口, 窗口时长取分片在时间轴上的时长, 与分片合并时的concat列表一致
+     */
+    private List<Window> toWindows(List<Segment> segments, boolean incremental, String videoPath, String workPrefix) throws IOException {
+        if (segments.isEmpty()) {
+            throw new IOException("没有登记的分片");
+        }
+        List<Window> windows = new ArrayList<>(segments.size());
+        double base = segments.get(0).getStartSeconds();
+        long offset = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            double end = i + 1 < segments.size() ? segments.get(i + 1).getStartSeconds() : segment.getEndSeconds();
+            String input;
+            if (incremental) {
+                input = "subfile,,start," + offset + ",end," + (offset + segment.getSize()) + ",,:" + Paths.get(videoPath).toAbsolutePath();
+                offset += segment.getSize();
+            } else {
+                if (!Files.exists(segment.getPath())) {
+                    throw new IOException("分片文件不存在: " + segment.getPath());
+                }
+                input = segment.getPath().toAbsolutePath().toString();
+            }
+            // 合成后的分片与直接复制的分片格式相同, 管道写入的分片即使未增量合并也是ts
+            boolean ts = incremental || segment.getPath().toString().endsWith(".ts");
+            windows.add(new Window(i, input, Math.round((segment.getStartSeconds() - base) * 1000),
+                    Math.round((end - segment.getStartSeconds()) * 1000), workPrefix + String.format("_%03d", i),
+                    ts ? "ts" : "mp4"));
+        }
+        // 异常退出后继续追加的分片可能未登记, 字节数对不上时无法按位置读取
+        if (incremental && offset != Files.size(Paths.get(videoPath))) {
+            throw new IOException("登记的分片字节数" + offset + "与视频文件长度不一致");
+        }
+        return windows;
+    }
+
+    /**
+     * 合成一个分片: 混出窗口内的录音, 窗口内有录音时与分片的系统声音混合, 画面直接复制
+     * 音频单独编码, 与相邻分片的拼接处存在AAC预热造成的不连续
+     */
+    private void mergeWindow(String processName, Window window, Map<String, Long> audioMap) throws IOException, InterruptedException {
+        Path wav = Paths.get(window.workPrefix + ".wav");
+        if (!audioMixer.mixWindow(audioMap, window.startMills, window.startMills + window.durationMills, wav)) {
+            return;
+        }
+        FfmpegCommand command = new FfmpegCommand(ffmpegPath).options("-y -i").arg(window.input).arg("-i").arg(wav.toString())
+                .options("-filter_complex [0:a][1:a]amix=inputs=2:duration=first:dropout_transition=0:normalize=" + mixNormalize +
+                        "[mixed_audio] -map 0:v -map [mixed_audio] -c:v copy " + EncoderSettings.AUDIO_ARGS).arg(window.piece);
+        // 进程名称按工作线程区分, 指标数量与并行度相同, 不随分片数量增长
+        Thread thread = Thread.currentThread();
+        int worker = thread instanceof ForkJoinWorkerThread ? ((ForkJoinWorkerThread) thread).getPoolIndex() : 0;
+        int exitCode = ffmpegRunner.runBackground(processName + "-" + worker, command.toList(), null);
+        Files.deleteIfExists(wav);
+        if (exitCode != 0) {
+            throw new IOException("分片" + window.index + "合成失败, 退出码" + exitCode);
+        }
+        window.mixed = true;
+    }
+
+    /**
+     * 删除各分片的中间文件
+     */
+    public static void cleanup(List<Window> windows) {
+        for (Window window : windows) {
+            try {
+                Files.deleteIfExists(Paths.get(window.workPrefix + ".wav"));
+                Files.deleteIfExists(Paths.get(window.piece));
+            } catch (IOException e) {
+                logger.info("删除合成中间文件异常, 异常信息: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 对分片区间二分, 直到单个分片再合成
+     */
+    private class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String processName;
+        private final List<Window> windows;
+        private final int from;
+        private final int to;
+        private final Map<String, Long> audioMap;
+        private final AtomicLong taskNanos;
+
+        private MergeTask(String processName, List<Window> windows, int from, int to, Map<String, Long> audioMap, AtomicLong taskNanos) {
+            this.processName = processName;
+            this.windows = windows;
+            this.from = from;
+            this.to = to;
+            this.audioMap = audioMap;
+            this.taskNanos = taskNanos;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MergeTask(processName, windows, from, middle, audioMap, taskNanos),
+                        new MergeTask(processName, windows, middle, to, audioMap, taskNanos));
+                return;
+            }
+            long startNanos = System.nanoTime();
+            try {
+                mergeWindow(processName, windows.get(from), audioMap);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("分片合成被中断"));
+            } finally {
+                taskNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * 一个分片对应的时间窗口
+     */
+    public static class Window {
+        private final int index;
+
+        /**
+         * ffmpeg输入, 分片文件或视频文件中分片所在字节范围的subfile地址
+         */
+        private final String input;
+
+        /**
+         * 窗口相对视频开始的位置, 单位毫秒
+         */
+        private final long startMills;
+
+        private final long durationMills;
+
+        /**
+         * 中间文件前缀
+         */
+        private final String workPrefix;
+
+        /**
+         * 混入录音后的分片, 容器格式与原分片相同
+         */
+        private final String piece;
+
+        /**
+         * 是否混入了录音
+         */
+        private volatile boolean mixed;
+
+        private Window(int index, String input, long startMills, long durationMills, String workPrefix, String suffix) {
+            this.index = index;
+            this.input = input;
+            this.startMills = startMills;
+            this.durationMills = durationMills;
+            this.workPrefix = workPrefix;
+            this.piece = workPrefix + "." + suffix;
+        }
+    }
+
+    /**
+     * 并行合成结果
+     */
+    public static class Result {
+        private final List<Window> windows;
+
+        /**
+         * 拼接所有分片的concat列表
+         */
+        private final List<String> concatList;
+
+        /**
+         * 混入了录音的分片数量
+         */
+        private final int mixedCount;
+
+        /**
+         * 并行合成的墙钟耗时, 不含拼接
+         */
+        private final long wallNanos;
+
+        /**
+         * 各分片合成耗时之和, 即串行执行的耗时
+         */
+        private final long taskNanos;
+
+        private final int parallelism;
+
+        /**
+         * 混音实际读取的录音字节数
+         */
+        private final long mixReadBytes;
+
+        /**
+         * 不按有声区间裁剪时混音需要读取的录音字节数
+         */
+        private final long mixClipBytes;
+
+        private Result(List<Window> windows, List<String> concatList, int mixedCount, long wallNanos, long taskNanos, int parallelism,
+                       long mixReadBytes, long mixClipBytes) {
+            this.windows = windows;
+            this.concatList = concatList;
+            this.mixedCount = mixedCount;
+            this.wallNanos = wallNanos;
+            this.taskNanos = taskNanos;
+            this.parallelism = parallelism;
+            this.mixReadBytes = mixReadBytes;
+            this.mixClipBytes = mixClipBytes;
+        }
+
+        public List<Window> getWindows() {
+            return windows;
+        }
+
+        public List<String> getConcatList() {
+            return concatList;
+        }
+
+        public int getMixedCount() {
+            return mixedCount;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getTaskNanos() {
+            return taskNanos;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public long getMixReadBytes() {
+            return mixReadBytes;
+        }
+
+        public long getMixClipBytes() {
+            return mixClipBytes;
+        }
+
+        /**
+         * 相对串行执行的加速比
+         */
+        public double getSpeedup() {
+            return wallNanos > 0 ? (double) taskNanos / wallNanos : 0;
+        }
+    }
+}
@@ -0,0 +1,619 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 从录屏进程的标准输出读取MPEG-TS, 切分为分片写入磁盘
+ * 读取线程按188字节的TS包解析, 视频流中带随机访问标记的PES距分片开始满分片时长时切分, 新分片以最近的PAT、PMT开头, 可单独播放和拼接
+ * 数据先填满固定大小的块再交给写入线程, 写入线程用FileChannel整块顺序写入, 分片中间的写入位置都是4KB的整数倍
+ * 块在预先分配的缓冲池中循环使用, 池中没有空闲块时读取线程等待, 不再读取标准输出, ffmpeg写满管道后随之等待, 内存占用不会随磁盘变慢增长
+ * 分片关闭后按ffmpeg分片列表的格式追加一行, SegmentRegistry 照常登记, 增量合并、录制日志和恢复都不需要区分分片来源
+ * 写入时定期检查剩余空间, 低于告警阈值时记录日志, 低于停止阈值时通知会话停止录制; 写入异常后丢弃之后的数据, 保证ffmpeg能正常退出
+ *
+ * @author 张云龙
+ */
+public class SegmentPipeWriter {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentPipeWriter.class);
+
+    private static final int TS_PACKET_SIZE = KeyframeIndex.TS_PACKET_SIZE;
+
+    /**
+     * PTS单位为1/90000秒
+     */
+    private static final long PTS_PER_SECOND = 90_000;
+
+    /**
+     * 写入块的对齐字节数
+     */
+    private static final int BLOCK_ALIGN = 4096;
+
+    /**
+     * 每次从管道读取的字节数, 为TS包的整数倍
+     */
+    private static final int READ_BUFFER_BYTES = TS_PACKET_SIZE * 348;
+
+    /**
+     * 检查剩余空间的间隔
+     */
+    private static final long FREE_SPACE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 读取结束的标记
+     */
+    private static final Chunk END = new Chunk(null, null, false, 0);
+
+    private final String name;
+
+    private final String prefix;
+
+    private final Path segmentList;
+
+    private final long segmentPts;
+
+    private final String fsync;
+
+    private final long fsyncIntervalNanos;
+
+    private final long warnFreeBytes;
+
+    private final long stopFreeBytes;
+
+    private final Stats stats;
+
+    private final Runnable lowSpaceListener;
+
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+
+    private final BlockingQueue<Chunk> pending = new LinkedBlockingQueue<>();
+
+    private final FileStore fileStore;
+
+    private Thread readThread;
+
+    private Thread writeThread;
+
+    private volatile IOException failure;
+
+    // 以下字段只在读取线程中访问
+
+    private int nextIndex;
+
+    private Shard shard;
+
+    private ByteBuffer current;
+
+    private final byte[] packet = new byte[TS_PACKET_SIZE];
+
+    private byte[] pat;
+
+    private byte[] pmt;
+
+    private int pmtPid = -1;
+
+    private int videoPid = -1;
+
+    private long lastPts = -1;
+
+    private long wrap;
+
+    private long lostSyncBytes;
+
+    // 以下字段只在写入线程中访问
+
+    private FileChannel channel;
+
+    private long lastSyncNanos;
+
+    private long lastFreeCheckNanos;
+
+    private boolean freeWarned;
+
+    private boolean lowSpace;
+
+    /**
+     * @param name             录屏进程名称, 用于线程名和日志
+     * @param prefix           分片文件前缀, 分片为 前缀_序号.ts
+     * @param startNumber      第一个分片的序号
+     * @param segmentSeconds   分片时长, 单位秒
+     * @param segmentList      分片列表, 格式同ffmpeg的csv分片列表
+     * @param config           分片写入配置
+     * @param stats            指标, 同一进程名称的写入器共用
+     * @param lowSpaceListener 剩余空间低于停止阈值或写入失败时调用一次, 在写入线程中执行
+     * @throws IOException 剩余空间已低于停止阈值
+     */
+    public SegmentPipeWriter(String name, String prefix, int startNumber, int segmentSeconds, Path segmentList,
+                             RecordProperties.PipeWriter config, Stats stats, Runnable lowSpaceListener) throws IOException {
+        this.name = name;
+        this.prefix = prefix;
+        this.nextIndex = startNumber;
+        this.segmentList = segmentList;
+        this.segmentPts = segmentSeconds * PTS_PER_SECOND;
+        this.fsync = config.getFsync();
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getFsyncIntervalMills()));
+        this.warnFreeBytes = config.getWarnFreeMb() * 1024 * 1024;
+        this.stopFreeBytes = config.getStopFreeMb() * 1024 * 1024;
+        this.stats = stats;
+        this.lowSpaceListener = lowSpaceListener;
+        if (!"none".equals(fsync) && !"segment".equals(fsync) && !"interval".equals(fsync)) {
+            throw new IllegalArgumentException("不支持的刷盘策略: " + fsync);
+        }
+        int bufferBytes = Math.max(BLOCK_ALIGN, config.getBufferKb() * 1024 / BLOCK_ALIGN * BLOCK_ALIGN);
+        // 读取线程正在填充一块, 写入线程正在写入一块, 其余为排队中的块
+        int buffers = Math.max(1, config.getQueueBuffers()) + 2;
+        this.freeBuffers = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferBytes));
+        }
+        Path dir = segmentList.toAbsolutePath().getParent();
+        this.fileStore = Files.getFileStore(dir);
+        long usable = fileStore.getUsableSpace();
+        if (usable < stopFreeBytes) {
+            throw new IOException("磁盘剩余空间" + usable / 1024 / 1024 + "MB, 低于" + config.getStopFreeMb() + "MB, 无法开始录制");
+        }
+    }
+
+    /**
+     * 开始读取录屏进程的标准输出
+     */
+    public void start(InputStream inputStream) {
+        checkFreeSpace(true);
+        writeThread = new Thread(this::write, "segment-writer-" + name);
+        writeThread.setDaemon(true);
+        writeThread.start();
+        readThread = new Thread(() -> read(inputStream), "segment-reader-" + name);
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    /**
+     * 等待标准输出结束、最后一个分片写入完成, 在录屏进程退出后调用
+     *
+     * @throws IOException 写入分片失败
+     */
+    public void finish() throws IOException, InterruptedException {
+        readThread.join();
+        writeThread.join();
+        if (lostSyncBytes > 0) {
+            logger.info("分片写入跳过{}字节无法对齐的数据, 进程: {}", lostSyncBytes, name);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 读取线程: 逐个TS包处理, 不完整的包留到下次读取
+     */
+    private void read(InputStream inputStream) {
+        byte[] input = new byte[READ_BUFFER_BYTES];
+        int length = 0;
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(input, length, input.length - length)) >= 0) {
+                length += read;
+                int position = 0;
+                while (length - position >= TS_PACKET_SIZE) {
+                    if (input[position] != 0x47) {
+                        // 同步字节错误时逐字节向后查找
+                        lostSyncBytes++;
+                        position++;
+                        continue;
+                    }
+                    accept(input, position);
+                    position += TS_PACKET_SIZE;
+                }
+                System.arraycopy(input, position, input, 0, length - position);
+                length -= position;
+            }
+        } catch (IOException e) {
+            logger.info("读取录屏进程输出异常, 进程: {}, 异常信息: {}", name, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeShard(lastPts);
+            submit(END);
+        }
+    }
+
+    /**
+     * 处理一个TS包: 记录PAT、PMT, 在视频关键帧处切分, 再写入当前分片
+     */
+    private void accept(byte[] data, int offset) throws InterruptedException {
+        boolean unitStart = (data[offset + 1] & 0x40) != 0;
+        int pid = ((data[offset + 1] & 0x1F) << 8) | (data[offset + 2] & 0xFF);
+        int adaptation = (data[offset + 3] >> 4) & 0x03;
+        int payload = 4;
+        boolean randomAccess = false;
+        if ((adaptation & 0x02) != 0) {
+            int adaptationLength = data[offset + 4] & 0xFF;
+            randomAccess = adaptationLength > 0 && (data[offset + 5] & 0x40) != 0;
+            payload = 5 + adaptationLength;
+        }
+        if ((adaptation & 0x01) != 0 && unitStart && payload < TS_PACKET_SIZE) {
+            if (pid == 0) {
+                System.arraycopy(data, offset, packet, 0, TS_PACKET_SIZE);
+                pat = packet.clone();
+                pmtPid = KeyframeIndex.parsePat(packet, payload);
+            } else if (pid == pmtPid) {
+                System.arraycopy(data, offset, packet, 0, TS_PACKET_SIZE);
+                pmt = packet.clone();
+                if (videoPid < 0) {
+                    videoPid = KeyframeIndex.parsePmt(packet, payload);
+                }
+            } else {
+                System.arraycopy(data, offset, packet, 0, TS_PACKET_SIZE);
+                long pts = KeyframeIndex.parsePts(packet, payload);
+                if (pts >= 0) {
+                    // PTS为33位, 长录制中回绕后继续递增
+                    if (lastPts >= 0 && pts + wrap + (1L << 32) < lastPts) {
+                        wrap += 1L << 33;
+                    }
+                    pts += wrap;
+                    if (pid == videoPid && randomAccess && shard != null && shard.startPts >= 0
+                            && pts - shard.startPts >= segmentPts) {
+                        closeShard(pts);
+                    }
+                    if (shard == null) {
+                        openShard(pts);
+                    } else if (shard.startPts < 0) {
+                        shard.startPts = pts;
+                    }
+                    lastPts = Math.max(lastPts, pts);
+                }
+            }
+        }
+        if (shard == null) {
+            openShard(-1);
+        }
+        put(data, offset, TS_PACKET_SIZE);
+    }
+
+    /**
+     * 开始新分片, 第一个分片之后的分片先写入最近的PAT、PMT
+     *
+     * @param startPts 分片开始的PTS, 还没有遇到PTS时为-1
+     */
+    private void openShard(long startPts) throws InterruptedException {
+        shard = new Shard(Paths.get(String.format("%s_%03d.ts", prefix, nextIndex)), startPts);
+        nextIndex++;
+        current = takeBuffer();
+        if (pat != null && pmt != null) {
+            put(pat, 0, TS_PACKET_SIZE);
+            put(pmt, 0, TS_PACKET_SIZE);
+        }
+    }
+
+    /**
+     * 结束当前分片, 最后一块交给写入线程时附带分片结束时间
+     * 等待空闲块时被中断的分片没有当前块, 不再交给写入线程, 该分片不登记到分片列表
+     */
+    private void closeShard(long endPts) {
+        if (shard == null) {
+            return;
+        }
+        if (current == null) {
+            logger.info("分片写入被中断, 不登记分片: {}", shard.path);
+            shard = null;
+            return;
+        }
+        submit(new Chunk(shard, current, true, endPts));
+        shard = null;
+        current = null;
+    }
+
+    /**
+     * 写入当前块, 写满后交给写入线程并取下一块
+     */
+    private void put(byte[] data, int offset, int length) throws InterruptedException {
+        while (length > 0) {
+            int n = Math.min(length, current.remaining());
+            current.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (!current.hasRemaining()) {
+                submit(new Chunk(shard, current, false, -1));
+                current = takeBuffer();
+            }
+        }
+    }
+
+    private void submit(Chunk chunk) {
+        stats.queueDepth.incrementAndGet();
+        pending.add(chunk);
+    }
+
+    /**
+     * 从缓冲池取一块, 池中没有空闲块说明磁盘写入跟不上, 等待期间不再读取ffmpeg的输出
+     */
+    private ByteBuffer takeBuffer() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            long startNanos = System.nanoTime();
+            buffer = freeBuffers.take();
+            stats.backpressure.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 写入线程: 按顺序整块写入, 分片关闭时刷盘并追加分片列表
+     */
+    private void write() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            stats.queueDepth.decrementAndGet();
+            if (chunk == END) {
+                closeChannelQuietly();
+                return;
+            }
+            try {
+                if (failure == null) {
+                    writeChunk(chunk);
+                }
+            } catch (IOException e) {
+                fail(chunk, e);
+            } catch (RuntimeException e) {
+                // 写入线程退出后读取线程会一直等待空闲块, 意外异常同样按写入失败处理, 继续归还缓冲块直到结束
+                fail(chunk, new IOException(e));
+            } finally {
+                freeBuffers.add(chunk.buffer);
+            }
+        }
+    }
+
+    /**
+     * 记录写入失败, 之后的块只归还不写入, 并通知会话停止录制
+     */
+    private void fail(Chunk chunk, IOException e) {
+        failure = e;
+        logger.info("写入分片异常, 之后的数据不再写入, 分片: {}, 异常信息: {}", chunk.shard.path, e.getMessage());
+        closeChannelQuietly();
+        notifyLowSpace();
+    }
+
+    private void writeChunk(Chunk chunk) throws IOException {
+        Shard target = chunk.shard;
+        if (channel == null) {
+            channel = FileChannel.open(target.path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            lastSyncNanos = System.nanoTime();
+        }
+        ByteBuffer buffer = chunk.buffer;
+        buffer.flip();
+        int bytes = buffer.remaining();
+        long startNanos = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        long writeNanos = System.nanoTime() - startNanos;
+        stats.write.record(writeNanos, TimeUnit.NANOSECONDS);
+        stats.bytes.increment(bytes);
+        target.bytes += bytes;
+        target.ioNanos += writeNanos;
+        if ("interval".equals(fsync) && System.nanoTime() - lastSyncNanos >= fsyncIntervalNanos) {
+            force(target);
+        }
+        if (chunk.close) {
+            if (!"none".equals(fsync)) {
+                force(target);
+            }
+            channel.close();
+            channel = null;
+            appendSegmentList(target, chunk.endPts);
+        }
+        checkFreeSpace(false);
+    }
+
+    private void force(Shard target) throws IOException {
+        long startNanos = System.nanoTime();
+        channel.force(false);
+        long syncNanos = System.nanoTime() - startNanos;
+        stats.fsync.record(syncNanos, TimeUnit.NANOSECONDS);
+        target.ioNanos += syncNanos;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * 按ffmpeg分片列表的格式追加一行: 文件名,开始秒,结束秒
+     */
+    private void appendSegmentList(Shard target, long endPts) throws IOException {
+        long startPts = Math.max(0, target.startPts);
+        double start = startPts / (double) PTS_PER_SECOND;
+        double end = Math.max(startPts, endPts) / (double) PTS_PER_SECOND;
+        String line = target.path.getFileName() + "," + String.format(Locale.ROOT, "%.6f", start) + ","
+                + String.format(Locale.ROOT, "%.6f", end) + "\n";
+        Files.write(segmentList, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        double seconds = target.ioNanos / 1e9;
+        double throughput = seconds > 0 ? target.bytes / 1024.0 / 1024 / seconds : 0;
+        if (throughput > 0) {
+            stats.throughput.record(throughput);
+        }
+        logger.info("分片写入完成: {}, {}KB, 磁盘耗时{}ms, 吞吐{}MB/s, 剩余空间{}MB", target.path.getFileName(), target.bytes / 1024,
+                target.ioNanos / 1_000_000, String.format("%.1f", throughput), stats.freeBytes.get() / 1024 / 1024);
+    }
+
+    /**
+     * 检查剩余空间, 写入线程中每秒最多检查一次
+     *
+     * @param force 是否忽略检查间隔
+     */
+    private void checkFreeSpace(boolean force) {
+        long now = System.nanoTime();
+        if (!force && now - lastFreeCheckNanos < FREE_SPACE_CHECK_NANOS) {
+            return;
+        }
+        lastFreeCheckNanos = now;
+        long usable;
+        try {
+            usable = fileStore.getUsableSpace();
+        } catch (IOException e) {
+            logger.info("获取磁盘剩余空间异常, 异常信息: {}", e.getMessage());
+            return;
+        }
+        stats.freeBytes.set(usable);
+        if (usable < stopFreeBytes) {
+            if (!lowSpace) {
+                logger.info("磁盘剩余空间{}MB, 低于{}MB, 停止录制, 进程: {}", usable / 1024 / 1024, stopFreeBytes / 1024 / 1024, name);
+                notifyLowSpace();
+            }
+        } else if (usable < warnFreeBytes && !freeWarned) {
+            freeWarned = true;
+            logger.info("磁盘剩余空间{}MB, 低于告警阈值{}MB, 进程: {}", usable / 1024 / 1024, warnFreeBytes / 1024 / 1024, name);
+        }
+    }
+
+    private void notifyLowSpace() {
+        if (lowSpace) {
+            return;
+        }
+        lowSpace = true;
+        try {
+            lowSpaceListener.run();
+        } catch (Exception e) {
+            logger.info("通知停止录制异常, 异常信息: {}", e.getMessage());
+        }
+    }
+
+    private void closeChannelQuietly() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.info("关闭分片文件异常, 异常信息: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * 写入器的指标, 每个进程名称一份, 重启的录屏进程接着累计, 会话结束录制后注销
+     */
+    public static class Stats {
+
+        private final MeterRegistry meterRegistry;
+
+        private final List<Meter> meters = new ArrayList<>();
+
+        private final AtomicInteger queueDepth = new AtomicInteger();
+
+        private final AtomicLong freeBytes = new AtomicLong(-1);
+
+        private final Timer write;
+
+        private final Timer fsync;
+
+        private final Timer backpressure;
+
+        private final Counter bytes;
+
+        private final DistributionSummary throughput;
+
+        public Stats(MeterRegistry meterRegistry, String process) {
+            this.meterRegistry = meterRegistry;
+            meters.add(Gauge.builder("record.writer.queue.depth", queueDepth, AtomicInteger::get).tag("process", process)
+                    .register(meterRegistry));
+            meters.add(Gauge.builder("record.writer.free", freeBytes, AtomicLong::get).tag("process", process)
+                    .baseUnit("bytes").register(meterRegistry));
+            write = meterRegistry.timer("record.writer.write", "process", process);
+            fsync = meterRegistry.timer("record.writer.fsync", "process", process);
+            backpressure = meterRegistry.timer("record.writer.backpressure", "process", process);
+            bytes = Counter.builder("record.writer.bytes").tag("process", process).baseUnit("bytes").register(meterRegistry);
+            throughput = DistributionSummary.builder("record.writer.throughput").tag("process", process)
+                    .baseUnit("MB/s").register(meterRegistry);
+            meters.add(write);
+            meters.add(fsync);
+            meters.add(backpressure);
+            meters.add(bytes);
+            meters.add(throughput);
+        }
+
+        /**
+         * 注销全部指标, 进程名称带有会话标识, 不注销时指标数量随录制次数增长
+         */
+        public void remove() {
+            meters.forEach(meterRegistry::remove);
+        }
+    }
+
+    /**
+     * 正在写入的分片
+     */
+    private static class Shard {
+
+        private final Path path;
+
+        private long startPts;
+
+        /**
+         * 已写入的字节数和写入、刷盘的累计耗时, 只在写入线程中访问
+         */
+        private long bytes;
+
+        private long ioNanos;
+
+        private Shard(Path path, long startPts) {
+            this.path = path;
+            this.startPts = startPts;
+        }
+    }
+
+    /**
+     * 交给写入线程的一块数据
+     */
+    private static class Chunk {
+
+        private final Shard shard;
+
+        private final ByteBuffer buffer;
+
+        /**
+         * 是否为分片的最后一块
+         */
+        private final boolean close;
+
+        private final long endPts;
+
+        private Chunk(Shard shard, ByteBuffer buffer, boolean close, long endPts) {
+            this.shard = shard;
+            this.buffer = buffer;
+            this.close = close;
+            this.endPts = endPts;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 一次录制的分片登记表
+ * ffmpeg 每关闭一个分片就会向 -segment_list 指定的 csv 追加一行(分片文件名,开始时间,结束时间), 这里在后台轮询该文件,
+ * 按关闭顺序登记分片并通知订阅者, 同时把登记结果追加写入清单文件
+ * 分片顺序以 ffmpeg 的关闭顺序为准, 不再依赖扫描目录, 也不受目录中其他录制文件数量的影响
+ *
+ * @author 张云龙
+ */
+public class SegmentRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentRegistry.class);
+
+    /**
+     * 轮询分片列表的间隔, 单位毫秒
+     */
+    private static final long POLL_INTERVAL_MILLS = 500;
+
+    /**
+     * 按序号登记的分片, 只追加
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * 清单文件, 每行一个分片: 序号 文件 开始时间 结束时间 字节数 关闭时间
+     */
+    private final Path manifest;
+
+    private final List<Consumer<Segment>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 当前轮询的ffmpeg分片列表
+     */
+    private Path segmentList;
+
+    /**
+     * 当前分片列表中已登记的字节数, 下次从这里继续读取
+     */
+    private long listedBytes = 0;
+
+    /**
+     * 当前分片列表的时间偏移, 进程重启后新列表的第一个分片放在新进程启动的时刻, 重启期间丢失的画面在时间轴上留出间隔
+     * 新列表的第一行到达前为NaN
+     */
+    private double timeOffset = 0;
+
+    /**
+     * 新列表第一个分片在时间轴上的开始时间, 不早于进程重启前最后一个分片的结束时间
+     */
+    private double nextListStart = 0;
+
+    private volatile boolean running = false;
+
+    private Thread pollThread;
+
+    /**
+     * @param manifest 清单文件
+     */
+    public SegmentRegistry(Path manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * 订阅分片关闭事件, 回调在轮询线程中按分片顺序执行
+     */
+    public void addListener(Consumer<Segment> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 开始轮询ffmpeg的分片列表
+     *
+     * @param firstSegmentList 第一个录制进程的分片列表
+     */
+    public void start(Path firstSegmentList) throws IOException {
+        segmentList = firstSegmentList;
+        listedBytes = 0;
+        Files.deleteIfExists(segmentList);
+        Files.write(manifest, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        running = true;
+        pollThread = new Thread(() -> {
+            while (running) {
+                try {
+                    poll();
+                    Thread.sleep(POLL_INTERVAL_MILLS);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    logger.info("登记分片异常, 异常信息: {}", e.getMessage());
+                }
+            }
+        }, "segment-registry");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    /**
+     * 录制进程重启后切换到新的分片列表, 旧进程已退出, 先登记旧列表中剩余的分片
+     * 时间轴以第一个进程启动为起点, 与麦克风录音使用同一时间基准, 新列表的第一个分片放在新进程启动的时刻
+     *
+     * @param nextSegmentList 新进程写出的分片列表
+     * @param startSeconds    新进程启动时距第一个进程启动的时长, 单位秒
+     * @return 重启期间丢失的画面时长, 即时间轴上留出的间隔, 单位秒
+     */
+    public synchronized double switchList(Path nextSegmentList, double startSeconds) throws IOException {
+        poll();
+        Files.deleteIfExists(segmentList);
+        segmentList = nextSegmentList;
+        listedBytes = 0;
+        double previousEnd = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getEndSeconds();
+        double origin = segments.isEmpty() ? 0 : segments.get(0).getStartSeconds();
+        nextListStart = Math.max(previousEnd, origin + startSeconds);
+        timeOffset = Double.NaN;
+        Files.deleteIfExists(segmentList);
+        return nextListStart - previousEnd;
+    }
+
+    /**
+     * 录制进程退出后调用, 登记剩余的分片并停止轮询
+     */
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        if (pollThread != null) {
+            pollThread.interrupt();
+            pollThread.join();
+        }
+        poll();
+        if (segmentList != null) {
+            Files.deleteIfExists(segmentList);
+        }
+        logger.info("分片登记完成, 共{}个分片, 清单: {}", size(), manifest);
+    }
+
+    /**
+     * 读取分片列表, 登记新关闭的分片
+     * 从上次读到的位置开始只读取新增的字节, 最后一行可能还没写完整, 只处理以换行结尾的行, 不完整的行留到下次读取
+     */
+    private synchronized void poll() throws IOException {
+        if (segmentList == null || !Files.exists(segmentList)) {
+            return;
+        }
+        byte[] appended;
+        try (FileChannel channel = FileChannel.open(segmentList, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= listedBytes) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - listedBytes));
+            channel.position(listedBytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            appended = buffer.array();
+            int end = buffer.position();
+            while (end > 0 && appended[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return;
+            }
+            listedBytes += end;
+            appended = Arrays.copyOf(appended, end);
+        }
+        for (String line : new String(appended, StandardCharsets.UTF_8).split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] columns = line.split(",");
+            if (Double.isNaN(timeOffset)) {
+                timeOffset = nextListStart - Double.parseDouble(columns[1]);
+            }
+            Path path = segmentList.resolveSibling(columns[0]);
+            Segment segment = new Segment(segments.size(), path,
+                    timeOffset + Double.parseDouble(columns[1]), timeOffset + Double.parseDouble(columns[2]),
+                    Files.size(path), System.currentTimeMillis());
+            register(segment);
+        }
+    }
+
+    private void register(Segment segment) throws IOException {
+        segments.add(segment);
+        String line = segment.getIndex() + "\t" + segment.getPath() + "\t" + segment.getStartSeconds() + "\t" +
+                segment.getEndSeconds() + "\t" + segment.getSize() + "\t" + segment.getClosedMills() + "\n";
+        Files.write(manifest, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        logger.info("登记分片: {}, 时长{}秒, {}字节", segment.getPath(), String.format("%.3f", segment.getDurationSeconds()),
+                segment.getSize());
+        for (Consumer<Segment> listener : listeners) {
+            try {
+                listener.accept(segment);
+            } catch (Exception e) {
+                logger.info("处理分片异常, 分片: {}, 异常信息: {}", segment.getPath(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 按序号获取分片
+     */
+    public synchronized Segment get(int index) {
+        return segments.get(index);
+    }
+
+    /**
+     * 已登记的分片数量, 也是下一个分片的序号
+     */
+    public synchronized int size() {
+        return segments.size();
+    }
+
+    /**
+     * 已登记分片的只读快照, 按录制顺序排列
+     */
+    public synchronized List<Segment> getSegments() {
+        return Collections.unmodifiableList(new ArrayList<>(segments));
+    }
+
+    /**
+     * 分片在时间轴上占用的时长
+     * 可变帧率时分片末尾可能是一段静止画面, 以下一个分片的开始时间为准, 最后一个分片取自身时长
+     */
+    public synchronized double getTimelineDuration(int index) {
+        Segment segment = segments.get(index);
+        if (index + 1 < segments.size()) {
+            return segments.get(index + 1).getStartSeconds() - segment.getStartSeconds();
+        }
+        return segment.getDurationSeconds();
+    }
+
+    /**
+     * 生成ffmpeg concat列表, 每个分片带上时间轴上的时长
+     */
+    public synchronized List<String> toConcatList() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            result.add(FfmpegCommand.concatEntry(segments.get(i).getPath()));
+            result.add("duration " + String.format("%.6f", getTimelineDuration(i)));
+        }
+        return result;
+    }
+
+    /**
+     * 删除所有分片文件和清单
+     */
+    public synchronized void deleteAll() throws IOException {
+        for (Segment segment : segments) {
+            Files.deleteIfExists(segment.getPath());
+        }
+        Files.deleteIfExists(manifest);
+    }
+
+    public Path getManifest() {
+        return manifest;
+    }
+}
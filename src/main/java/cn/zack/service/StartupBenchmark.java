@@ -0,0 +1,85 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动耗时测试
+ * 以 --startup-benchmark 参数启动时, 窗口显示后记录从JVM启动到窗口可见的耗时, 写入benchmark目录后退出
+ * 同一命令加上 -XX:ArchiveClassesAtExit 即为生成CDS归档的训练运行, 退出时启动过程中加载的类全部写入归档
+ * 没有显示器时跳过窗口, 只统计Spring启动
+ *
+ * @author 张云龙
+ */
+@Component
+public class StartupBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(StartupBenchmark.class);
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ConfigurableApplicationContext applicationContext;
+
+    /**
+     * 记录启动耗时并退出
+     *
+     * @param windowShown 是否显示了窗口
+     */
+    public void finish(boolean windowShown) {
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        long startupMills = System.currentTimeMillis() - runtime.getStartTime();
+        meterRegistry.timer("app.startup").record(startupMills, TimeUnit.MILLISECONDS);
+        List<String> jvmArgs = runtime.getInputArguments();
+        String cds = jvmArgs.stream().anyMatch(arg -> arg.startsWith("-XX:ArchiveClassesAtExit")) ? "training"
+                : jvmArgs.stream().anyMatch(arg -> arg.startsWith("-XX:SharedArchiveFile")) ? "archive" : "default";
+        String profiles = String.join(",", Arrays.asList(applicationContext.getEnvironment().getActiveProfiles()));
+        int loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+        int beans = applicationContext.getBeanDefinitionCount();
+        logger.info("启动耗时{}ms, 窗口{}, 配置: {}, CDS: {}, 已加载{}个类, {}个bean", startupMills, windowShown ? "已显示" : "未显示",
+                profiles.isEmpty() ? "default" : profiles, cds, loadedClasses, beans);
+
+        String json = "{\n" +
+                "  \"startupMills\": " + startupMills + ",\n" +
+                "  \"windowShown\": " + windowShown + ",\n" +
+                "  \"profiles\": \"" + profiles + "\",\n" +
+                "  \"cds\": \"" + cds + "\",\n" +
+                "  \"loadedClasses\": " + loadedClasses + ",\n" +
+                "  \"beanDefinitions\": " + beans + ",\n" +
+                "  \"javaVersion\": \"" + System.getProperty("java.version") + "\",\n" +
+                "  \"cpus\": " + Runtime.getRuntime().availableProcessors() + "\n" +
+                "}\n";
+        int exitCode = 0;
+        try {
+            Path dir = Paths.get(recordProperties.getBenchmark().getOutputDir());
+            Files.createDirectories(dir);
+            Path file = dir.resolve("startup-" + System.currentTimeMillis() + ".json");
+            Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+            logger.info("启动耗时结果: {}", file.toAbsolutePath());
+        } catch (Exception e) {
+            logger.info("写入启动耗时结果异常, 异常信息: {}", e.getMessage());
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> code));
+    }
+}
@@ -0,0 +1,90 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 合成采集
+ * 画面和声音由 ffmpeg 的 lavfi 虚拟设备生成, 不依赖显示器和声卡, 相同配置下每次生成的内容完全一致,
+ * 可以在普通 Linux 机器上重复压测分片、增量合并、混音等流程
+ * 画面运动程度决定编码压力: 静止彩条几乎不消耗编码, 滚动文字介于两者之间, 噪点画面每一帧都要重新编码
+ *
+ * @author 张云龙
+ */
+@Component
+public class SyntheticCaptureBackend implements CaptureBackend {
+
+    /**
+     * 合成麦克风的设备名称
+     */
+    private static final String MICROPHONE = "synthetic-mic";
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Override
+    public String getName() {
+        return "synthetic";
+    }
+
+    @Override
+    public String videoInput(Rectangle region) {
+        RecordProperties.Synthetic synthetic = recordProperties.getSynthetic();
+        return lavfi(videoSource(synthetic.getMotion(), synthetic.getWidth(), synthetic.getHeight(), synthetic.getFrameRate()));
+    }
+
+    /**
+     * 合成画面的lavfi描述
+     *
+     * @param motion    画面运动程度: static 静止彩条, low 只有计数器变化, text 逐行滚动的类文字画面, high 全屏变化的噪点
+     * @param width     宽度
+     * @param height    高度
+     * @param frameRate 帧率
+     */
+    public static String videoSource(String motion, int width, int height, int frameRate) {
+        String size = "size=" + width + "x" + height + ":rate=" + frameRate;
+        switch (motion) {
+            case "static":
+                return "smptebars=" + size;
+            case "text":
+                // 元胞自动机每帧向上滚动一行, 放大4倍后近似滚动的文字, 固定种子保证每次相同
+                return "cellauto=rule=110:size=" + width / 4 + "x" + height / 4 + ":rate=" + frameRate +
+                        ":random_seed=1:start_full=1,scale=" + width + ":" + height + ":flags=neighbor";
+            case "high":
+                // noise滤镜使用固定的默认种子, 噪点序列每次相同
+                return "testsrc2=" + size + ",noise=alls=30:allf=t+u";
+            default:
+                return "testsrc=" + size;
+        }
+    }
+
+    @Override
+    public String systemAudioInput() {
+        return lavfi("sine=frequency=440:sample_rate=44100");
+    }
+
+    /**
+     * 合成麦克风为不同频率的正弦波, 合并后能从频谱上区分系统声音和麦克风
+     */
+    @Override
+    public String microphoneInput(String device) {
+        return lavfi("sine=frequency=880:sample_rate=44100");
+    }
+
+    @Override
+    public List<String> listMicrophones() {
+        return Collections.singletonList(MICROPHONE);
+    }
+
+    /**
+     * lavfi输入, 按实际帧率产生时与真实设备一样随时间推进, 停止录制和分片时长的表现与实际录制一致
+     */
+    private String lavfi(String source) {
+        return (recordProperties.getSynthetic().isRealtime() ? "-re " : "") + "-f lavfi -i " + source;
+    }
+}
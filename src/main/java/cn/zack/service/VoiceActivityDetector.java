@@ -0,0 +1,254 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 麦克风录音的语音检测
+ * 录音分片关闭时按录制顺序依次传入, 逐帧计算能量, 检测状态跨分片延续, 录音结束时即得到整段录音的有声区间
+ * 有声判定: 帧能量高于最低能量, 且高出底噪一定分贝数; 底噪从最低能量减去该分贝数开始, 遇到更低的能量时立即降低, 之后缓慢上升,
+ * 环境噪声变大时随之抬高, 录音一开始就有声音时也能检测到
+ * 有声区间前后各留出一段余量, 间隔很短的区间合并为一段, 避免截断字词和把一句话切成很多段
+ *
+ * @author 张云龙
+ */
+public class VoiceActivityDetector {
+    private static final Logger logger = LoggerFactory.getLogger(VoiceActivityDetector.class);
+
+    /**
+     * 每次读取的字节数
+     */
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * 底噪每秒上升的分贝数
+     */
+    private static final double NOISE_FLOOR_RISE_DB_PER_SECOND = 0.5;
+
+    /**
+     * 能量下限, 全零帧按该值计算
+     */
+    private static final double MIN_ENERGY_DB = -120;
+
+    private final RecordProperties.Vad config;
+
+    private WavHeader format;
+
+    private int channels;
+
+    /**
+     * 每帧的采样帧数
+     */
+    private int windowFrames;
+
+    private long preRollFrames;
+
+    private long hangoverFrames;
+
+    private long minGapFrames;
+
+    private double floorRiseDb;
+
+    /**
+     * 已检测的采样帧数, 即下一个采样帧相对录音开始的位置
+     */
+    private long position;
+
+    /**
+     * 当前帧已累加的采样帧数和平方和
+     */
+    private int accumulatedFrames;
+
+    private int accumulatedChannels;
+
+    private double sumSquares;
+
+    private double noiseFloorDb;
+
+    /**
+     * 有声区间, 每项为相对录音开始的开始和结束采样帧
+     */
+    private final List<long[]> regions = new ArrayList<>();
+
+    private boolean speaking;
+
+    private long regionStart;
+
+    private long lastSpeechEnd;
+
+    private boolean failed;
+
+    private long detectNanos;
+
+    public VoiceActivityDetector(RecordProperties.Vad config) {
+        this.config = config;
+    }
+
+    /**
+     * 检测整个录音文件, 用于异常退出后恢复的录音
+     *
+     * @return 有声区间, 检测失败时为null
+     */
+    public static List<long[]> scan(Path wav, RecordProperties.Vad config) {
+        VoiceActivityDetector detector = new VoiceActivityDetector(config);
+        detector.feed(wav);
+        return detector.finish(wav);
+    }
+
+    /**
+     * 检测一个录音分片, 分片需按录制顺序传入
+     * 检测失败后整段录音不再裁剪, 合成时仍混入完整录音
+     *
+     * @param shard 16位pcm录音分片
+     */
+    public synchronized void feed(Path shard) {
+        if (failed) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(shard, StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(channel);
+            if (header.getBitsPerSample() != 16) {
+                throw new IOException("仅支持16位pcm录音");
+            }
+            if (format == null) {
+                init(header);
+            } else if (!format.sameFormat(header)) {
+                throw new IOException("录音分片格式不一致");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long dataSize = header.getDataSize() / header.getBlockAlign() * header.getBlockAlign();
+            long read = 0;
+            while (read < dataSize) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), dataSize - read));
+                int n = channel.read(buffer, header.getDataOffset() + read);
+                if (n <= 0) {
+                    break;
+                }
+                read += n;
+                buffer.flip();
+                while (buffer.remaining() >= 2) {
+                    accept(buffer.getShort());
+                }
+            }
+        } catch (Exception e) {
+            failed = true;
+            logger.info("语音检测异常, 录音不裁剪, 分片: {}, 异常信息: {}", shard, e.getMessage());
+        }
+        detectNanos += System.nanoTime() - startNanos;
+    }
+
+    private void init(WavHeader header) {
+        format = header;
+        channels = header.getChannels();
+        int sampleRate = header.getSampleRate();
+        windowFrames = Math.max(1, sampleRate * config.getFrameMills() / 1000);
+        preRollFrames = config.getPreRollMills() * sampleRate / 1000;
+        hangoverFrames = config.getHangoverMills() * sampleRate / 1000;
+        minGapFrames = config.getMinGapMills() * sampleRate / 1000;
+        floorRiseDb = NOISE_FLOOR_RISE_DB_PER_SECOND * config.getFrameMills() / 1000;
+        noiseFloorDb = config.getThresholdDb() - config.getMarginDb();
+    }
+
+    private void accept(short sample) {
+        sumSquares += (double) sample * sample;
+        if (++accumulatedChannels < channels) {
+            return;
+        }
+        accumulatedChannels = 0;
+        if (++accumulatedFrames < windowFrames) {
+            return;
+        }
+        double rms = Math.sqrt(sumSquares / ((long) windowFrames * channels)) / 32768;
+        double energyDb = rms > 0 ? Math.max(MIN_ENERGY_DB, 20 * Math.log10(rms)) : MIN_ENERGY_DB;
+        long windowStart = position;
+        position += windowFrames;
+        accumulatedFrames = 0;
+        sumSquares = 0;
+        onWindow(windowStart, position, energyDb);
+    }
+
+    /**
+     * 一帧的检测结果
+     */
+    private void onWindow(long start, long end, double energyDb) {
+        noiseFloorDb = Math.min(energyDb, noiseFloorDb + floorRiseDb);
+        boolean speech = energyDb >= Math.max(config.getThresholdDb(), noiseFloorDb + config.getMarginDb());
+        if (speech) {
+            if (!speaking) {
+                long from = Math.max(0, start - preRollFrames);
+                // 与上一段间隔很短时接着上一段
+                if (!regions.isEmpty() && from - regions.get(regions.size() - 1)[1] <= minGapFrames) {
+                    from = regions.remove(regions.size() - 1)[0];
+                }
+                regionStart = from;
+                speaking = true;
+            }
+            lastSpeechEnd = end;
+        } else if (speaking && end - lastSpeechEnd >= hangoverFrames) {
+            regions.add(new long[]{regionStart, lastSpeechEnd + hangoverFrames});
+            speaking = false;
+        }
+    }
+
+    /**
+     * 录音结束, 返回有声区间
+     *
+     * @param clip 录音文件, 仅用于日志
+     * @return 每项为相对录音开始的开始和结束毫秒值, 按时间排列; 检测失败或没有录音数据时为null, 合成时混入完整录音
+     */
+    public synchronized List<long[]> finish(Path clip) {
+        if (failed || format == null) {
+            return null;
+        }
+        long total = position + accumulatedFrames;
+        if (speaking) {
+            regions.add(new long[]{regionStart, lastSpeechEnd + hangoverFrames});
+            speaking = false;
+        }
+        int sampleRate = format.getSampleRate();
+        List<long[]> result = new ArrayList<>();
+        long activeFrames = 0;
+        for (long[] region : regions) {
+            long end = Math.min(total, region[1]);
+            if (end <= region[0]) {
+                continue;
+            }
+            activeFrames += end - region[0];
+            // 开始向下取整, 结束向上取整, 换算为毫秒后不会丢失边界上的采样
+            result.add(new long[]{region[0] * 1000 / sampleRate, (end * 1000 + sampleRate - 1) / sampleRate});
+        }
+        logger.info("语音检测: {}, 录音{}ms, 有声{}ms, 占{}%, {}段, 检测耗时{}ms", clip, total * 1000 / sampleRate,
+                activeFrames * 1000 / sampleRate, total > 0 ? activeFrames * 100 / total : 0, result.size(), detectNanos / 1_000_000);
+        return result;
+    }
+
+    /**
+     * 有声时长占录音时长的比例, 未检测到录音时为1
+     */
+    public synchronized double getActiveRatio() {
+        long total = position + accumulatedFrames;
+        if (failed || total == 0) {
+            return 1;
+        }
+        long activeFrames = 0;
+        for (long[] region : regions) {
+            activeFrames += Math.max(0, Math.min(total, region[1]) - region[0]);
+        }
+        return (double) activeFrames / total;
+    }
+
+    public synchronized long getDetectNanos() {
+        return detectNanos;
+    }
+}
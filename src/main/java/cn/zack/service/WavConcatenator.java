@@ -0,0 +1,65 @@
+package cn.zack.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * WAV 分片合并
+ * 分片都是相同格式的 pcm_s16le, 只需解析文件头, 把每个分片的音频数据零拷贝追加到目标文件, 再回填文件头中的长度
+ * 不再为合并单独启动 ffmpeg 进程, 合并后超过4GB时自动写为 RF64
+ *
+ * @author 张云龙
+ */
+public class WavConcatenator {
+    private static final Logger logger = LoggerFactory.getLogger(WavConcatenator.class);
+
+    private WavConcatenator() {
+    }
+
+    /**
+     * 按顺序合并WAV分片
+     *
+     * @param shards 分片文件, 按录制顺序排列
+     * @param output 合并后的WAV文件
+     * @return 合并后的音频数据字节数
+     */
+    public static long concat(List<Path> shards, Path output) throws IOException {
+        long startNanos = System.nanoTime();
+        long dataSize = 0;
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            WavHeader first = null;
+            for (Path shard : shards) {
+                try (FileChannel in = FileChannel.open(shard, StandardOpenOption.READ)) {
+                    WavHeader header = WavHeader.read(in);
+                    if (first == null) {
+                        first = header;
+                        out.position(WavHeader.begin(out, first.getFmt()));
+                    } else if (!first.sameFormat(header)) {
+                        throw new IOException("分片格式不一致: " + shard);
+                    }
+                    // transferTo 会推进目标文件的写入位置, 分片数据依次追加
+                    long position = 0;
+                    while (position < header.getDataSize()) {
+                        position += in.transferTo(header.getDataOffset() + position, header.getDataSize() - position, out);
+                    }
+                    dataSize += header.getDataSize();
+                }
+            }
+            if (first == null) {
+                throw new IOException("没有可合并的音频分片");
+            }
+            WavHeader.finish(out, first.getFmt(), dataSize);
+        }
+        long costMills = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+        logger.info("合并{}个音频分片, 共{}字节, 耗时{}ms, {}MB/s", shards.size(), dataSize, costMills,
+                dataSize * 1000 / costMills / 1024 / 1024);
+        return dataSize;
+    }
+}
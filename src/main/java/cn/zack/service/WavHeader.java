@@ -0,0 +1,227 @@
+package cn.zack.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * WAV 文件头解析与写入, 支持 RIFF 和 RF64(超过4GB的WAV)
+ * 写入时在 fmt 之前预留 JUNK 块, 数据超过4GB时原地改写为 ds64 块, 无需挪动音频数据
+ *
+ * @author 张云龙
+ */
+public class WavHeader {
+
+    /**
+     * RIFF 32位长度字段能表示的最大值, 超过后需要改用 RF64
+     */
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * ds64 块内容长度: riff大小(8) + data大小(8) + 采样数(8) + 表长度(4)
+     */
+    private static final int DS64_SIZE = 28;
+
+    /**
+     * fmt 块原始内容, 合并时要求所有分片一致
+     */
+    private final byte[] fmt;
+
+    /**
+     * 音频数据在文件中的起始位置
+     */
+    private final long dataOffset;
+
+    /**
+     * 音频数据字节数
+     */
+    private final long dataSize;
+
+    private WavHeader(byte[] fmt, long dataOffset, long dataSize) {
+        this.fmt = fmt;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+    }
+
+    /**
+     * 解析WAV文件头, 定位fmt块和data块
+     * 录制被中断时ffmpeg来不及回填长度, data长度为0或超出文件时以文件实际长度为准
+     *
+     * @param channel WAV文件
+     */
+    public static WavHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0);
+        String riff = fourCC(buffer, 0);
+        if (!"RIFF".equals(riff) && !"RF64".equals(riff) || !"WAVE".equals(fourCC(buffer, 8))) {
+            throw new IOException("不是有效的WAV文件");
+        }
+
+        byte[] fmt = null;
+        long ds64DataSize = -1;
+        long position = 12;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8 <= channel.size()) {
+            chunkHeader.clear();
+            readFully(channel, chunkHeader, position);
+            String id = fourCC(chunkHeader, 0);
+            long size = chunkHeader.getInt(4) & MAX_RIFF_SIZE;
+            long body = position + 8;
+            if ("fmt ".equals(id)) {
+                ByteBuffer fmtBuffer = ByteBuffer.allocate((int) size);
+                readFully(channel, fmtBuffer, body);
+                fmt = fmtBuffer.array();
+            } else if ("ds64".equals(id)) {
+                ByteBuffer ds64 = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, ds64, body);
+                ds64DataSize = ds64.getLong(8);
+            } else if ("data".equals(id)) {
+                if (fmt == null) {
+                    throw new IOException("WAV文件缺少fmt块");
+                }
+                long available = channel.size() - body;
+                if (size == MAX_RIFF_SIZE && ds64DataSize >= 0) {
+                    size = ds64DataSize;
+                }
+                if (size == 0 || size > available) {
+                    size = available;
+                }
+                return new WavHeader(fmt, body, size);
+            }
+            // 块长度为奇数时有一个填充字节
+            position = body + size + (size & 1);
+        }
+        throw new IOException("WAV文件缺少data块");
+    }
+
+    /**
+     * 写入文件头, data长度先占位, 写完数据后调用 {@link #finish(FileChannel, byte[], long)} 回填
+     *
+     * @param channel 目标文件
+     * @param fmt     fmt块内容
+     * @return 音频数据的起始位置
+     */
+    public static long begin(FileChannel channel, byte[] fmt) throws IOException {
+        ByteBuffer header = headerBuffer(fmt);
+        channel.truncate(0);
+        writeFully(channel, header, 0);
+        return header.capacity();
+    }
+
+    /**
+     * 回填文件头中的长度字段, 数据超过4GB时把RIFF改为RF64, 把预留的JUNK块改为ds64块
+     *
+     * @param channel  目标文件
+     * @param fmt      fmt块内容
+     * @param dataSize 音频数据字节数
+     */
+    public static void finish(FileChannel channel, byte[] fmt, long dataSize) throws IOException {
+        ByteBuffer header = headerBuffer(fmt);
+        int dataChunkSizePosition = header.capacity() - 4;
+        long riffSize = header.capacity() - 8 + dataSize + (dataSize & 1);
+        if (riffSize > MAX_RIFF_SIZE) {
+            long blockAlign = ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN).getShort(12);
+            header.put(0, "RF64".getBytes(StandardCharsets.US_ASCII));
+            header.putInt(4, -1);
+            header.put(12, "ds64".getBytes(StandardCharsets.US_ASCII));
+            header.putLong(20, riffSize);
+            header.putLong(28, dataSize);
+            header.putLong(36, blockAlign > 0 ? dataSize / blockAlign : 0);
+            header.putInt(dataChunkSizePosition, -1);
+        } else {
+            header.putInt(4, (int) riffSize);
+            header.putInt(dataChunkSizePosition, (int) dataSize);
+        }
+        writeFully(channel, header, 0);
+        // data块长度为奇数时补一个填充字节
+        if ((dataSize & 1) == 1) {
+            writeFully(channel, ByteBuffer.allocate(1), header.capacity() + dataSize);
+        }
+    }
+
+    /**
+     * 生成文件头: RIFF WAVE + JUNK(ds64预留) + fmt + data块头
+     */
+    private static ByteBuffer headerBuffer(byte[] fmt) {
+        ByteBuffer header = ByteBuffer.allocate(12 + 8 + DS64_SIZE + 8 + fmt.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(0).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("JUNK".getBytes(StandardCharsets.US_ASCII)).putInt(DS64_SIZE).put(new byte[DS64_SIZE]);
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(fmt.length).put(fmt);
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(0);
+        header.flip();
+        return header;
+    }
+
+    private static String fourCC(ByteBuffer buffer, int index) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("WAV文件头不完整");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * 格式是否与另一个WAV完全一致(采样率、声道、位深等)
+     */
+    public boolean sameFormat(WavHeader other) {
+        return Arrays.equals(fmt, other.fmt);
+    }
+
+    public byte[] getFmt() {
+        return fmt;
+    }
+
+    /**
+     * 声道数
+     */
+    public int getChannels() {
+        return ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN).getShort(2);
+    }
+
+    /**
+     * 采样率
+     */
+    public int getSampleRate() {
+        return ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+    }
+
+    /**
+     * 每个采样帧的字节数(所有声道)
+     */
+    public int getBlockAlign() {
+        return ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN).getShort(12);
+    }
+
+    /**
+     * 位深
+     */
+    public int getBitsPerSample() {
+        return ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN).getShort(14);
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+}
@@ -1,25 +1,36 @@
 package cn.zack.service;
 
+import cn.zack.config.RecordProperties;
+import cn.zack.utils.FileNameUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Windows 桌面屏幕画面和系统声音混合录制
+ * 每次录制由一个 RecordingSession 负责, 这里创建会话并提供分片合并、音视频合成等公共操作
+ * 多个会话可以同时录制, 每个会话的进程、临时文件和ffmpeg进程名互相独立, 同时运行的编码进程数量由 EncoderScheduler 控制
+ * 分片合并、音视频合成等操作在 PostProcessScheduler 的后台任务中调用, 启动的ffmpeg进程降低优先级运行
  *
  * @author 张云龙
  */
@@ -27,311 +38,489 @@ import java.util.stream.Collectors;
 public class WindowsScreenRecord {
     private static final Logger logger = LoggerFactory.getLogger(WindowsScreenRecord.class);
 
-    private Process videoRecordFfmpegProcess;
-    private Process audioRecordFfmpegProcess;
-    private Thread videoRecordProcessThread;
-    private Thread audioRecordProcessThread;
-
-    /**
-     * 开始录制桌面屏幕和系统声音
-     */
-    public void startVideoRecording(String output) {
-        String prefix = output.split("\\.")[0];
-        String suffix = output.split("\\.")[1];
-
-        // 在后台线程中启动录制
-        videoRecordProcessThread = new Thread(() -> {
-            String ffmpegCommand = "./ffmpeg -f dshow -i video=\"screen-capture-recorder\" -f dshow -i audio=\"virtual-audio-capturer\" " +
-                    "-vcodec libx264 -preset:v fast -crf 23 -acodec aac -b:a 128k -pix_fmt yuv420p -r 30 " +
-                    "-segment_time 60 -f segment -reset_timestamps 1 " + prefix + "_%03d." + suffix;
-            logger.info("录制视频命令: {}", ffmpegCommand);
-
-            ProcessBuilder processBuilder = new ProcessBuilder(ffmpegCommand.split(" "));
-            // 合并输出，便于日志调试
-            processBuilder.redirectErrorStream(true);
-            // 这里可以重定向到文件或继承当前进程的输出
-            processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-
-            try {
-                videoRecordFfmpegProcess = processBuilder.start();
-                logger.info("开始录制视频...");
-                // 等待进程结束（这行代码只会在录制结束后才返回，不要在 EDT 中调用）
-                int exitCode = videoRecordFfmpegProcess.waitFor();
-                logger.info("完成录制视频: " + exitCode);
-                if (exitCode == 0) {
-                    logger.info("录制视频成功");
-                    // 列出分片文件
-                    List<String> shardingFiles = getShardFiles(prefix + "_");
-                    List<String> fileNames = shardingFiles
-                            .stream().map(c -> "file '" + c + "'").collect(Collectors.toList());
-                    // 有分片, 需要合并
-                    if (!fileNames.isEmpty()) {
-                        logger.info("存在视频分片");
-                        // 写入txt文件
-                        Path filePath = Paths.get("videoSharding.txt");
-                        Files.write(filePath, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                        Files.write(filePath, fileNames, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                        // 合并视频文件
-                        String mergeCommand = "ffmpeg -f concat -safe 0 -i videoSharding.txt -c copy " + output;
-                        logger.info("合并视频分片命令: {}", mergeCommand);
-                        processBuilder = new ProcessBuilder(mergeCommand.split(" "));
-                        processBuilder.redirectErrorStream(true);
-                        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                        videoRecordFfmpegProcess = processBuilder.start();
-                        logger.info("开始合并视频分片...");
-                        int shardingCode = videoRecordFfmpegProcess.waitFor();
-                        logger.info("完成合并视频分片: " + shardingCode);
-                        // 删除分片文件
-                        if (shardingCode == 0) {
-                            logger.info("合并成功, 视频保存为: {}, 删除分片文件...", output);
-                            for (String file : shardingFiles) {
-                                Files.deleteIfExists(Paths.get(file));
-                            }
-                        }
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Autowired
+    private FfmpegRunner ffmpegRunner;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ExecutorService recordExecutor;
+
+    @Autowired
+    private EncoderScheduler encoderScheduler;
+
+    @Autowired
+    private ForkJoinPool mergePool;
+
+    @Autowired
+    private PostProcessScheduler postProcessScheduler;
+
+    @Autowired
+    private List<CaptureBackend> captureBackends;
+
+    /**
+     * 会话序号, 用于区分同时录制的会话
+     */
+    private final AtomicInteger sessionSequence = new AtomicInteger();
+
+    /**
+     * 未结束的会话, key为会话标识
+     */
+    private final Map<String, RecordingSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 分片写入器的指标, key为录屏进程名称, 会话结束录制后移除
+     */
+    private final Map<String, SegmentPipeWriter.Stats> writerStats = new ConcurrentHashMap<>();
+
+    /**
+     * 最近一次停止录制到视频可播放的耗时, 单位毫秒, -1表示还未统计
+     */
+    private volatile long lastStopToPlayableMills = -1;
+
+    /**
+     * 是否为麦克风实时混音模式, 画面通过标准输入送入时无法切换门控, 不使用实时混音
+     */
+    public boolean isLiveMix() {
+        return recordProperties.isLiveMix() && !getCaptureBackend().hasFrameFeed();
+    }
+
+    /**
+     * 录制的视频文件后缀, 增量合并模式下为可直接拼接的ts, 否则为mp4
+     */
+    public String getVideoSuffix() {
+        return recordProperties.isIncrementalFinalize() ? "ts" : "mp4";
+    }
+
+    /**
+     * 实时预览的本机UDP端口, 未开启实时预览时为0
+     */
+    public int getPreviewPort() {
+        RecordProperties.Preview preview = recordProperties.getPreview();
+        return preview.isEnabled() ? preview.getPort() : 0;
+    }
+
+    /**
+     * 配置中的采集区域和输出分辨率
+     *
+     * @throws IllegalArgumentException 配置格式错误
+     */
+    public CaptureGeometry getDefaultGeometry() {
+        return CaptureGeometry.parse(recordProperties.getCaptureRegion(), recordProperties.getOutputSize(),
+                recordProperties.getScaleAlgorithm());
+    }
+
+    /**
+     * 最近一次停止录制到视频可播放的耗时, 单位毫秒, -1表示还未统计
+     */
+    public long getLastStopToPlayableMills() {
+        return lastStopToPlayableMills;
+    }
+
+    /**
+     * 创建录制会话
+     * 实时混音模式下, 麦克风随录屏进程一起打开, 录制期间不可切换设备
+     *
+     * @param output               视频文件保存位置
+     * @param microphoneDeviceName 麦克风设备名称
+     */
+    public RecordingSession newSession(String output, String microphoneDeviceName) {
+        return newSession(output, microphoneDeviceName, getDefaultGeometry());
+    }
+
+    /**
+     * 以指定的采集区域和输出分辨率创建录制会话
+     *
+     * @param output               视频文件保存位置
+     * @param microphoneDeviceName 麦克风设备名称
+     * @param geometry             采集区域和输出分辨率
+     */
+    public RecordingSession newSession(String output, String microphoneDeviceName, CaptureGeometry geometry) {
+        String id = "s" + sessionSequence.incrementAndGet();
+        logger.info("录制区域: {}", geometry);
+        RecordingSession session = new RecordingSession(id, this, ffmpegRunner, encoderScheduler, postProcessScheduler, getCaptureBackend(),
+                recordExecutor, recordProperties, output, microphoneDeviceName, geometry);
+        sessions.put(id, session);
+        // 会话结束后移出, 失败的会话由录制日志在下次启动时恢复; 停止后超时未生成视频的会话按失败处理, 避免一直占用
+        int stoppedMinutes = recordProperties.getStoppedSessionMinutes();
+        session.addStateListener(state -> {
+            if (state == RecordingSession.State.FINISHED || state == RecordingSession.State.FAILED) {
+                sessions.remove(id);
+            } else if (state == RecordingSession.State.STOPPED && stoppedMinutes > 0) {
+                CompletableFuture.delayedExecutor(stoppedMinutes, TimeUnit.MINUTES).execute(() -> {
+                    if (session.expire()) {
+                        logger.info("录制会话{}停止后{}分钟未生成视频, 已移出会话列表, 下次启动时恢复", id, stoppedMinutes);
                     }
-                }
-            } catch (Exception e) {
-                logger.info("录制视频异常, 异常信息: {}", e.getMessage());
+                });
             }
         });
-        videoRecordProcessThread.start();
+        return session;
     }
 
     /**
-     * 停止录制视频和系统声音
+     * 按标识获取未结束的会话
+     *
+     * @return 会话不存在或已结束时返回null
      */
-    public void stopVideoRecording() {
-        logger.info("准备停止录制视频");
-        new Thread(() -> {
-            if (videoRecordFfmpegProcess != null) {
-                try {
-                    OutputStream os = videoRecordFfmpegProcess.getOutputStream();
-                    os.write("q".getBytes());
-                    os.flush();
-                    logger.info("已停止录制视频");
-                } catch (Exception e) {
-                    logger.info("停止录制视频异常, 异常信息: {}", e.getMessage());
-                }
-            }
-        }).start();
+    public RecordingSession getSession(String id) {
+        return sessions.get(id);
     }
 
     /**
-     * 获取系统中所有的音频设备（麦克风）名称
+     * 所有未结束的会话
+     */
+    public Collection<RecordingSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * 合并视频分片
+     * 分片列表写在视频文件旁边, 同时合并的多个会话互不覆盖
      *
-     * @return 音频设备名称数组
+     * @param processName ffmpeg进程名称
+     * @param concatList  ffmpeg concat列表内容
+     * @param output      合并后的视频文件
+     * @return 是否合并成功
+     */
+    boolean concatVideoSegments(String processName, List<String> concatList, String output) throws IOException, InterruptedException {
+        // 写入txt文件
+        Path filePath = Paths.get(FileNameUtils.removeExtension(output) + "_concat.txt");
+        Files.write(filePath, concatList, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        // 合并视频文件
+        FfmpegCommand mergeCommand = new FfmpegCommand(recordProperties.getFfmpegPath())
+                .options("-protocol_whitelist file,subfile -f concat -safe 0 -i").arg(filePath.toString())
+                .options("-c copy " + faststart(output)).arg(output);
+        logger.info("合并视频分片命令: {}", mergeCommand);
+        Process process = ffmpegRunner.startBackground(processName, mergeCommand.toList());
+        logger.info("开始合并视频分片...");
+        int shardingCode = process.waitFor();
+        logger.info("完成合并视频分片: " + shardingCode);
+        Files.deleteIfExists(filePath);
+        if (shardingCode == 0) {
+            logger.info("合并成功, 视频保存为: {}", output);
+            writeKeyframeIndex(output);
+        }
+        return shardingCode == 0;
+    }
+
+    /**
+     * mp4输出的faststart参数
+     * ffmpeg写完后把 moov 移到文件开头, 只搬移数据不重新编码, 播放器和网络共享不必读到文件末尾就能打开和拖动
+     */
+    private static String faststart(String output) {
+        return output.endsWith(".mp4") ? "-movflags +faststart " : "";
+    }
+
+    /**
+     * 为最终视频生成关键帧索引, 索引只是附带的输出, 失败时不影响视频
+     *
+     * @param videoPath 最终视频文件, mp4需在faststart之后生成, 字节位置才与最终文件一致
      */
-    public static String[] getAudioMicrophoneDevices() {
-        logger.info("尝试获取音频设备列表");
-        List<String> devices = new ArrayList<>();
+    void writeKeyframeIndex(String videoPath) {
+        long startNanos = System.nanoTime();
         try {
-            // 构造 ffmpeg 命令：列出所有 DirectShow 设备
-            ProcessBuilder pb = new ProcessBuilder(
-                    "./ffmpeg", "-list_devices", "true", "-f", "dshow", "-i", "dummy"
-            );
-            // ffmpeg 的设备列表信息通常输出到标准错误流
-            Process process = pb.start();
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8)
-            );
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // 只取音频设备, 且排除dshow虚拟驱动
-                if (line.contains("(audio)") && !line.contains("(video)") && !line.contains("virtual-audio-capturer")) {
-                    // 设备名称一般位于双引号内
-                    int firstQuote = line.indexOf("\"");
-                    int lastQuote = line.indexOf("\"", firstQuote + 1);
-                    if (firstQuote != -1 && lastQuote != -1 && lastQuote > firstQuote) {
-                        String deviceName = line.substring(firstQuote + 1, lastQuote);
-                        logger.info("获取到音频设备: {}", deviceName);
-                        devices.add(deviceName);
-                    }
-                }
-            }
-            reader.close();
-            process.waitFor();
-        } catch (Exception ex) {
-            logger.info("获取音频设备异常, 异常信息: {}", ex.getMessage());
+            KeyframeIndex index = KeyframeIndex.build(Paths.get(videoPath));
+            Path sidecar = KeyframeIndex.sidecar(videoPath);
+            index.write(sidecar);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            meterRegistry.timer("record.finalize.index").record(elapsedNanos, TimeUnit.NANOSECONDS);
+            logger.info("关键帧索引保存为: {}, {}个关键帧, 耗时{}ms", sidecar, index.size(), elapsedNanos / 1_000_000);
+        } catch (Exception e) {
+            logger.info("生成关键帧索引异常, 异常信息: {}", e.getMessage());
         }
-        return devices.toArray(new String[0]);
     }
 
     /**
-     * 开始录制音频
+     * 可变帧率模式下统计实际编码帧数相对固定帧率的节省比例
+     * 自适应编码重启后各进程的帧率可能不同, 由会话按每个进程实际使用的帧率累计
+     * 帧数只反映编码量, CPU时间和文件大小的对比见编码基准测试的可变帧率测试
      *
-     * @param audioSavePath        保存音频文件的路径（例如：D:\record.wav）
-     * @param microphoneDeviceName 麦克风设备名称（例如："本机麦克风 (适用于数字麦克风的英特尔® 智音技术)"）
-     */
-    public void startAudioRecording(String audioSavePath, String microphoneDeviceName) {
-        String prefix = audioSavePath.split("\\.")[0];
-        String suffix = audioSavePath.split("\\.")[1];
-        // 在后台线程中启动录制
-        audioRecordProcessThread = new Thread(() -> {
-            String command = "./ffmpeg -f dshow -i audio=\"" + microphoneDeviceName +
-                    "\" -acodec pcm_s16le -ar 44100 -ac 2 -y " +
-                    "-segment_time 60 -f segment -reset_timestamps 1 " + prefix + "_%03d." + suffix;
-            logger.info("录音命令: {}", command);
-            ProcessBuilder processBuilder = new ProcessBuilder(command.split(" "));
-            // 合并输出，便于日志调试
-            processBuilder.redirectErrorStream(true);
-            // 这里可以重定向到文件或继承当前进程的输出
-            processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-
-            try {
-                audioRecordFfmpegProcess = processBuilder.start();
-                logger.info("开始录音...");
-                // 等待进程结束（这行代码只会在录制结束后才返回，不要在 EDT 中调用）
-                int exitCode = audioRecordFfmpegProcess.waitFor();
-                logger.info("完成录音: {}", exitCode);
-
-                if (exitCode == 0) {
-                    logger.info("录音成功");
-                    // 列出分片文件
-                    List<String> shardingFiles = getShardFiles(prefix + "_");
-                    List<String> fileNames = shardingFiles
-                            .stream().map(c -> "file '" + c + "'").collect(Collectors.toList());
-                    // 有分片, 需要合并
-                    if (!fileNames.isEmpty()) {
-                        logger.info("存在音频分片");
-                        // 写入txt文件
-                        Path filePath = Paths.get("audioSharding.txt");
-                        Files.write(filePath, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                        Files.write(filePath, fileNames, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                        // 合并音频文件
-                        String mergeCommand = "ffmpeg -f concat -safe 0 -i audioSharding.txt -c copy " + audioSavePath;
-                        processBuilder = new ProcessBuilder(mergeCommand.split(" "));
-                        processBuilder.redirectErrorStream(true);
-                        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                        audioRecordFfmpegProcess = processBuilder.start();
-                        logger.info("开始合并音频分片...");
-                        int shardingCode = audioRecordFfmpegProcess.waitFor();
-                        logger.info("完成合并音频分片: {}", shardingCode);
-                        // 删除分片文件
-                        if (shardingCode == 0) {
-                            logger.info("合并成功, 音频保存为: {}, 删除分片文件...", audioSavePath);
-                            for (String file : shardingFiles) {
-                                Files.deleteIfExists(Paths.get(file));
-                            }
-                        }
-                    }
-                }
+     * @param frames         所有录屏进程实际编码的帧数
+     * @param seconds        所有录屏进程的输出时长, 单位秒
+     * @param constantFrames 按各进程的帧率固定帧率录制时的帧数
+     */
+    void logIdleSavings(long frames, double seconds, double constantFrames) {
+        if (seconds <= 0 || constantFrames <= 0) {
+            return;
+        }
+        meterRegistry.summary("record.idle.frame.savings").record(Math.max(0, 1 - frames / constantFrames));
+        logger.info("可变帧率录制{}秒, 实际编码{}帧, 平均{}fps, 相比固定帧率少编码{}%", String.format("%.1f", seconds),
+                frames, String.format("%.1f", frames / seconds),
+                String.format("%.1f", Math.max(0, 100 - frames * 100 / constantFrames)));
+    }
 
-            } catch (Exception e) {
-                logger.info("录音异常, 异常信息: {}", e.getMessage());
+    /**
+     * 记录停止录制到视频可播放的耗时
+     */
+    void recordStopToPlayable(long stopToPlayableNanos) {
+        meterRegistry.timer("record.stop.to.playable").record(stopToPlayableNanos, TimeUnit.NANOSECONDS);
+        lastStopToPlayableMills = stopToPlayableNanos / 1_000_000;
+        logger.info("停止录制到视频可播放耗时: {}ms", lastStopToPlayableMills);
+    }
+
+    /**
+     * 记录一个会话的编码吞吐, 按同时运行的编码进程数分组, 用于对比1/2/4个会话同时录制时的编码速度
+     *
+     * @param processName 录屏进程名称
+     * @param progress    录屏进程的进度, 进程退出后由会话保留
+     * @param concurrency 会话开始录制时同时运行的编码进程数
+     */
+    void recordSessionThroughput(String processName, FfmpegProgress progress, int concurrency) {
+        if (progress == null || progress.getSpeed() <= 0) {
+            return;
+        }
+        meterRegistry.summary("record.session.speed", "concurrency", String.valueOf(concurrency)).record(progress.getSpeed());
+        meterRegistry.summary("record.session.fps", "concurrency", String.valueOf(concurrency)).record(progress.getFps());
+        logger.info("{}个编码进程同时录制, {}编码速度{}x, {}fps, 丢帧{}", concurrency, processName,
+                String.format("%.2f", progress.getSpeed()), String.format("%.1f", progress.getFps()), progress.getDropFrames());
+    }
+
+    /**
+     * 记录麦克风切换延迟, 即从点击启用麦克风到录音中开始保留采样的耗时
+     *
+     * @param mode         clip 每次启用时启动录音进程, prewarm 预热麦克风
+     * @param latencyNanos 切换延迟, 单位纳秒
+     */
+    void recordMicToggleLatency(String mode, long latencyNanos) {
+        meterRegistry.timer("record.mic.toggle.latency", "mode", mode).record(latencyNanos, TimeUnit.NANOSECONDS);
+        logger.info("麦克风切换延迟{}ms, 模式: {}", String.format("%.3f", latencyNanos / 1_000_000.0), mode);
+    }
+
+    /**
+     * 记录自适应编码重启录屏进程丢失的画面时长, 即分片时间轴上留出的间隔
+     *
+     * @param gapNanos 丢失的画面时长, 单位纳秒
+     */
+    void recordRestartGap(long gapNanos) {
+        meterRegistry.timer("record.encoder.restart.gap").record(gapNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 获取系统中所有的音频设备（麦克风）名称
+     *
+     * @return 音频设备名称数组
+     */
+    public String[] getAudioMicrophoneDevices() {
+        return getCaptureBackend().listMicrophones().toArray(new String[0]);
+    }
+
+    /**
+     * 当前配置的采集方式
+     */
+    public CaptureBackend getCaptureBackend() {
+        for (CaptureBackend backend : captureBackends) {
+            if (backend.getName().equals(recordProperties.getCaptureBackend())) {
+                return backend;
             }
-        });
-        audioRecordProcessThread.start();
+        }
+        throw new IllegalStateException("不支持的采集方式: " + recordProperties.getCaptureBackend());
     }
 
     /**
-     * 停止录制音频
+     * 按录制分片并行合并一批音频到视频文件中, 分片不可用或合成失败时退回整段合成
+     *
+     * @param processName   ffmpeg进程名称
+     * @param segments      录制时登记的分片
+     * @param incremental   分片是否已增量追加到视频文件中
+     * @param videoPath     原视频文件
+     * @param outPutPath    新生成的视频文件
+     * @param audioMap      音频文件以及音轨开始位置
+     * @param voiceActivity 录音文件的有声区间, 没有检测结果的录音全部混入
+     * @param journal       本次录制的日志
+     * @return 是否合并成功
      */
-    public void stopAudioRecording() {
-        logger.info("准备停止录音");
-        new Thread(() -> {
-            if (audioRecordFfmpegProcess != null) {
-                try {
-                    OutputStream os = audioRecordFfmpegProcess.getOutputStream();
-                    os.write("q".getBytes());
-                    os.flush();
-                    logger.info("停止录音");
-                } catch (Exception e) {
-                    logger.info("停止录音异常");
-                }
+    boolean mergeSegmentsAndAudio(String processName, List<Segment> segments, boolean incremental, String videoPath,
+                                  String outPutPath, Map<String, Long> audioMap, Map<String, List<long[]>> voiceActivity,
+                                  RecordingJournal journal) {
+        SegmentMergePipeline.Result result;
+        try {
+            result = new SegmentMergePipeline(ffmpegRunner, recordProperties.getFfmpegPath(), mergePool, voiceActivity, mixNormalize())
+                    .merge(processName, segments, incremental, videoPath, audioMap, outPutPath);
+        } catch (Exception e) {
+            logger.info("分片并行合成不可用, 改为整段合成, 原因: {}", e.getMessage());
+            return mergeVideoAndAudio(processName, videoPath, outPutPath, audioMap, voiceActivity, journal);
+        }
+        try {
+            long concatStartNanos = System.nanoTime();
+            boolean success = concatVideoSegments(processName, result.getConcatList(), outPutPath);
+            SegmentMergePipeline.cleanup(result.getWindows());
+            if (!success) {
+                logger.info("拼接合成分片失败, 改为整段合成");
+                Files.deleteIfExists(Paths.get(outPutPath));
+                return mergeVideoAndAudio(processName, videoPath, outPutPath, audioMap, voiceActivity, journal);
             }
-        }).start();
+            recordMergeSpeedup(result, System.nanoTime() - concatStartNanos);
+            recordMixReduction(result.getMixReadBytes(), result.getMixClipBytes());
+            logger.info("合成成功, 保存为: {}, 删除合成之前的音视频文件", outPutPath);
+            Files.deleteIfExists(Paths.get(videoPath));
+            Files.deleteIfExists(KeyframeIndex.sidecar(videoPath));
+            for (String audio : audioMap.keySet()) {
+                Files.deleteIfExists(Paths.get(audio));
+            }
+            return true;
+        } catch (Exception e) {
+            logger.info("拼接合成分片异常, 异常信息: {}", e.getMessage());
+            SegmentMergePipeline.cleanup(result.getWindows());
+            return false;
+        }
+    }
+
+    /**
+     * 合成录音时 amix 的 normalize 参数, 整段合成和分片并行合成使用同一设置
+     */
+    private int mixNormalize() {
+        return recordProperties.isMixNormalize() ? 1 : 0;
+    }
+
+    /**
+     * 记录分片并行合成的加速比
+     * 串行耗时取各分片合成耗时之和, 加速比明显低于并行度时瓶颈多在磁盘
+     * 并行度超过CPU核数时各分片互相争抢CPU, 单个分片耗时被拉长, 加速比偏高, 需结合cores标签对照
+     */
+    private void recordMergeSpeedup(SegmentMergePipeline.Result result, long concatNanos) {
+        String parallelism = String.valueOf(result.getParallelism());
+        String cores = String.valueOf(Runtime.getRuntime().availableProcessors());
+        meterRegistry.timer("record.merge.wall", "parallelism", parallelism, "cores", cores)
+                .record(result.getWallNanos() + concatNanos, TimeUnit.NANOSECONDS);
+        meterRegistry.summary("record.merge.speedup", "parallelism", parallelism, "cores", cores).record(result.getSpeedup());
+        logger.info("并行合成{}个分片, 其中{}个混入录音, 并行度{}, {}核, 合成耗时{}ms, 串行合成耗时{}ms, 加速比{}x, 拼接耗时{}ms",
+                result.getWindows().size(), result.getMixedCount(), parallelism, cores, result.getWallNanos() / 1_000_000,
+                result.getTaskNanos() / 1_000_000, String.format("%.2f", result.getSpeedup()), concatNanos / 1_000_000);
+    }
+
+    /**
+     * 记录混音读取的录音数据量, 比例为实际读取的字节数相对完整录音的字节数, 越低说明语音检测裁掉的静音越多
+     */
+    private void recordMixReduction(long readBytes, long clipBytes) {
+        if (clipBytes <= 0) {
+            return;
+        }
+        double ratio = (double) readBytes / clipBytes;
+        meterRegistry.summary("record.mix.read.ratio").record(ratio);
+        logger.info("混音读取录音{}KB, 录音共{}KB, 少读取{}%", readBytes / 1024, clipBytes / 1024,
+                String.format("%.1f", (1 - ratio) * 100));
+    }
+
+    /**
+     * 录音的语音检测, 未开启时为null
+     */
+    VoiceActivityDetector newVoiceActivityDetector() {
+        return recordProperties.getVad().isEnabled() ? new VoiceActivityDetector(recordProperties.getVad()) : null;
+    }
+
+    /**
+     * 检测整个录音文件的有声区间, 用于异常退出后恢复的录音
+     *
+     * @return 有声区间, 未开启或检测失败时为null
+     */
+    List<long[]> scanVoiceActivity(Path wav) {
+        return recordProperties.getVad().isEnabled() ? VoiceActivityDetector.scan(wav, recordProperties.getVad()) : null;
+    }
+
+    /**
+     * 记录一段录音中有声时长的比例
+     */
+    void recordVoiceActivity(double activeRatio) {
+        meterRegistry.summary("record.vad.active.ratio").record(activeRatio);
     }
 
     /**
      * 合并一批音频到视频文件中
      *
-     * @param videoPath  原视频文件
-     * @param outPutPath 新生成的视频文件
-     * @param audioMap   音频文件以及音轨开始位置
+     * @param processName   ffmpeg进程名称
+     * @param videoPath     原视频文件
+     * @param outPutPath    新生成的视频文件
+     * @param audioMap      音频文件以及音轨开始位置
+     * @param voiceActivity 录音文件的有声区间, 没有检测结果的录音全部混入
+     * @param journal       本次录制的日志
+     * @return 是否合并成功
      */
-    public void mergeVideoAndAudio(String videoPath, String outPutPath, HashMap<String, Long> audioMap) {
+    boolean mergeVideoAndAudio(String processName, String videoPath, String outPutPath, Map<String, Long> audioMap,
+                               Map<String, List<long[]>> voiceActivity, RecordingJournal journal) {
         logger.info("准备合并音频到视频中");
         List<String> keyList = new ArrayList<>();
         keyList.addAll(audioMap.keySet());
 
-        String source = "";
-        String adelay = "";
-        String num = "";
-        int size = keyList.size() + 1;
-        for (int i = 0; i < keyList.size(); i++) {
-            source += "-i " + keyList.get(i) + " ";
-            adelay += "[" + (i + 1) + "]adelay=" + audioMap.get(keyList.get(i)) + "|" + audioMap.get(keyList.get(i)) + "[a" + (i + 1) + "]; ";
-            num += "[a" + (i + 1) + "]";
+        // 先在Java中把所有录音片段混成一条音轨, ffmpeg只需要再混入一路输入
+        String micPath = FileNameUtils.removeExtension(outPutPath) + "_mic.wav";
+        long micOffset;
+        try {
+            AudioMixer audioMixer = new AudioMixer(voiceActivity);
+            micOffset = audioMixer.mix(audioMap, Paths.get(micPath));
+            recordMixReduction(audioMixer.getReadBytes(), audioMixer.getClipBytes());
+        } catch (Exception e) {
+            logger.info("录音混音异常, 异常信息: {}", e.getMessage());
+            return false;
         }
 
-        String command = String.format(
-                "./ffmpeg -i " +
-                        videoPath + " " +
-                        source +
-                        "-filter_complex \"[0:a]adelay=0|0[original]; " +
-                        adelay +
-                        "[original]" +
-                        num +
-                        "amix=inputs=" +
-                        size +
-                        ":normalize=1[mixed_audio]\" -map 0:v -map \"[mixed_audio]\" -c:v copy -c:a aac " +
-                        outPutPath
-        );
+        FfmpegCommand command = new FfmpegCommand(recordProperties.getFfmpegPath()).arg("-i").arg(videoPath).arg("-i").arg(micPath)
+                .options("-filter_complex [1:a]adelay=" + micOffset + "|" + micOffset + "[mic];" +
+                        "[0:a][mic]amix=inputs=2:duration=first:dropout_transition=0:normalize=" + mixNormalize() + "[mixed_audio] " +
+                        "-map 0:v -map [mixed_audio] -c:v copy -c:a aac " + faststart(outPutPath)).arg(outPutPath);
         logger.info("合并命令: {}", command);
 
-        ProcessBuilder processBuilder = new ProcessBuilder(command.split(" "));
-        // 合并输出，便于日志调试
-        processBuilder.redirectErrorStream(true);
-        // 这里可以重定向到文件或继承当前进程的输出
-        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-
         try {
-            audioRecordFfmpegProcess = processBuilder.start();
+            Process process = ffmpegRunner.startBackground(processName, command.toList());
             logger.info("开始合成...");
-            // 等待进程结束（这行代码只会在录制结束后才返回，不要在 EDT 中调用）
-            int exitCode = audioRecordFfmpegProcess.waitFor();
+            // 等待进程结束（这行代码只会在合成结束后才返回，不要在 EDT 中调用）
+            int exitCode = process.waitFor();
             logger.info("合成完成: {}", exitCode);
             // 正常退出, 说明合成完毕, 清理旧文件
             if (exitCode == 0) {
                 logger.info("合成成功, 保存为: {}, 删除合成之前的音视频文件", outPutPath);
+                writeKeyframeIndex(outPutPath);
                 Files.deleteIfExists(Paths.get(videoPath));
+                Files.deleteIfExists(KeyframeIndex.sidecar(videoPath));
+                Files.deleteIfExists(Paths.get(micPath));
                 for (String audio : keyList) {
                     Files.deleteIfExists(Paths.get(audio));
                 }
+                return true;
             }
         } catch (Exception e) {
             logger.info("合成异常");
         }
+        return false;
     }
 
     /**
-     * 获取指定相似文件, 用于查找指定文件的分片文件列表
+     * 创建录屏进程的分片写入器, 同一进程名称的写入器共用一份指标
      *
-     * @param searchPath 要搜索的文件名    eg: D:\abc\def\1234
-     * @return 相似文件名   eg: D:\abc\def\12345.txt, D:\abc\def\1234.pdf
-     */
-    public List<String> getShardFiles(String searchPath) {
-        // 获取目录 D:\abc\def
-        Path parentDir = Paths.get(searchPath).getParent();
-        // 获取前缀 1740444994434
-        String prefix = Paths.get(searchPath).getFileName().toString();
-
-        if (parentDir == null || !Files.isDirectory(parentDir)) {
-            logger.info("目录不存在");
-            return new ArrayList<>();
-        }
+     * @param processName      录屏进程名称
+     * @param prefix           分片文件前缀
+     * @param startNumber      第一个分片的序号
+     * @param segmentSeconds   分片时长, 单位秒
+     * @param segmentList      分片列表
+     * @param lowSpaceListener 剩余空间不足或写入失败时调用
+     */
+    SegmentPipeWriter newSegmentWriter(String processName, String prefix, int startNumber, int segmentSeconds, Path segmentList,
+                                       Runnable lowSpaceListener) throws IOException {
+        SegmentPipeWriter.Stats stats = writerStats.computeIfAbsent(processName,
+                name -> new SegmentPipeWriter.Stats(meterRegistry, name));
+        return new SegmentPipeWriter(processName, prefix, startNumber, segmentSeconds, segmentList, recordProperties.getPipeWriter(),
+                stats, lowSpaceListener);
+    }
 
-        try {
-            List<String> matchingFiles = Files.list(parentDir)
-                    .filter(path -> Files.isRegularFile(path) && path.getFileName().toString().startsWith(prefix))
-                    .map(c -> c.toString())
-                    .collect(Collectors.toList());
-            return matchingFiles;
-        } catch (Exception e) {
-            logger.info("查找分片文件发生异常, {}", e.getMessage());
-            e.printStackTrace();
+    /**
+     * 录屏进程不再启动后注销其分片写入器的指标
+     *
+     * @param processName 录屏进程名称
+     */
+    void releaseSegmentWriterStats(String processName) {
+        SegmentPipeWriter.Stats stats = writerStats.remove(processName);
+        if (stats != null) {
+            stats.remove();
         }
-        return new ArrayList<>();
+    }
+
+    /**
+     * 录制日志写入耗时
+     */
+    Timer journalTimer() {
+        return meterRegistry.timer("record.journal.write");
     }
 }
@@ -0,0 +1,89 @@
+package cn.zack.service;
+
+import cn.zack.config.RecordProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Linux X11 + PulseAudio 采集
+ * 屏幕画面来自 x11grab, 系统声音来自输出设备的 monitor 源, 麦克风为 PulseAudio 的输入源
+ *
+ * @author 张云龙
+ */
+@Component
+public class X11CaptureBackend implements CaptureBackend {
+    private static final Logger logger = LoggerFactory.getLogger(X11CaptureBackend.class);
+
+    @Autowired
+    private RecordProperties recordProperties;
+
+    @Override
+    public String getName() {
+        return "x11";
+    }
+
+    /**
+     * 指定采集区域时由 x11grab 只读取区域内的像素, 区域的偏移替换显示器中的偏移
+     */
+    @Override
+    public String videoInput(Rectangle region) {
+        RecordProperties.X11 x11 = recordProperties.getX11();
+        if (region != null) {
+            return "-f x11grab -video_size " + region.width + "x" + region.height + " -i " +
+                    x11.getDisplay().split("\\+")[0] + "+" + region.x + "," + region.y;
+        }
+        String videoSize = x11.getVideoSize() == null || x11.getVideoSize().isEmpty() ? "" : "-video_size " + x11.getVideoSize() + " ";
+        return "-f x11grab " + videoSize + "-i " + x11.getDisplay();
+    }
+
+    @Override
+    public boolean supportsRegion() {
+        return true;
+    }
+
+    @Override
+    public String systemAudioInput() {
+        return "-f pulse -i " + recordProperties.getX11().getSystemAudio();
+    }
+
+    @Override
+    public String microphoneInput(String device) {
+        return "-f pulse -i " + device;
+    }
+
+    /**
+     * 通过 pactl 列出 PulseAudio 的输入源, 排除输出设备的 monitor 源
+     */
+    @Override
+    public List<String> listMicrophones() {
+        logger.info("尝试获取音频设备列表");
+        List<String> devices = new ArrayList<>();
+        try {
+            Process process = new ProcessBuilder("pactl", "list", "short", "sources").start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // 每行为: 序号 名称 驱动 采样格式 状态
+                    String[] columns = line.split("\t");
+                    if (columns.length > 1 && !columns[1].endsWith(".monitor")) {
+                        logger.info("获取到音频设备: {}", columns[1]);
+                        devices.add(columns[1]);
+                    }
+                }
+            }
+            process.waitFor();
+        } catch (Exception ex) {
+            logger.info("获取音频设备异常, 异常信息: {}", ex.getMessage());
+        }
+        return devices;
+    }
+}
@@ -0,0 +1,41 @@
+package cn.zack.utils;
+
+/**
+ * 文件名操作
+ * 目录名中可以有点, 例如 C:\Users\first.last, 扩展名只取最后一级文件名中最后一个点之后的部分
+ *
+ * @author 张云龙
+ */
+public class FileNameUtils {
+
+    private FileNameUtils() {
+    }
+
+    /**
+     * 去掉扩展名, 保留目录
+     *
+     * @param path 文件路径
+     * @return 没有扩展名时原样返回
+     */
+    public static String removeExtension(String path) {
+        int dot = extensionIndex(path);
+        return dot < 0 ? path : path.substring(0, dot);
+    }
+
+    /**
+     * 扩展名, 不含点
+     *
+     * @param path 文件路径
+     * @return 没有扩展名时返回空字符串
+     */
+    public static String getExtension(String path) {
+        int dot = extensionIndex(path);
+        return dot < 0 ? "" : path.substring(dot + 1);
+    }
+
+    private static int extensionIndex(String path) {
+        int dot = path.lastIndexOf('.');
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return dot > separator ? dot : -1;
+    }
+}
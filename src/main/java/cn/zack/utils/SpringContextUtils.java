@@ -3,11 +3,14 @@ package cn.zack.utils;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 /**
  * Spring容器操作
+ * 启动类通过它获取界面, 延迟初始化时也需要在启动时创建
  */
+@Lazy(false)
 @Component
 @SuppressWarnings("all")
 public class SpringContextUtils implements ApplicationContextAware {
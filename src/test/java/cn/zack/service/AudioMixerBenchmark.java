@@ -0,0 +1,126 @@
+package cn.zack.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 混音吞吐基准测试
+ * 在60秒的时间线上错开放置若干段48kHz双声道录音, 片段的开始和结束都不在块边界上, 测量一次完整混音的耗时,
+ * 每次混音输出 60 * 48000 * 4 = 11,520,000 字节, 按耗时换算即为混音吞吐
+ * 运行方式: mvn -P jmh test -Djmh.args=AudioMixerBenchmark
+ *
+ * @author 张云龙
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioMixerBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final long TIMELINE_MILLS = 60_000;
+    private static final long CLIP_MILLS = 30_000;
+
+    /**
+     * 同一条时间线上的录音片段数量
+     */
+    @Param({"1", "4", "16"})
+    private int clips;
+
+    @Param({"SATURATE", "NORMALIZE"})
+    private AudioMixer.MixMode mixMode;
+
+    private Path directory;
+    private Map<String, Long> audioMap;
+    private Path output;
+    private AudioMixer mixer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("mix-benchmark");
+        audioMap = new LinkedHashMap<>();
+        Random random = new Random(42);
+        // 片段均匀错开放在时间线上, 偏移量取非整块的毫秒值
+        long step = clips > 1 ? (TIMELINE_MILLS - CLIP_MILLS) / (clips - 1) : 0;
+        for (int i = 0; i < clips; i++) {
+            Path clip = directory.resolve("clip" + i + ".wav");
+            writeClip(clip, random);
+            audioMap.put(clip.toString(), i * step + 7);
+        }
+        output = directory.resolve("mixed.wav");
+        mixer = new AudioMixer(4096, mixMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long mix() throws IOException {
+        return mixer.mix(audioMap, output);
+    }
+
+    /**
+     * 写入一段随机噪声录音, 幅度控制在1/4满量程, 多个片段叠加时同样会触发截断
+     */
+    private static void writeClip(Path path, Random random) throws IOException {
+        ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        fmt.putShort((short) 1).putShort((short) CHANNELS).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * CHANNELS * 2)
+                .putShort((short) (CHANNELS * 2)).putShort((short) 16);
+        long samples = CLIP_MILLS * SAMPLE_RATE / 1000 * CHANNELS;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(WavHeader.begin(channel, fmt.array()));
+            ByteBuffer block = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (long written = 0; written < samples; ) {
+                block.clear();
+                while (block.hasRemaining() && written < samples) {
+                    block.putShort((short) (random.nextInt(Short.MAX_VALUE / 2) - Short.MAX_VALUE / 4));
+                    written++;
+                }
+                block.flip();
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            }
+            WavHeader.finish(channel, fmt.array(), samples * 2);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AudioMixerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
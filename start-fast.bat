@@ -0,0 +1,3 @@
+@echo off
+start javaw -XX:SharedArchiveFile=./ScreenRecord.jsa -jar ./ScreenRecord-fast.jar --spring.profiles.active=fast
+exit
\ No newline at end of file